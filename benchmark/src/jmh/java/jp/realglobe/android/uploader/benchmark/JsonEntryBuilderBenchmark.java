@@ -0,0 +1,135 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import jp.realglobe.android.uploader.JsonEntryBuilder;
+import jp.realglobe.android.uploader.MemoryTransport;
+import jp.realglobe.android.uploader.Poster;
+
+/**
+ * JsonEntryBuilder.setData の性能
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class JsonEntryBuilderBenchmark {
+
+    @Param({"small", "large", "nested"})
+    public String shape;
+
+    private URL url;
+    private Map<String, Object> data;
+    private Poster poster;
+    private JsonEntryBuilder recycled;
+
+    @Setup
+    public void setup() throws MalformedURLException {
+        this.url = new URL("http://localhost/");
+        this.poster = (new Poster()).setTransport(new MemoryTransport());
+        this.recycled = (new JsonEntryBuilder()).setRecycle(true);
+        switch (this.shape) {
+            case "small": {
+                this.data = flat(4);
+                break;
+            }
+            case "large": {
+                this.data = flat(1_000);
+                break;
+            }
+            default: {
+                this.data = nested(4, 4);
+                break;
+            }
+        }
+    }
+
+    private static Map<String, Object> flat(int size) {
+        final Map<String, Object> map = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            switch (i % 4) {
+                case 0:
+                    map.put("key" + i, "value" + i);
+                    break;
+                case 1:
+                    map.put("key" + i, i);
+                    break;
+                case 2:
+                    map.put("key" + i, i * 0.5);
+                    break;
+                default:
+                    map.put("key" + i, (i % 8 == 3));
+                    break;
+            }
+        }
+        return map;
+    }
+
+    private static Map<String, Object> nested(int depth, int width) {
+        final Map<String, Object> map = flat(width);
+        if (depth > 0) {
+            final List<Object> list = new ArrayList<>();
+            for (int i = 0; i < width; i++) {
+                list.add(nested(depth - 1, width));
+            }
+            map.put("children", list);
+        }
+        return map;
+    }
+
+    @Benchmark
+    public Poster.Entry setData() {
+        return (new JsonEntryBuilder())
+                .setUrl(this.url)
+                .setData(this.data)
+                .build();
+    }
+
+    @Benchmark
+    public void post() {
+        this.poster.post((new JsonEntryBuilder())
+                .setUrl(this.url)
+                .setData(this.data)
+                .build());
+    }
+
+    @Benchmark
+    public void postRecycled() {
+        // 送信が終わるとバッファが返るので、小さいデータなら使い回される
+        this.poster.post(this.recycled.reset()
+                .setUrl(this.url)
+                .setData(this.data)
+                .build());
+    }
+
+}
@@ -0,0 +1,82 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import jp.realglobe.android.uploader.MemoryTransport;
+import jp.realglobe.android.uploader.MultipartEntryBuilder;
+import jp.realglobe.android.uploader.Poster;
+
+/**
+ * MultipartEntryBuilder.build と、できた Body の書き出しの性能
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MultipartEntryBuilderBenchmark {
+
+    /**
+     * パート数 x パートの大きさ
+     */
+    @Param({"1000x100", "4x8388608"})
+    public String parts;
+
+    private URL url;
+    private byte[][] data;
+    private Poster poster;
+
+    @Setup
+    public void setup() throws MalformedURLException {
+        this.url = new URL("http://localhost/");
+        final String[] size = this.parts.split("x");
+        this.data = new byte[Integer.parseInt(size[0])][Integer.parseInt(size[1])];
+        this.poster = (new Poster()).setTransport(new MemoryTransport());
+    }
+
+    private Poster.Entry newEntry() {
+        final MultipartEntryBuilder builder = (new MultipartEntryBuilder()).setUrl(this.url);
+        for (int i = 0; i < this.data.length; i++) {
+            builder.addData("part" + i, "application/octet-stream", this.data[i]);
+        }
+        return builder.build();
+    }
+
+    @Benchmark
+    public Poster.Entry build() {
+        return newEntry();
+    }
+
+    @Benchmark
+    public void buildAndWrite() throws IOException {
+        // MemoryTransport は Body を読み捨てるので、組み立てから書き出しまでを測れる
+        this.poster.post(newEntry());
+    }
+
+}
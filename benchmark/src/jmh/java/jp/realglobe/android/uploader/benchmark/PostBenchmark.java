@@ -0,0 +1,91 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader.benchmark;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import jp.realglobe.android.uploader.Poster;
+
+/**
+ * ループバックの HTTP サーバーへの送信の性能
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PostBenchmark {
+
+    @Param({"1024", "1048576"})
+    public int size;
+
+    private HttpServer server;
+    private Poster poster;
+    private Poster.Entry entry;
+
+    @Setup
+    public void setup() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.server.createContext("/", exchange -> {
+            final byte[] buff = new byte[8192];
+            try (final InputStream input = exchange.getRequestBody()) {
+                while (input.read(buff) >= 0) {
+                    // 読み捨てる
+                }
+            }
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        this.server.start();
+
+        final URL url = new URL("http", "127.0.0.1", this.server.getAddress().getPort(), "/");
+        this.poster = new Poster();
+        this.entry = (new Poster.BasicEntryBuilder())
+                .setUrl(url)
+                .setData(new byte[this.size])
+                .setOnError(e -> {
+                    throw new IllegalStateException(e);
+                })
+                .build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.server.stop(0);
+    }
+
+    @Benchmark
+    public void post() {
+        this.poster.post(this.entry);
+    }
+
+}
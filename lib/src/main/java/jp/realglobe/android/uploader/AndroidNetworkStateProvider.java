@@ -0,0 +1,139 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * ConnectivityManager と電池の状態から NetworkState をつくる。
+ * 状態は変化を受け取ったときに取り直して保持するので、getState は ConnectivityManager に問い合わせない。
+ * ACCESS_NETWORK_STATE 権限が要るが、ライブラリでは宣言していないので、アプリの AndroidManifest.xml で宣言すること。
+ * 使い終わったら close で監視を止める
+ */
+public class AndroidNetworkStateProvider implements NetworkStateProvider, Closeable {
+
+    private final Context context;
+    private final ConnectivityManager connectivity;
+    private final BroadcastReceiver receiver;
+    private final List<Runnable> listeners;
+    private volatile NetworkState state;
+
+    /**
+     * @param context Context
+     */
+    public AndroidNetworkStateProvider(@NonNull Context context) {
+        this.context = context.getApplicationContext();
+        this.connectivity = (ConnectivityManager) this.context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                update(intent.getAction());
+                for (final Runnable listener : AndroidNetworkStateProvider.this.listeners) {
+                    listener.run();
+                }
+            }
+        };
+
+        // 電池の状態は sticky なので、受信器無しで今の値を取れる
+        final Intent battery = this.context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        final boolean charging = (battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0);
+        this.state = query(charging);
+
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+        filter.addAction(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        this.context.registerReceiver(this.receiver, filter);
+    }
+
+    /**
+     * @return 最後に変化を受け取ったときの状態
+     */
+    @NonNull
+    @Override
+    public NetworkState getState() {
+        return this.state;
+    }
+
+    private void update(@Nullable String action) {
+        final boolean charging;
+        if (Intent.ACTION_POWER_CONNECTED.equals(action)) {
+            charging = true;
+        } else if (Intent.ACTION_POWER_DISCONNECTED.equals(action)) {
+            charging = false;
+        } else {
+            // 電源の接続は電池の sticky な状態より先に届くので、通信の変化では前の値を引き継ぐ
+            charging = this.state.isCharging();
+        }
+        this.state = query(charging);
+    }
+
+    @NonNull
+    private NetworkState query(boolean charging) {
+        final NetworkInfo info = this.connectivity.getActiveNetworkInfo();
+        final boolean connected = (info != null && info.isConnected());
+        final boolean metered = this.connectivity.isActiveNetworkMetered();
+
+        int bandwidth = -1;
+        if (connected && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            final Network network = this.connectivity.getActiveNetwork();
+            final NetworkCapabilities capabilities = (network != null ? this.connectivity.getNetworkCapabilities(network) : null);
+            if (capabilities != null) {
+                bandwidth = capabilities.getLinkUpstreamBandwidthKbps();
+            }
+        }
+
+        return new NetworkState(connected, metered, charging, bandwidth);
+    }
+
+    /**
+     * listener はメインスレッドで呼ばれる
+     */
+    @Override
+    public void addListener(@NonNull Runnable listener) {
+        this.listeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(@NonNull Runnable listener) {
+        this.listeners.remove(listener);
+    }
+
+    @Override
+    public void close() {
+        this.listeners.clear();
+        this.context.unregisterReceiver(this.receiver);
+    }
+
+}
@@ -0,0 +1,314 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 同じ URL とヘッダで送る小さな JSON の Entry をまとめて 1 つのリクエストで送る。
+ * URL とヘッダの他に、タイムアウトや再送の仕方などの送り方の設定も全て同じものだけをまとめる。
+ * まとめたリクエストの結果は、元の Entry それぞれの onFinish や onError、onResponse に渡す
+ */
+public class Batcher {
+
+    private static final String CONTENT_TYPE = "content-type"; // HeaderTemplate の名前は小文字
+    private static final String CONTENT_TYPE_JSON = "application/json";
+    private static final String CONTENT_TYPE_JSON_SUFFIX = "+json";
+    private static final String CONTENT_TYPE_NDJSON = "application/x-ndjson";
+
+    /**
+     * まとめ方
+     */
+    public enum Format {
+
+        /**
+         * JSON の配列にする
+         */
+        JSON_ARRAY,
+
+        /**
+         * 改行区切りで並べる
+         */
+        NDJSON,
+
+    }
+
+    private static final Body ARRAY_START = Bodies.of(new byte[]{'['});
+    private static final Body ARRAY_END = Bodies.of(new byte[]{']'});
+    private static final Body COMMA = Bodies.of(new byte[]{','});
+    private static final Body NEWLINE = Bodies.of("\n".getBytes(StandardCharsets.US_ASCII));
+
+    /**
+     * まとめる単位
+     */
+    private static final class Key {
+
+        private final String url;
+        private final Poster.Entry entry; // 送り方の設定を比べる。最初に受け取ったもの
+
+        private Key(@NonNull Poster.Entry entry) {
+            // URL.equals は名前解決するので文字列で比べる
+            this.url = entry.url.toString();
+            this.entry = entry;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            } else if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            final Poster.Entry a = this.entry;
+            final Poster.Entry b = other.entry;
+            // 関数や設定のオブジェクトは同じインスタンスの場合だけまとめる
+            return this.url.equals(other.url)
+                    && a.header.equals(b.header)
+                    && a.endpoint == b.endpoint
+                    && a.timeout == b.timeout
+                    && a.readTimeout == b.readTimeout
+                    && a.writeTimeout == b.writeTimeout
+                    && a.deadline == b.deadline
+                    && (a.orderKey == null ? b.orderKey == null : a.orderKey.equals(b.orderKey))
+                    && a.compressionLevel == b.compressionLevel
+                    && a.compressionMinLength == b.compressionMinLength
+                    && a.retryPolicy == b.retryPolicy
+                    && a.timeToLive == b.timeToLive
+                    && a.responseLimit == b.responseLimit
+                    && a.responseHandler == b.responseHandler
+                    && a.onResponse == b.onResponse
+                    && a.constraints == b.constraints;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.url.hashCode() + this.entry.header.hashCode();
+        }
+
+    }
+
+    private final class Batch implements Runnable {
+
+        private final Key key;
+        private final List<Poster.Entry> entries;
+        private long bytes;
+
+        private Batch(@NonNull Key key) {
+            this.key = key;
+            this.entries = new ArrayList<>();
+        }
+
+        @Override
+        public void run() {
+            flush(this.key);
+        }
+
+    }
+
+    private final Poster poster;
+    private final Handler handler;
+    private final long window;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final Format format;
+
+    private final Map<Key, Batch> batches;
+
+    /**
+     * @param poster     まとめたリクエストを送る Poster
+     * @param looper     まとめる時間を計るスレッド
+     * @param window     最初の Entry を受け取ってから送るまでに待つ時間（ミリ秒）
+     * @param maxEntries 1 つのリクエストにまとめる Entry 数の上限
+     * @param maxBytes   1 つのリクエストにまとめるバイト数の目安。超えたらすぐに送る。0 以下ならバイト数では区切らない
+     * @param format     まとめ方
+     */
+    public Batcher(@NonNull Poster poster, @NonNull Looper looper, long window, int maxEntries, long maxBytes, @NonNull Format format) {
+        this.poster = poster;
+        this.handler = new Handler(looper);
+        this.window = window;
+        this.maxEntries = Math.max(1, maxEntries);
+        this.maxBytes = maxBytes;
+        this.format = format;
+        this.batches = new HashMap<>();
+    }
+
+    /**
+     * まとめて送るために溜める。
+     * Content-Type が JSON でない Entry、Body が無い Entry、何度でも書き出せて長さが分かる Body でない Entry、
+     * setCoalesceKey で置き換えられる Entry はまとめずにすぐに送る
+     *
+     * @param entry JSON を POST する内容
+     */
+    public void post(@NonNull Poster.Entry entry) {
+        final Body body = entry.body;
+        if (body == null || !body.isRepeatable() || body.getLength() < 0 || entry.coalesceKey != null || !isJson(entry)) {
+            this.poster.post(entry);
+            return;
+        }
+
+        final Key key = new Key(entry);
+        final Batch full;
+        synchronized (this.batches) {
+            Batch batch = this.batches.get(key);
+            if (batch == null) {
+                batch = new Batch(key);
+                this.batches.put(key, batch);
+                this.handler.postDelayed(batch, this.window);
+            }
+            batch.entries.add(entry);
+            batch.bytes += body.getLength();
+
+            if (batch.entries.size() >= this.maxEntries || (this.maxBytes > 0 && batch.bytes >= this.maxBytes)) {
+                this.batches.remove(key);
+                this.handler.removeCallbacks(batch);
+                full = batch;
+            } else {
+                full = null;
+            }
+        }
+        if (full != null) {
+            send(full);
+        }
+    }
+
+    /**
+     * @return Content-Type が JSON なら true
+     */
+    private static boolean isJson(@NonNull Poster.Entry entry) {
+        final String type = entry.header.get(CONTENT_TYPE);
+        if (type == null) {
+            return false;
+        }
+        final int end = type.indexOf(';');
+        final String mediaType = (end >= 0 ? type.substring(0, end) : type).trim().toLowerCase(Locale.US);
+        return mediaType.equals(CONTENT_TYPE_JSON) || mediaType.endsWith(CONTENT_TYPE_JSON_SUFFIX);
+    }
+
+    /**
+     * 溜まっている分をすぐに送る
+     */
+    public void flush() {
+        final List<Batch> all;
+        synchronized (this.batches) {
+            all = new ArrayList<>(this.batches.values());
+            this.batches.clear();
+            for (final Batch batch : all) {
+                this.handler.removeCallbacks(batch);
+            }
+        }
+        for (final Batch batch : all) {
+            send(batch);
+        }
+    }
+
+    private void flush(@NonNull Key key) {
+        final Batch batch;
+        synchronized (this.batches) {
+            batch = this.batches.remove(key);
+        }
+        if (batch != null) {
+            send(batch);
+        }
+    }
+
+    private void send(@NonNull Batch batch) {
+        final List<Poster.Entry> entries = batch.entries;
+        if (entries.size() == 1) {
+            this.poster.post(entries.get(0));
+            return;
+        }
+
+        final List<Body> parts = new ArrayList<>(2 * entries.size() + 1);
+        final HeaderTemplate header;
+        switch (this.format) {
+            case NDJSON: {
+                for (final Poster.Entry entry : entries) {
+                    parts.add(entry.body);
+                    parts.add(NEWLINE);
+                }
+                header = batch.key.entry.header.with(CONTENT_TYPE, CONTENT_TYPE_NDJSON);
+                break;
+            }
+            default: {
+                parts.add(ARRAY_START);
+                for (int i = 0; i < entries.size(); i++) {
+                    if (i > 0) {
+                        parts.add(COMMA);
+                    }
+                    parts.add(entries.get(i).body);
+                }
+                parts.add(ARRAY_END);
+                header = batch.key.entry.header;
+                break;
+            }
+        }
+
+        // Key が同じなので、送り方の設定は全て同じ
+        final Poster.Entry first = batch.key.entry;
+        int priority = first.priority;
+        for (final Poster.Entry entry : entries) {
+            priority = Math.max(priority, entry.priority);
+        }
+        // まとめた Body を送り終えると、Poster が中の pooled な Body を返す
+        final Poster.Entry combined = (new Poster.BasicEntryBuilder())
+                .setUrl(first.url)
+                .setEndpoint(first.endpoint)
+                .setBody(Bodies.concat(parts))
+                .setHeader(header)
+                .setOnFinish((Integer status) -> {
+                    for (final Poster.Entry entry : entries) {
+                        entry.onFinish.accept(status);
+                    }
+                })
+                .setOnError((Exception e) -> {
+                    for (final Poster.Entry entry : entries) {
+                        entry.onError.accept(e);
+                    }
+                })
+                .setOnResponse((Response response) -> {
+                    for (final Poster.Entry entry : entries) {
+                        entry.onResponse.accept(response);
+                    }
+                })
+                .setTimeout(first.timeout)
+                .setReadTimeout(first.readTimeout)
+                .setWriteTimeout(first.writeTimeout)
+                .setDeadline(first.deadline)
+                .setOrderKey(first.orderKey)
+                .setCompression(first.compressionLevel, first.compressionMinLength)
+                .setRetryPolicy(first.retryPolicy)
+                .setPriority(priority)
+                .setTimeToLive(first.timeToLive)
+                .setResponseLimit(first.responseLimit)
+                .setResponseHandler(first.responseHandler)
+                .setConstraints(first.constraints)
+                .build();
+        this.poster.post(combined);
+    }
+
+}
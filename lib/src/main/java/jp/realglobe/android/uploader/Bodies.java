@@ -0,0 +1,600 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import android.content.ContentResolver;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Body をつくる
+ */
+public final class Bodies {
+
+    private static final int BUFFER_SIZE = BufferPool.BUFFER_SIZE;
+
+    private Bodies() {
+    }
+
+    /**
+     * @param data データ
+     * @return data をそのまま書き出す Body
+     */
+    @NonNull
+    public static Body of(@NonNull byte[] data) {
+        return new ByteArrayBody(data);
+    }
+
+    /**
+     * @param data データ。position から limit までを書き出す
+     * @return data を書き出す Body
+     */
+    @NonNull
+    public static Body of(@NonNull ByteBuffer data) {
+        return new ByteBufferBody(data);
+    }
+
+    /**
+     * 長さはこの時点のファイルサイズで決まる
+     *
+     * @param file ファイル
+     * @return 送信時にファイルを読みながら書き出す Body
+     */
+    @NonNull
+    public static Body of(@NonNull File file) {
+        return new FileBody(file, 0, file.length());
+    }
+
+    /**
+     * @param file   ファイル
+     * @param offset 書き出し開始位置
+     * @param length 書き出すバイト数
+     * @return 送信時にファイルの一部を読みながら書き出す Body
+     */
+    @NonNull
+    public static Body of(@NonNull File file, long offset, long length) {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("negative range: " + offset + ", " + length);
+        }
+        return new FileBody(file, offset, length);
+    }
+
+    /**
+     * 長さを調べるため、この時点で一度 uri を開く
+     *
+     * @param resolver ContentResolver
+     * @param uri      content:// や file:// の URI
+     * @return 送信時に uri を読みながら書き出す Body
+     * @throws FileNotFoundException uri を開けなかった
+     */
+    @NonNull
+    public static Body of(@NonNull ContentResolver resolver, @NonNull Uri uri) throws FileNotFoundException {
+        return new UriBody(resolver, uri);
+    }
+
+    /**
+     * 一度しか書き出せない Body をつくる。
+     * 書き出し後に input は閉じられる
+     *
+     * @param input  入力
+     * @param length バイト数。不明な場合は負値
+     * @return input を読みながら書き出す Body
+     */
+    @NonNull
+    public static Body of(@NonNull InputStream input, long length) {
+        return new StreamBody(input, length);
+    }
+
+    /**
+     * 値は書き出すたびに JSON にするので、送信が終わるまで変更しないこと。
+     * 長さは不明になる
+     *
+     * @param value Map や List、プリミティブの組み合わせ
+     * @return value を JSON にしながら書き出す Body
+     */
+    @NonNull
+    public static Body json(@NonNull Object value) {
+        return new JsonBody(value);
+    }
+
+    /**
+     * @param bodies 連結する Body
+     * @return bodies を順に書き出す Body
+     */
+    @NonNull
+    public static Body concat(@NonNull List<Body> bodies) {
+        return new CompositeBody(bodies);
+    }
+
+    /**
+     * channel の offset から length バイトを output に書き出す。
+     * 書き出し先は HTTP の接続なのでゼロコピーにはならない。
+     * BufferPool のバッファに位置指定で読んで書き出し、チャネルの位置は動かさない
+     */
+    static void transfer(@NonNull FileChannel channel, long offset, long length, @NonNull OutputStream output) throws IOException {
+        final byte[] buff = BufferPool.acquire();
+        try {
+            final ByteBuffer wrapped = ByteBuffer.wrap(buff);
+            final long end = offset + length;
+            long position = offset;
+            while (position < end) {
+                wrapped.clear();
+                wrapped.limit((int) Math.min(buff.length, end - position));
+                final int n = channel.read(wrapped, position);
+                if (n < 0) {
+                    throw new EOFException("unexpected end of file at " + position);
+                }
+                output.write(buff, 0, n);
+                position += n;
+            }
+        } finally {
+            BufferPool.release(buff);
+        }
+    }
+
+    private static void closeQuietly(@NonNull Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // 読み込み用なので無視する
+        }
+    }
+
+    /**
+     * 圧縮は書き出しながら行う
+     *
+     * @param body  圧縮するデータ
+     * @param level 圧縮レベル
+     * @return body を gzip で圧縮して書き出す Body。長さは不明になる
+     */
+    @NonNull
+    public static Body gzip(@NonNull Body body, int level) {
+        return new GzipBody(body, level);
+    }
+
+    static void copy(@NonNull InputStream input, @NonNull OutputStream output) throws IOException {
+        final byte[] buff = BufferPool.acquire();
+        try {
+            while (true) {
+                final int n = input.read(buff);
+                if (n < 0) {
+                    return;
+                }
+                output.write(buff, 0, n);
+            }
+        } finally {
+            BufferPool.release(buff);
+        }
+    }
+
+    /**
+     * 送信が終わったら recycle で buff を BufferPool に返す Body をつくる
+     *
+     * @param buff   BufferPool.acquire で得たバッファ
+     * @param length データの長さ
+     * @return buff の先頭 length バイトを書き出す Body
+     */
+    @NonNull
+    static Body pooled(@NonNull byte[] buff, int length) {
+        return new PooledBody(buff, length);
+    }
+
+    /**
+     * body が pooled でつくったもの、または concat でそれを含むものなら、バッファを BufferPool に返す。
+     * 返した後に書き出そうとすると IllegalStateException になる
+     *
+     * @param body 送信が終わった Body
+     */
+    static void recycle(@Nullable Body body) {
+        if (body instanceof PooledBody) {
+            ((PooledBody) body).recycle();
+        } else if (body instanceof CompositeBody) {
+            // Batcher でまとめたものは中身を返す
+            for (final Body part : ((CompositeBody) body).bodies) {
+                recycle(part);
+            }
+        }
+    }
+
+    /**
+     * concat でつくった Body を、連結した順に展開して parts に加える
+     */
+    static void flatten(@NonNull Body body, @NonNull List<Body> parts) {
+        if (body instanceof CompositeBody) {
+            for (final Body part : ((CompositeBody) body).bodies) {
+                flatten(part, parts);
+            }
+        } else {
+            parts.add(body);
+        }
+    }
+
+    /**
+     * @return body が pooled でつくったものか、それを含むもので、送信が終わると書き出せなくなるなら true
+     */
+    static boolean isPooled(@Nullable Body body) {
+        if (body instanceof CompositeBody) {
+            for (final Body part : ((CompositeBody) body).bodies) {
+                if (isPooled(part)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return body instanceof PooledBody;
+    }
+
+    private static final class ByteArrayBody implements Body {
+
+        private final byte[] data;
+
+        private ByteArrayBody(@NonNull byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public long getLength() {
+            return this.data.length;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public void writeTo(@NonNull OutputStream output) throws IOException {
+            output.write(this.data);
+        }
+
+    }
+
+    private static final class ByteBufferBody implements Body {
+
+        private final ByteBuffer data;
+
+        private ByteBufferBody(@NonNull ByteBuffer data) {
+            this.data = data.slice();
+        }
+
+        @Override
+        public long getLength() {
+            return this.data.remaining();
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public void writeTo(@NonNull OutputStream output) throws IOException {
+            if (this.data.hasArray()) {
+                output.write(this.data.array(), this.data.arrayOffset(), this.data.remaining());
+                return;
+            }
+
+            // ダイレクトバッファは少しずつ取り出す
+            final ByteBuffer src = this.data.duplicate();
+            final byte[] buff = BufferPool.acquire();
+            try {
+                while (src.hasRemaining()) {
+                    final int n = Math.min(buff.length, src.remaining());
+                    src.get(buff, 0, n);
+                    output.write(buff, 0, n);
+                }
+            } finally {
+                BufferPool.release(buff);
+            }
+        }
+
+    }
+
+    private static final class PooledBody implements Body {
+
+        private final int length;
+        private byte[] buff;
+
+        private PooledBody(@NonNull byte[] buff, int length) {
+            this.buff = buff;
+            this.length = length;
+        }
+
+        @Override
+        public long getLength() {
+            return this.length;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public void writeTo(@NonNull OutputStream output) throws IOException {
+            final byte[] buff;
+            synchronized (this) {
+                buff = this.buff;
+            }
+            if (buff == null) {
+                throw new IllegalStateException("already recycled");
+            }
+            output.write(buff, 0, this.length);
+        }
+
+        private void recycle() {
+            final byte[] buff;
+            synchronized (this) {
+                buff = this.buff;
+                this.buff = null;
+            }
+            if (buff != null) {
+                BufferPool.release(buff);
+            }
+        }
+
+    }
+
+    static final class FileBody implements Body {
+
+        final File file;
+        final long offset;
+        final long length;
+
+        private FileBody(@NonNull File file, long offset, long length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public long getLength() {
+            return this.length;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public void writeTo(@NonNull OutputStream output) throws IOException {
+            try (final FileInputStream input = new FileInputStream(this.file)) {
+                transfer(input.getChannel(), this.offset, this.length, output);
+            }
+        }
+
+    }
+
+    static final class UriBody implements Body {
+
+        private final ContentResolver resolver;
+        final Uri uri;
+        final long length;
+
+        private UriBody(@NonNull ContentResolver resolver, @NonNull Uri uri) throws FileNotFoundException {
+            this.resolver = resolver;
+            this.uri = uri;
+
+            final AssetFileDescriptor descriptor = resolver.openAssetFileDescriptor(uri, "r");
+            if (descriptor == null) {
+                throw new FileNotFoundException(uri.toString());
+            }
+            try {
+                this.length = descriptor.getLength();
+            } finally {
+                closeQuietly(descriptor);
+            }
+        }
+
+        @Override
+        public long getLength() {
+            return this.length;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public void writeTo(@NonNull OutputStream output) throws IOException {
+            final AssetFileDescriptor descriptor = this.resolver.openAssetFileDescriptor(this.uri, "r");
+            if (descriptor == null) {
+                throw new FileNotFoundException(this.uri.toString());
+            }
+            try (final FileInputStream input = descriptor.createInputStream()) {
+                if (this.length == AssetFileDescriptor.UNKNOWN_LENGTH) {
+                    // パイプ等は長さもシークも無いので普通に読む
+                    copy(input, output);
+                } else {
+                    transfer(input.getChannel(), descriptor.getStartOffset(), this.length, output);
+                }
+            } finally {
+                closeQuietly(descriptor);
+            }
+        }
+
+    }
+
+    private static final class StreamBody implements Body {
+
+        private final InputStream input;
+        private final long length;
+
+        private StreamBody(@NonNull InputStream input, long length) {
+            this.input = input;
+            this.length = length;
+        }
+
+        @Override
+        public long getLength() {
+            return this.length;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        @Override
+        public void writeTo(@NonNull OutputStream output) throws IOException {
+            try (final InputStream input = this.input) {
+                copy(input, output);
+            }
+        }
+
+    }
+
+    private static final class GzipBody implements Body {
+
+        private final Body body;
+        private final int level;
+
+        private GzipBody(@NonNull Body body, int level) {
+            this.body = body;
+            this.level = level;
+        }
+
+        @Override
+        public long getLength() {
+            return -1;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return this.body.isRepeatable();
+        }
+
+        @Override
+        public void writeTo(@NonNull OutputStream output) throws IOException {
+            // 圧縮器は解放したいが、output は閉じない
+            final OutputStream target = new FilterOutputStream(output) {
+                @Override
+                public void write(@NonNull byte[] b, int off, int len) throws IOException {
+                    this.out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            };
+            try (final GZIPOutputStream gzip = new GZIPOutputStream(target, BUFFER_SIZE) {
+                {
+                    this.def.setLevel(GzipBody.this.level);
+                }
+            }) {
+                this.body.writeTo(gzip);
+            }
+        }
+
+    }
+
+    private static final class JsonBody implements Body {
+
+        private final Object value;
+
+        private JsonBody(@NonNull Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public long getLength() {
+            return -1;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public void writeTo(@NonNull OutputStream output) throws IOException {
+            final byte[] buff = BufferPool.acquire();
+            try {
+                final JsonWriter writer = new JsonWriter(buff);
+                writer.reset(output);
+                writer.write(this.value);
+                writer.flush();
+            } finally {
+                BufferPool.release(buff);
+            }
+        }
+
+    }
+
+    private static final class CompositeBody implements Body {
+
+        private final List<Body> bodies;
+        private final long length;
+        private final boolean repeatable;
+
+        private CompositeBody(@NonNull List<Body> bodies) {
+            this.bodies = new ArrayList<>(bodies);
+
+            long length = 0;
+            boolean repeatable = true;
+            for (final Body body : this.bodies) {
+                final long n = body.getLength();
+                if (length >= 0) {
+                    length = (n >= 0 ? length + n : -1);
+                }
+                repeatable &= body.isRepeatable();
+            }
+            this.length = length;
+            this.repeatable = repeatable;
+        }
+
+        @Override
+        public long getLength() {
+            return this.length;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return this.repeatable;
+        }
+
+        @Override
+        public void writeTo(@NonNull OutputStream output) throws IOException {
+            for (final Body body : this.bodies) {
+                body.writeTo(output);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,49 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * POST するデータ。
+ * 送信時に writeTo で書き出されるので、全体をメモリに載せておく必要は無い。
+ * 既存のデータは Bodies でつくれる。送信時にデータを生成したい場合は直接実装する
+ */
+public interface Body {
+
+    /**
+     * @return バイト数。不明な場合は負値
+     */
+    long getLength();
+
+    /**
+     * @return 何度でも書き出せるなら true
+     */
+    boolean isRepeatable();
+
+    /**
+     * データを書き出す
+     *
+     * @param output 書き出し先
+     * @throws IOException 書き出しに失敗した
+     */
+    void writeTo(@NonNull OutputStream output) throws IOException;
+
+}
@@ -0,0 +1,66 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+
+/**
+ * 入出力用のバッファを使い回す。
+ * 返されたバッファは上限個まで取っておき、それ以上は捨てる
+ */
+final class BufferPool {
+
+    static final int BUFFER_SIZE = 8192;
+
+    private static final int MAX_POOLED = 16;
+
+    private static final ArrayDeque<byte[]> pool = new ArrayDeque<>();
+
+    private BufferPool() {
+    }
+
+    /**
+     * @return 長さ BUFFER_SIZE のバッファ。使い終わったら release で返すこと
+     */
+    @NonNull
+    static byte[] acquire() {
+        synchronized (pool) {
+            final byte[] buff = pool.pollFirst();
+            if (buff != null) {
+                return buff;
+            }
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * @param buff acquire で得たバッファ
+     */
+    static void release(@NonNull byte[] buff) {
+        if (buff.length != BUFFER_SIZE) {
+            return;
+        }
+        synchronized (pool) {
+            if (pool.size() < MAX_POOLED) {
+                pool.addFirst(buff);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Entry を送信してよい通信と電源の条件
+ */
+public final class Constraints {
+
+    /**
+     * 条件無し。通信できなくても送信を試みる
+     */
+    public static final Constraints NONE = (new Builder()).setRequiresNetwork(false).build();
+
+    private final boolean requiresNetwork;
+    private final boolean requiresUnmetered;
+    private final boolean requiresCharging;
+    private final int minBandwidth;
+
+    private Constraints(@NonNull Builder builder) {
+        this.requiresNetwork = builder.requiresNetwork;
+        this.requiresUnmetered = builder.requiresUnmetered;
+        this.requiresCharging = builder.requiresCharging;
+        this.minBandwidth = builder.minBandwidth;
+    }
+
+    /**
+     * 帯域の見積もりが分からない場合、帯域の条件は満たすものとする
+     *
+     * @param state 通信と電源の状態
+     * @return 条件を満たしていれば true
+     */
+    public boolean isSatisfiedBy(@NonNull NetworkState state) {
+        final boolean requiresNetwork = (this.requiresNetwork || this.requiresUnmetered || this.minBandwidth > 0);
+        if (requiresNetwork && !state.isConnected()) {
+            return false;
+        } else if (this.requiresUnmetered && state.isMetered()) {
+            return false;
+        } else if (this.requiresCharging && !state.isCharging()) {
+            return false;
+        }
+        return this.minBandwidth <= 0 || state.getBandwidth() < 0 || state.getBandwidth() >= this.minBandwidth;
+    }
+
+    /**
+     * Constraints をつくる
+     */
+    public static final class Builder {
+
+        private boolean requiresNetwork;
+        private boolean requiresUnmetered;
+        private boolean requiresCharging;
+        private int minBandwidth;
+
+        /**
+         * 通信できることだけを条件にする設定から始める
+         */
+        public Builder() {
+            this.requiresNetwork = true;
+        }
+
+        @NonNull
+        public Constraints build() {
+            return new Constraints(this);
+        }
+
+        /**
+         * @param requiresNetwork true なら通信できるときだけ送信する
+         * @return this
+         */
+        @NonNull
+        public Builder setRequiresNetwork(boolean requiresNetwork) {
+            this.requiresNetwork = requiresNetwork;
+            return this;
+        }
+
+        /**
+         * @param requiresUnmetered true なら Wi-Fi など従量制でない回線のときだけ送信する
+         * @return this
+         */
+        @NonNull
+        public Builder setRequiresUnmetered(boolean requiresUnmetered) {
+            this.requiresUnmetered = requiresUnmetered;
+            return this;
+        }
+
+        /**
+         * @param requiresCharging true なら充電中だけ送信する
+         * @return this
+         */
+        @NonNull
+        public Builder setRequiresCharging(boolean requiresCharging) {
+            this.requiresCharging = requiresCharging;
+            return this;
+        }
+
+        /**
+         * @param minBandwidth 送信に要る上り帯域（kbps）。0 なら問わない
+         * @return this
+         */
+        @NonNull
+        public Builder setMinBandwidth(int minBandwidth) {
+            this.minBandwidth = Math.max(0, minBandwidth);
+            return this;
+        }
+
+    }
+
+}
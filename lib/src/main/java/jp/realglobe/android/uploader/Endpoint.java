@@ -0,0 +1,362 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.MalformedURLException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 同じ受け口を持つ複数の基底 URL をまとめたもの。
+ * 送信のたびに、最近の応答時間の指数移動平均に反比例する確率で選ぶので、遅いものにも時々送って測り直す。
+ * 応答時間は接続と、書き出し終わってから応答が来るまでの時間で、送信データの大きさには左右されない。
+ * 接続できなければ同じ送信の中で次の基底 URL を試す。
+ * 接続した後の失敗では、届いているかもしれないので次を試さない。
+ * Request.recordConnect で接続を報告しない Transport では、タイムアウトも接続の失敗として扱う。
+ * 失敗が続いた基底 URL はしばらく選ばない。
+ * Entry に設定すると、その URL のうち基底 URL の部分を選んだものに置き換えて送る
+ */
+public final class Endpoint {
+
+    private static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    private static final long DEFAULT_OPEN_DURATION = 30_000; // ミリ秒
+    private static final double DEFAULT_SMOOTHING = 0.3;
+
+    /**
+     * 基底 URL を 1 つ使って送る処理
+     */
+    interface Call {
+        @NonNull
+        Response send(@NonNull URL url) throws IOException;
+    }
+
+    private static final class Node {
+
+        private final URL base;
+        private final String prefix;
+
+        private double latency; // ナノ秒。まだ測っていなければ 0
+        private int failures;
+        private long openUntil; // System.nanoTime()。0 なら閉じている
+
+        private Node(@NonNull URL base) {
+            this.base = base;
+            final String url = base.toString();
+            this.prefix = (url.endsWith("/") ? url.substring(0, url.length() - 1) : url);
+        }
+
+        private boolean isOpen(long now) {
+            return this.openUntil != 0 && now - this.openUntil < 0;
+        }
+
+    }
+
+    private final Node[] nodes;
+    private final int failureThreshold;
+    private final long openDuration; // ナノ秒
+    private final double smoothing;
+    private final Random random;
+
+    private Endpoint(@NonNull Builder builder) {
+        this.nodes = new Node[builder.urls.size()];
+        for (int i = 0; i < this.nodes.length; i++) {
+            this.nodes[i] = new Node(builder.urls.get(i));
+        }
+        this.failureThreshold = builder.failureThreshold;
+        this.openDuration = builder.openDuration * 1_000_000L;
+        this.smoothing = builder.smoothing;
+        this.random = new Random();
+    }
+
+    /**
+     * @param path 基底 URL からの相対パス
+     * @return 最初の基底 URL に path を付けた URL。Entry の setUrl に渡す
+     * @throws IllegalArgumentException URL にできなかった
+     */
+    @NonNull
+    public URL url(@NonNull String path) {
+        final String prefix = this.nodes[0].prefix;
+        try {
+            return new URL(path.startsWith("/") ? prefix + path : prefix + "/" + path);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * @return 休ませているものを後ろにして、測った応答時間が短い順に並べた基底 URL。
+     * 実際の送信では、応答時間に応じた確率で入れ替わる
+     */
+    @NonNull
+    public List<URL> getOrder() {
+        final List<URL> order = new ArrayList<>();
+        for (final Node node : candidates(false)) {
+            order.add(node.base);
+        }
+        return order;
+    }
+
+    /**
+     * 休み明けのものを 1 回試すために先頭に置き、
+     * 後は最近失敗していないもの、失敗したものの順に、それぞれ測った応答時間が短い順に並べる。
+     * まだ測っていないものは試すために前に置く。
+     * 休ませているものは除くが、全部休ませているなら、休み明けが近い順に全部並べる
+     *
+     * @param probe 送信に使うなら true。休み明けのものを試し、試している間はまた休ませて、他の送信では選ばない。
+     *              最近失敗していないものは、応答時間に反比例する確率で並べ替える
+     */
+    @NonNull
+    private synchronized List<Node> candidates(boolean probe) {
+        final long now = System.nanoTime();
+        final List<Node> probes = new ArrayList<>();
+        final List<Node> healthy = new ArrayList<>(this.nodes.length);
+        final List<Node> suspect = new ArrayList<>();
+        for (final Node node : this.nodes) {
+            if (node.isOpen(now)) {
+                continue;
+            } else if (node.failures >= this.failureThreshold) {
+                probes.add(node);
+                if (probe) {
+                    open(node, now);
+                }
+            } else if (node.failures > 0) {
+                suspect.add(node);
+            } else {
+                healthy.add(node);
+            }
+        }
+
+        final List<Node> candidates = new ArrayList<>(this.nodes.length);
+        if (probes.isEmpty() && healthy.isEmpty() && suspect.isEmpty()) {
+            Collections.addAll(candidates, this.nodes);
+            Collections.sort(candidates, (Node a, Node b) -> Long.compare(a.openUntil - now, b.openUntil - now));
+            return candidates;
+        }
+        // 安定ソートなので、同じなら登録順になる
+        Collections.sort(healthy, (Node a, Node b) -> Double.compare(a.latency, b.latency));
+        Collections.sort(suspect, (Node a, Node b) -> Double.compare(a.latency, b.latency));
+        if (probe) {
+            shuffle(healthy);
+        }
+        candidates.addAll(probes);
+        candidates.addAll(healthy);
+        candidates.addAll(suspect);
+        return candidates;
+    }
+
+    /**
+     * 応答時間で並べた nodes を、応答時間に反比例する重みで引いた順に並べ替える。
+     * まだ測っていないものは先頭のまま残す
+     */
+    private void shuffle(@NonNull List<Node> nodes) {
+        int measured = 0;
+        while (measured < nodes.size() && nodes.get(measured).latency == 0) {
+            measured++;
+        }
+        for (int i = measured; i < nodes.size() - 1; i++) {
+            double total = 0;
+            for (int j = i; j < nodes.size(); j++) {
+                total += 1 / nodes.get(j).latency;
+            }
+            double point = this.random.nextDouble() * total;
+            int picked = i;
+            while (picked < nodes.size() - 1) {
+                point -= 1 / nodes.get(picked).latency;
+                if (point < 0) {
+                    break;
+                }
+                picked++;
+            }
+            nodes.add(i, nodes.remove(picked));
+        }
+    }
+
+    private void open(@NonNull Node node, long now) {
+        node.openUntil = now + this.openDuration;
+        if (node.openUntil == 0) {
+            node.openUntil = 1;
+        }
+    }
+
+    private synchronized void recordSuccess(@NonNull Node node, long nanos) {
+        node.latency = (node.latency == 0 ? nanos : this.smoothing * nanos + (1 - this.smoothing) * node.latency);
+        node.failures = 0;
+        node.openUntil = 0;
+    }
+
+    private synchronized void recordFailure(@NonNull Node node) {
+        node.failures++;
+        if (node.failures >= this.failureThreshold) {
+            // 休み明けに 1 回失敗したら、また休ませる
+            open(node, System.nanoTime());
+        }
+    }
+
+    /**
+     * @return url の基底 URL 部分を node のものに置き換えた URL。どの基底 URL の下でもなければ url
+     */
+    @NonNull
+    private URL rewrite(@NonNull URL url, @NonNull Node node) throws IOException {
+        final String target = url.toString();
+        for (final Node other : this.nodes) {
+            if (target.startsWith(other.prefix)
+                    && (target.length() == other.prefix.length() || "/?#".indexOf(target.charAt(other.prefix.length())) >= 0)) {
+                return (other == node ? url : new URL(node.prefix + target.substring(other.prefix.length())));
+            }
+        }
+        return url;
+    }
+
+    /**
+     * @param connected 送信先が接続を報告していたら true
+     * @return 接続する前の失敗で、送信データは届いていないなら true
+     */
+    private static boolean isConnectFailure(@NonNull IOException e, boolean connected) {
+        if (e instanceof ConnectException || e instanceof UnknownHostException || e instanceof NoRouteToHostException) {
+            return true;
+        }
+        return e instanceof SocketTimeoutException && !connected;
+    }
+
+    /**
+     * 選んだ基底 URL に送り、接続できなければ次を試す。
+     * 5xx の応答は失敗として数えるが、そのまま返して再送は RetryPolicy に任せる
+     *
+     * @param url        送信先。いずれかの基底 URL の下にあるもの
+     * @param repeatable 同じ送信データを何度でも書き出せるなら true。false なら次を試さない
+     * @param watch      取り消されたり期限を過ぎたりしたら次を試さない
+     * @param metrics    call の送信で報告される計測値。試すたびに接続などの値を消してから送る
+     * @param call       送る処理
+     * @return 応答
+     * @throws IOException どの基底 URL にも送れなかった。最後の例外
+     */
+    @NonNull
+    Response execute(@NonNull URL url, boolean repeatable, @NonNull Watchdog.Watch watch, @NonNull PostMetrics metrics,
+                     @NonNull Call call) throws IOException {
+        IOException error = null;
+        for (final Node node : candidates(true)) {
+            metrics.connect = 0;
+            metrics.write = 0;
+            metrics.firstByte = 0;
+            metrics.bytesSent = 0;
+            final long start = System.nanoTime();
+            final Response response;
+            try {
+                response = call.send(rewrite(url, node));
+            } catch (IOException e) {
+                if (watch.isStopped()) {
+                    // 切ったのはこちらなので、失敗に数えない
+                    throw e;
+                }
+                recordFailure(node);
+                if (!repeatable || !isConnectFailure(e, metrics.connect > 0)) {
+                    throw e;
+                }
+                error = e;
+                continue;
+            }
+            if (response.getStatus() / 100 == 5) {
+                recordFailure(node);
+            } else {
+                final long latency = metrics.connect + metrics.firstByte;
+                // 報告されなければ全体の時間で代える
+                recordSuccess(node, (latency > 0 ? latency : System.nanoTime() - start));
+            }
+            return response;
+        }
+        throw error;
+    }
+
+    /**
+     * Endpoint をつくる
+     */
+    public static final class Builder {
+
+        private final List<URL> urls;
+        private int failureThreshold;
+        private long openDuration;
+        private double smoothing;
+
+        public Builder() {
+            this.urls = new ArrayList<>();
+            this.failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+            this.openDuration = DEFAULT_OPEN_DURATION;
+            this.smoothing = DEFAULT_SMOOTHING;
+        }
+
+        /**
+         * @return Endpoint
+         * @throws IllegalStateException 基底 URL が 1 つも無い
+         */
+        @NonNull
+        public Endpoint build() {
+            if (this.urls.isEmpty()) {
+                throw new IllegalStateException("no url");
+            }
+            return new Endpoint(this);
+        }
+
+        /**
+         * 応答時間が同じなら、先に加えたものを選ぶ
+         *
+         * @param base 基底 URL。例えば https://ingest1.example.com/api
+         * @return this
+         */
+        @NonNull
+        public Builder addUrl(@NonNull URL base) {
+            this.urls.add(base);
+            return this;
+        }
+
+        /**
+         * @param failureThreshold 続けてこの回数失敗したら休ませる
+         * @param openDuration     休ませる時間（ミリ秒）。過ぎたらまた 1 回試す
+         * @return this
+         */
+        @NonNull
+        public Builder setCircuitBreaker(int failureThreshold, long openDuration) {
+            this.failureThreshold = Math.max(1, failureThreshold);
+            this.openDuration = Math.max(0, openDuration);
+            return this;
+        }
+
+        /**
+         * @param smoothing 応答時間の指数移動平均で、新しい値に掛ける重み。0 より大きく 1 以下
+         * @return this
+         */
+        @NonNull
+        public Builder setSmoothing(double smoothing) {
+            if (!(smoothing > 0 && smoothing <= 1)) {
+                throw new IllegalArgumentException("smoothing must be in (0, 1]: " + smoothing);
+            }
+            this.smoothing = smoothing;
+            return this;
+        }
+
+    }
+
+}
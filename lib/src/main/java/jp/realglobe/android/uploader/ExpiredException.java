@@ -0,0 +1,32 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.NonNull;
+
+import java.net.URL;
+
+/**
+ * 有効期限内に送信を始められなかったので、送信しなかった
+ */
+public class ExpiredException extends Exception {
+
+    ExpiredException(@NonNull URL url, long timeToLive) {
+        super("not sent within " + timeToLive + " ms: " + url);
+    }
+
+}
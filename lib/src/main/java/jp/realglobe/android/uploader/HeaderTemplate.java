@@ -0,0 +1,402 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import android.util.Base64;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 検査と正規化を済ませた変更できない HTTP ヘッダ。
+ * HTTP では名前の大文字小文字を区別しないので、Builder で小文字にそろえる。
+ * Map としては普通の Map と同じく大文字小文字を区別し、equals と hashCode は他の Map と比べられる。
+ * 多くの Entry で同じものを共有し、Entry ごとの違いは with で差分として持つ
+ */
+public final class HeaderTemplate extends AbstractMap<String, String> {
+
+    /**
+     * 空のヘッダ
+     */
+    public static final HeaderTemplate EMPTY = new HeaderTemplate(null, new String[0], new String[0]);
+
+    private static final String CONTENT_TYPE = "content-type";
+    private static final String AUTHORIZATION = "authorization";
+
+    // base の上に names, values を上書きする。base は土台で、それ自身は base を持たない
+    private final HeaderTemplate base;
+    private final String[] names;
+    private final String[] values;
+
+    // 変更できないので、一度つくったら使い回す
+    private volatile Set<Map.Entry<String, String>> entrySet;
+    private int hash;
+
+    private HeaderTemplate(@Nullable HeaderTemplate base, @NonNull String[] names, @NonNull String[] values) {
+        this.base = base;
+        this.names = names;
+        this.values = values;
+    }
+
+    /**
+     * @param header HTTP ヘッダ。null なら空
+     * @return header を検査して HeaderTemplate にしたもの。header が HeaderTemplate ならそのまま
+     * @throws IllegalArgumentException 名前か値に使えない文字が含まれていた
+     */
+    @NonNull
+    public static HeaderTemplate of(@Nullable Map<String, String> header) {
+        if (header instanceof HeaderTemplate) {
+            return (HeaderTemplate) header;
+        } else if (header == null || header.isEmpty()) {
+            return EMPTY;
+        }
+        return (new Builder()).setAll(header).build();
+    }
+
+    /**
+     * 1 つだけ違うヘッダをつくる。元のヘッダはコピーせず共有する
+     *
+     * @param name  名前
+     * @param value 値
+     * @return name を value にしたヘッダ。既にそうなっていれば this
+     * @throws IllegalArgumentException 名前か値に使えない文字が含まれていた
+     */
+    @NonNull
+    public HeaderTemplate with(@NonNull String name, @NonNull String value) {
+        return with(Collections.singletonMap(name, value));
+    }
+
+    /**
+     * いくつか違うヘッダをつくる。元のヘッダはコピーせず共有する
+     *
+     * @param header 上書きするヘッダ
+     * @return header で上書きしたヘッダ。既にそうなっていれば this
+     * @throws IllegalArgumentException 名前か値に使えない文字が含まれていた
+     */
+    @NonNull
+    public HeaderTemplate with(@NonNull Map<String, String> header) {
+        final Builder delta = (new Builder()).setAll(header);
+        for (int i = delta.names.size() - 1; i >= 0; i--) {
+            if (delta.values.get(i).equals(get(delta.names.get(i)))) {
+                delta.remove(i);
+            }
+        }
+        if (delta.names.isEmpty()) {
+            return this;
+        } else if (this.base == null) {
+            return new HeaderTemplate(this, toArray(delta.names), toArray(delta.values));
+        }
+
+        // 差分の差分はつくらず、土台の上の 1 つの差分にまとめる
+        for (int i = 0; i < this.names.length; i++) {
+            if (delta.indexOf(this.names[i]) < 0) {
+                delta.add(this.names[i], this.values[i]);
+            }
+        }
+        return new HeaderTemplate(this.base, toArray(delta.names), toArray(delta.values));
+    }
+
+    /**
+     * @return 土台のヘッダ。差分でなければ null
+     */
+    @Nullable
+    HeaderTemplate base() {
+        return this.base;
+    }
+
+    /**
+     * @return 土台を除いた、このヘッダ自身が持つ項目の数
+     */
+    int fieldCount() {
+        return this.names.length;
+    }
+
+    @NonNull
+    String name(int index) {
+        return this.names[index];
+    }
+
+    @NonNull
+    String value(int index) {
+        return this.values[index];
+    }
+
+    /**
+     * @param key 名前。小文字で指定する
+     * @return 値。無ければ null
+     */
+    @Override
+    @Nullable
+    public String get(@Nullable Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        final int index = indexOf(this.names, (String) key);
+        if (index >= 0) {
+            return this.values[index];
+        }
+        return (this.base != null ? this.base.get(key) : null);
+    }
+
+    @Override
+    public boolean containsKey(@Nullable Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    @NonNull
+    public Set<Map.Entry<String, String>> entrySet() {
+        Set<Map.Entry<String, String>> entrySet = this.entrySet;
+        if (entrySet == null) {
+            final Map<String, String> all = new LinkedHashMap<>();
+            if (this.base != null) {
+                for (int i = 0; i < this.base.names.length; i++) {
+                    if (indexOf(this.names, this.base.names[i]) < 0) {
+                        all.put(this.base.names[i], this.base.values[i]);
+                    }
+                }
+            }
+            for (int i = 0; i < this.names.length; i++) {
+                all.put(this.names[i], this.values[i]);
+            }
+            entrySet = Collections.unmodifiableMap(all).entrySet();
+            this.entrySet = entrySet;
+        }
+        return entrySet;
+    }
+
+    @Override
+    public boolean equals(@Nullable Object o) {
+        return this == o || super.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = this.hash;
+        if (hash == 0) {
+            hash = super.hashCode();
+            this.hash = hash;
+        }
+        return hash;
+    }
+
+    private static int indexOf(@NonNull String[] names, @NonNull String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @NonNull
+    private static String[] toArray(@NonNull List<String> list) {
+        return list.toArray(new String[0]);
+    }
+
+    /**
+     * @param name ヘッダの名前
+     * @return RFC 7230 の token なら true
+     */
+    private static boolean isToken(@NonNull String name) {
+        if (name.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            if (c <= ' ' || c >= 0x7f || "\"(),/:;<=>?@[\\]{}".indexOf(c) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param value ヘッダの値
+     * @return 前後の空白を除いた値
+     * @throws IllegalArgumentException 改行などの制御文字が含まれていた
+     */
+    @NonNull
+    private static String normalizeValue(@NonNull String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if ((c < ' ' && c != '\t') || c == 0x7f) {
+                throw new IllegalArgumentException("illegal character " + (int) c + " in header value");
+            }
+        }
+        return value.trim();
+    }
+
+    /**
+     * HeaderTemplate をつくる。
+     * 名前と値は設定するときに検査し、名前は小文字にする
+     */
+    public static final class Builder {
+
+        private final List<String> names;
+        private final List<String> values;
+
+        public Builder() {
+            this.names = new ArrayList<>();
+            this.values = new ArrayList<>();
+        }
+
+        /**
+         * @param base 元にするヘッダ
+         */
+        public Builder(@NonNull Map<String, String> base) {
+            this();
+            setAll(base);
+        }
+
+        @NonNull
+        public HeaderTemplate build() {
+            if (this.names.isEmpty()) {
+                return EMPTY;
+            }
+            return new HeaderTemplate(null, toArray(this.names), toArray(this.values));
+        }
+
+        /**
+         * 大文字小文字だけが違う名前が既にあれば置き換える
+         *
+         * @param name  名前。小文字にする
+         * @param value 値。前後の空白は除く
+         * @return this
+         * @throws IllegalArgumentException 名前か値に使えない文字が含まれていた
+         */
+        @NonNull
+        public Builder set(@NonNull String name, @NonNull String value) {
+            if (!isToken(name)) {
+                throw new IllegalArgumentException("illegal header name: " + name);
+            }
+            final String lower = name.toLowerCase(Locale.US);
+            final String normalized = normalizeValue(value);
+            final int index = indexOf(lower);
+            if (index >= 0) {
+                this.values.set(index, normalized);
+            } else {
+                add(lower, normalized);
+            }
+            return this;
+        }
+
+        /**
+         * @param header 設定するヘッダ
+         * @return this
+         * @throws IllegalArgumentException 名前か値に使えない文字が含まれていた
+         */
+        @NonNull
+        public Builder setAll(@NonNull Map<String, String> header) {
+            if (header instanceof HeaderTemplate) {
+                // 検査済みで、名前も小文字になっている
+                for (final Map.Entry<String, String> field : header.entrySet()) {
+                    final int index = indexOf(field.getKey());
+                    if (index >= 0) {
+                        this.values.set(index, field.getValue());
+                    } else {
+                        add(field.getKey(), field.getValue());
+                    }
+                }
+                return this;
+            }
+            for (final Map.Entry<String, String> field : header.entrySet()) {
+                set(field.getKey(), field.getValue());
+            }
+            return this;
+        }
+
+        /**
+         * @param name 名前。大文字小文字は区別しない
+         * @return this
+         */
+        @NonNull
+        public Builder remove(@NonNull String name) {
+            final int index = indexOf(name.toLowerCase(Locale.US));
+            if (index >= 0) {
+                remove(index);
+            }
+            return this;
+        }
+
+        /**
+         * @param mimeType 例えば application/json
+         * @param charset  文字コード。null なら付けない
+         * @return this
+         */
+        @NonNull
+        public Builder setContentType(@NonNull String mimeType, @Nullable String charset) {
+            return set(CONTENT_TYPE, (charset != null ? mimeType + "; charset=" + charset.toLowerCase(Locale.US) : mimeType));
+        }
+
+        /**
+         * Basic 認証の値はここで一度だけ符号化する
+         *
+         * @param user     利用者名
+         * @param password パスワード
+         * @return this
+         */
+        @NonNull
+        public Builder setBasicAuth(@NonNull String user, @NonNull String password) {
+            final byte[] credentials = (user + ":" + password).getBytes(StandardCharsets.UTF_8);
+            return set(AUTHORIZATION, "Basic " + Base64.encodeToString(credentials, Base64.NO_WRAP));
+        }
+
+        /**
+         * @param token アクセストークン
+         * @return this
+         */
+        @NonNull
+        public Builder setBearerAuth(@NonNull String token) {
+            return set(AUTHORIZATION, "Bearer " + token);
+        }
+
+        /**
+         * @param name 小文字の名前
+         */
+        private int indexOf(@NonNull String name) {
+            for (int i = 0; i < this.names.size(); i++) {
+                if (this.names.get(i).equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void add(@NonNull String name, @NonNull String value) {
+            this.names.add(name);
+            this.values.add(value);
+        }
+
+        private void remove(int index) {
+            this.names.remove(index);
+            this.values.remove(index);
+        }
+
+    }
+
+}
@@ -0,0 +1,771 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * 送信待ちの Entry を保存する追記型のジャーナル。
+ * プロセスが終了しても、未送信の Entry は次回 Poster.replay で送り直せる。
+ * 関数は保存できないので、送り直すときに指定し直す。
+ * 再送の仕方、Endpoint、送信条件、応答の処理も保存しないので、送り直すときは Poster の既定のものになる。
+ * 有効期限は記録した時刻からの残りで送り直す。
+ * ファイルの送信データは複製せずに場所だけを記録するので、送信が済むまで書き換えたり消したりしないこと
+ */
+public class Journal implements Closeable {
+
+    private static final String FILE_NAME = "journal";
+    private static final String TMP_FILE_NAME = "journal.tmp";
+
+    private static final int TYPE_ADD = 1;
+    private static final int TYPE_ACK = 2;
+
+    // 送信データの断片の種類
+    private static final int SEGMENT_INLINE = 0; // ジャーナル中に複製した
+    private static final int SEGMENT_FILE = 1; // ファイルの範囲
+    private static final int SEGMENT_URI = 2; // ContentResolver で開く Uri
+
+    private static final int MAX_META_LENGTH = 1024 * 1024;
+
+    private static final int DEFAULT_SYNC_COUNT = 32;
+    private static final long DEFAULT_SYNC_INTERVAL = 1_000; // ミリ秒
+
+    // 捨てられる部分がこれ以上かつ有効な部分より大きくなったら詰める
+    private static final long COMPACTION_THRESHOLD = 1024 * 1024;
+
+    /**
+     * 保存された Entry
+     */
+    static final class Record {
+
+        final long id;
+        final URL url;
+        final Map<String, String> header;
+        final int timeout;
+        final int readTimeout;
+        final int writeTimeout;
+        final long deadline;
+        final String orderKey;
+        final int compressionLevel;
+        final long compressionMinLength;
+        final int priority;
+        final long expiresAt; // System.currentTimeMillis。無期限なら 0
+        final String coalesceKey;
+        final int responseLimit;
+
+        private final long bodyLength;
+        private final List<Segment> segments;
+        private long offset;
+        private long bodyOffset; // 複製した送信データの先頭
+        private long end;
+        private boolean claimed;
+
+        private Record(long id, @NonNull DataInputStream input) throws IOException {
+            this.id = id;
+            this.url = new URL(input.readUTF());
+            this.timeout = input.readInt();
+            this.readTimeout = input.readInt();
+            this.writeTimeout = input.readInt();
+            this.deadline = input.readLong();
+            this.orderKey = readNullableUTF(input);
+            this.compressionLevel = input.readInt();
+            this.compressionMinLength = input.readLong();
+            this.priority = input.readInt();
+            this.expiresAt = input.readLong();
+            this.coalesceKey = readNullableUTF(input);
+            this.responseLimit = input.readInt();
+            final int headerSize = input.readInt();
+            final Map<String, String> header = new HashMap<>();
+            for (int i = 0; i < headerSize; i++) {
+                header.put(input.readUTF(), input.readUTF());
+            }
+            this.header = Collections.unmodifiableMap(header);
+            this.bodyLength = input.readLong();
+            final int segmentCount = input.readInt();
+            this.segments = new ArrayList<>(segmentCount);
+            for (int i = 0; i < segmentCount; i++) {
+                this.segments.add(new Segment(input.readByte(), readNullableUTF(input), input.readLong(), input.readLong()));
+            }
+        }
+
+        boolean hasBody() {
+            return this.bodyLength >= 0;
+        }
+
+        /**
+         * @return 保存した設定を写した EntryBuilder。送信データと関数は設定していない
+         */
+        @NonNull
+        Poster.BasicEntryBuilder newBuilder() {
+            final Poster.BasicEntryBuilder builder = (new Poster.BasicEntryBuilder())
+                    .setUrl(this.url)
+                    .setHeader(this.header)
+                    .setTimeout(this.timeout)
+                    .setReadTimeout(this.readTimeout)
+                    .setWriteTimeout(this.writeTimeout)
+                    .setDeadline(this.deadline)
+                    .setOrderKey(this.orderKey)
+                    .setCompression(this.compressionLevel, this.compressionMinLength)
+                    .setPriority(this.priority)
+                    .setCoalesceKey(this.coalesceKey)
+                    .setResponseLimit(this.responseLimit);
+            if (this.expiresAt > 0) {
+                // 切れていてもすぐに期限切れになるように正にする
+                builder.setTimeToLive(Math.max(1, this.expiresAt - System.currentTimeMillis()));
+            }
+            return builder;
+        }
+
+        private long inlineLength() {
+            long length = 0;
+            for (final Segment segment : this.segments) {
+                if (segment.type == SEGMENT_INLINE) {
+                    length += segment.length;
+                }
+            }
+            return length;
+        }
+
+        private long size() {
+            return this.end - this.offset;
+        }
+
+        private void move(long delta) {
+            this.offset += delta;
+            this.bodyOffset += delta;
+            this.end += delta;
+        }
+
+    }
+
+    /**
+     * 送信データの断片
+     */
+    private static final class Segment {
+
+        final int type;
+        final String name; // ファイルのパスか Uri。複製したなら null
+        final long offset; // 複製したなら複製した送信データの中の位置
+        final long length;
+
+        private Segment(int type, @Nullable String name, long offset, long length) {
+            this.type = type;
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+        }
+
+    }
+
+    private final File file;
+    private final File tmpFile;
+
+    private final Map<Long, Record> records;
+    private long nextId;
+
+    private FileOutputStream fileOutput;
+    private DataOutputStream output;
+    private long size;
+    private long liveSize;
+
+    private int syncCount;
+    private long syncInterval;
+    private int unsynced;
+    private long lastSync;
+
+    private ContentResolver resolver;
+
+    /**
+     * 既存のジャーナルがあれば読み込む。
+     * 書き込み途中で壊れた末尾は捨てる
+     *
+     * @param directory 保存先ディレクトリ
+     * @throws IOException 読み書きできなかった
+     */
+    public Journal(@NonNull File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        this.file = new File(directory, FILE_NAME);
+        this.tmpFile = new File(directory, TMP_FILE_NAME);
+        this.records = new LinkedHashMap<>();
+        this.syncCount = DEFAULT_SYNC_COUNT;
+        this.syncInterval = DEFAULT_SYNC_INTERVAL;
+
+        load();
+        open();
+        this.lastSync = System.nanoTime();
+    }
+
+    /**
+     * ディスクへの同期をまとめる単位を設定する。
+     * どちらかを満たしたら、Poster の送信スレッドが次に送信するときか、暇になったときに同期する。
+     * 記録するスレッドでは同期しない
+     *
+     * @param count    同期せずに溜める記録数
+     * @param interval 同期せずに溜める時間（ミリ秒）
+     * @return this
+     */
+    @NonNull
+    public synchronized Journal setSyncPolicy(int count, long interval) {
+        this.syncCount = Math.max(1, count);
+        this.syncInterval = Math.max(0, interval);
+        return this;
+    }
+
+    /**
+     * 設定すると、Uri の送信データも複製せずに Uri だけを記録する。
+     * その場合、送り直すときにも読める Uri であること
+     *
+     * @param resolver Uri の送信データを読み直すのに使う。null なら Uri の送信データは複製する
+     * @return this
+     */
+    @NonNull
+    public synchronized Journal setContentResolver(@Nullable ContentResolver resolver) {
+        this.resolver = resolver;
+        return this;
+    }
+
+    synchronized long getSyncInterval() {
+        return this.syncInterval;
+    }
+
+    /**
+     * @return 送信が確認されていない Entry の数
+     */
+    public synchronized int size() {
+        return this.records.size();
+    }
+
+    private void load() throws IOException {
+        if (!this.file.exists()) {
+            return;
+        }
+
+        final long fileLength = this.file.length();
+        long valid = 0;
+        try (final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)))) {
+            while (true) {
+                final int type = input.read();
+                if (type < 0) {
+                    break;
+                }
+                final long id = input.readLong();
+                if (type == TYPE_ACK) {
+                    final Record record = this.records.remove(id);
+                    if (record != null) {
+                        this.liveSize -= record.size();
+                    }
+                    valid += 1 + 8;
+                    continue;
+                } else if (type != TYPE_ADD) {
+                    break;
+                }
+
+                final int metaLength = input.readInt();
+                final int crc = input.readInt();
+                if (metaLength < 0 || metaLength > MAX_META_LENGTH) {
+                    break;
+                }
+                final byte[] meta = new byte[metaLength];
+                input.readFully(meta);
+                if (crc != crc(meta)) {
+                    break;
+                }
+                final long inlineLength = input.readLong();
+                skipFully(input, inlineLength);
+
+                final Record record = decode(id, meta);
+                if (record.inlineLength() != inlineLength) {
+                    break;
+                }
+                record.offset = valid;
+                record.end = valid + 1 + 8 + 4 + 4 + metaLength + 8 + inlineLength;
+                record.bodyOffset = record.end - inlineLength;
+                if (record.end > fileLength) {
+                    // 飛ばすだけでは末尾を越えても気付かない
+                    break;
+                }
+                this.records.put(id, record);
+                this.liveSize += record.size();
+                this.nextId = Math.max(this.nextId, id + 1);
+                valid = record.end;
+            }
+        } catch (EOFException e) {
+            // 書き込み途中で終わっている
+        }
+
+        if (valid < fileLength) {
+            try (final FileOutputStream output = new FileOutputStream(this.file, true)) {
+                output.getChannel().truncate(valid);
+            }
+        }
+        this.size = valid;
+    }
+
+    private void open() throws IOException {
+        this.fileOutput = new FileOutputStream(this.file, true);
+        this.output = new DataOutputStream(new BufferedOutputStream(this.fileOutput));
+    }
+
+    private static void skipFully(@NonNull DataInputStream input, long n) throws IOException {
+        while (n > 0) {
+            final long skipped = input.skip(n);
+            if (skipped <= 0) {
+                if (input.read() < 0) {
+                    throw new EOFException();
+                }
+                n--;
+            } else {
+                n -= skipped;
+            }
+        }
+    }
+
+    private static int crc(@NonNull byte[] data) {
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    private static void writeNullableUTF(@NonNull DataOutputStream output, @Nullable String value) throws IOException {
+        output.writeBoolean(value != null);
+        if (value != null) {
+            output.writeUTF(value);
+        }
+    }
+
+    @Nullable
+    private static String readNullableUTF(@NonNull DataInputStream input) throws IOException {
+        return (input.readBoolean() ? input.readUTF() : null);
+    }
+
+    @NonNull
+    private static byte[] encode(@NonNull Poster.Entry entry, @NonNull List<Segment> segments) throws IOException {
+        final ByteArrayOutputStream buff = new ByteArrayOutputStream();
+        try (final DataOutputStream output = new DataOutputStream(buff)) {
+            output.writeUTF(entry.url.toString());
+            output.writeInt(entry.timeout);
+            output.writeInt(entry.readTimeout);
+            output.writeInt(entry.writeTimeout);
+            output.writeLong(entry.deadline);
+            writeNullableUTF(output, entry.orderKey);
+            output.writeInt(entry.compressionLevel);
+            output.writeLong(entry.compressionMinLength);
+            output.writeInt(entry.priority);
+            output.writeLong(entry.timeToLive > 0 ? System.currentTimeMillis() + entry.timeToLive : 0);
+            writeNullableUTF(output, entry.coalesceKey);
+            output.writeInt(entry.responseLimit);
+            output.writeInt(entry.header.size());
+            for (final Map.Entry<String, String> field : entry.header.entrySet()) {
+                output.writeUTF(field.getKey());
+                output.writeUTF(field.getValue());
+            }
+            output.writeLong(entry.body != null ? entry.body.getLength() : -1);
+            output.writeInt(segments.size());
+            for (final Segment segment : segments) {
+                output.writeByte(segment.type);
+                writeNullableUTF(output, segment.name);
+                output.writeLong(segment.offset);
+                output.writeLong(segment.length);
+            }
+        }
+        return buff.toByteArray();
+    }
+
+    @NonNull
+    private static Record decode(long id, @NonNull byte[] meta) throws IOException {
+        try (final DataInputStream input = new DataInputStream(new ByteArrayInputStream(meta))) {
+            return new Record(id, input);
+        }
+    }
+
+    /**
+     * 送信データ以外の設定を Journal と同じ形式で書く
+     */
+    @NonNull
+    static byte[] encodeMeta(@NonNull Poster.Entry entry) throws IOException {
+        return encode(entry, Collections.<Segment>emptyList());
+    }
+
+    /**
+     * @return encodeMeta で書いた設定を写した EntryBuilder。送信データと関数は設定していない
+     */
+    @NonNull
+    static Poster.BasicEntryBuilder decodeMeta(@NonNull byte[] meta) throws IOException {
+        return decode(0, meta).newBuilder();
+    }
+
+    /**
+     * @return body を記録できるなら true。何度でも書き出せて長さが分かっている必要がある
+     */
+    static boolean canAppend(@Nullable Body body) {
+        return body == null || (body.isRepeatable() && body.getLength() >= 0);
+    }
+
+    /**
+     * 送信データを断片に分ける。
+     * ファイルと、設定があれば Uri は場所だけを記録し、それ以外は inline に加えて複製する
+     */
+    @NonNull
+    private List<Segment> split(@Nullable Body body, @NonNull List<Body> inline) {
+        final List<Segment> segments = new ArrayList<>();
+        if (body == null) {
+            return segments;
+        }
+        final List<Body> parts = new ArrayList<>();
+        Bodies.flatten(body, parts);
+        long inlineLength = 0;
+        for (final Body part : parts) {
+            final Segment segment;
+            if (part instanceof Bodies.FileBody) {
+                final Bodies.FileBody file = (Bodies.FileBody) part;
+                segment = new Segment(SEGMENT_FILE, file.file.getAbsolutePath(), file.offset, file.length);
+            } else if (part instanceof Bodies.UriBody && this.resolver != null) {
+                final Bodies.UriBody uri = (Bodies.UriBody) part;
+                segment = new Segment(SEGMENT_URI, uri.uri.toString(), 0, uri.length);
+            } else {
+                final long length = part.getLength();
+                inline.add(part);
+                final Segment last = (segments.isEmpty() ? null : segments.get(segments.size() - 1));
+                if (last != null && last.type == SEGMENT_INLINE) {
+                    // 続けて複製する断片はまとめる
+                    segments.set(segments.size() - 1, new Segment(SEGMENT_INLINE, null, last.offset, last.length + length));
+                } else {
+                    segments.add(new Segment(SEGMENT_INLINE, null, inlineLength, length));
+                }
+                inlineLength += length;
+                continue;
+            }
+            segments.add(segment);
+        }
+        return segments;
+    }
+
+    /**
+     * Entry を記録する。
+     * body は何度でも書き出せて長さが分かっている必要がある
+     *
+     * @return 記録の ID
+     */
+    synchronized long append(@NonNull Poster.Entry entry) throws IOException {
+        if (!canAppend(entry.body)) {
+            throw new IllegalArgumentException("body cannot be journaled");
+        }
+
+        final List<Body> inline = new ArrayList<>();
+        final byte[] meta = encode(entry, split(entry.body, inline));
+        final long id = this.nextId++;
+        final Record record = decode(id, meta);
+        final long inlineLength = record.inlineLength();
+        final long start = this.size;
+        try {
+            this.output.writeByte(TYPE_ADD);
+            this.output.writeLong(id);
+            this.output.writeInt(meta.length);
+            this.output.writeInt(crc(meta));
+            this.output.write(meta);
+            this.output.writeLong(inlineLength);
+            final CountingOutputStream counter = new CountingOutputStream(this.output);
+            for (final Body part : inline) {
+                part.writeTo(counter);
+            }
+            if (counter.count != inlineLength) {
+                throw new IOException("body length mismatch: " + counter.count + " != " + inlineLength);
+            }
+        } catch (IOException e) {
+            rollback(start);
+            throw e;
+        }
+
+        record.offset = start;
+        record.end = start + 1 + 8 + 4 + 4 + meta.length + 8 + inlineLength;
+        record.bodyOffset = record.end - inlineLength;
+        record.claimed = true;
+        this.records.put(id, record);
+        this.size = record.end;
+        this.liveSize += record.size();
+
+        // 同期は送信スレッドに任せて、ここではプロセスが落ちても残るように書き出すだけ
+        this.output.flush();
+        this.unsynced++;
+        return id;
+    }
+
+    private void rollback(long start) {
+        try {
+            this.output.flush();
+            this.fileOutput.getChannel().truncate(start);
+        } catch (IOException e) {
+            // 壊れた末尾は次に読み込むときに捨てられる
+        }
+    }
+
+    /**
+     * 送信が済んだ、または捨てた記録を消す
+     *
+     * @param id 記録の ID
+     */
+    synchronized void ack(long id) throws IOException {
+        final Record record = this.records.remove(id);
+        if (record == null) {
+            return;
+        }
+        this.liveSize -= record.size();
+
+        this.output.writeByte(TYPE_ACK);
+        this.output.writeLong(id);
+        this.size += 1 + 8;
+
+        this.unsynced++;
+        compactIfNeeded();
+        syncIfNeeded();
+    }
+
+    /**
+     * 送信できなかった記録を、次の claim で返すようにする
+     *
+     * @param id 記録の ID
+     */
+    synchronized void release(long id) {
+        final Record record = this.records.get(id);
+        if (record != null) {
+            record.claimed = false;
+        }
+    }
+
+    /**
+     * @return まだ送信に回していない記録
+     */
+    @NonNull
+    synchronized List<Record> claim() {
+        final List<Record> claimed = new ArrayList<>();
+        for (final Record record : this.records.values()) {
+            if (!record.claimed) {
+                record.claimed = true;
+                claimed.add(record);
+            }
+        }
+        return claimed;
+    }
+
+    /**
+     * @param record 記録
+     * @return 記録された送信データを読みながら書き出す Body
+     */
+    @NonNull
+    Body body(@NonNull Record record) {
+        return new RecordBody(record.id, record.bodyLength);
+    }
+
+    /**
+     * @param id 記録の ID
+     * @return 記録された送信データを読みながら書き出す Body。記録が無いか、送信データが無ければ null
+     */
+    @Nullable
+    synchronized Body body(long id) {
+        final Record record = this.records.get(id);
+        if (record == null || !record.hasBody()) {
+            return null;
+        }
+        return new RecordBody(record.id, record.bodyLength);
+    }
+
+    /**
+     * 溜まっている記録をディスクに同期する
+     *
+     * @throws IOException 書き込めなかった
+     */
+    public synchronized void sync() throws IOException {
+        this.output.flush();
+        this.fileOutput.getFD().sync();
+        this.unsynced = 0;
+        this.lastSync = System.nanoTime();
+    }
+
+    /**
+     * 同期をまとめる単位を満たしていたら同期する
+     */
+    synchronized void syncIfNeeded() throws IOException {
+        if (this.unsynced >= this.syncCount || (this.unsynced > 0 && System.nanoTime() - this.lastSync >= this.syncInterval * 1_000_000L)) {
+            sync();
+        }
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (this.records.isEmpty()) {
+            // 全部送信済みなら空にするだけで良い
+            this.output.flush();
+            this.fileOutput.getChannel().truncate(0);
+            this.size = 0;
+            this.liveSize = 0;
+            return;
+        }
+
+        final long dead = this.size - this.liveSize;
+        if (dead >= COMPACTION_THRESHOLD && dead > this.liveSize) {
+            compact();
+        }
+    }
+
+    private void compact() throws IOException {
+        this.output.flush();
+
+        final List<Long> offsets = new ArrayList<>(this.records.size());
+        long position = 0;
+        try (final FileInputStream input = new FileInputStream(this.file);
+             final FileOutputStream tmp = new FileOutputStream(this.tmpFile)) {
+            final FileChannel source = input.getChannel();
+            final FileChannel target = tmp.getChannel();
+            for (final Record record : this.records.values()) {
+                offsets.add(position);
+                long done = 0;
+                while (done < record.size()) {
+                    final long n = source.transferTo(record.offset + done, record.size() - done, target);
+                    if (n <= 0) {
+                        throw new EOFException("unexpected end of journal");
+                    }
+                    done += n;
+                }
+                position += record.size();
+            }
+            tmp.getFD().sync();
+        }
+
+        this.output.close();
+        if (!this.tmpFile.renameTo(this.file)) {
+            open();
+            throw new IOException("cannot replace " + this.file);
+        }
+        open();
+
+        int i = 0;
+        for (final Record record : this.records.values()) {
+            record.move(offsets.get(i++) - record.offset);
+        }
+        this.size = position;
+        this.liveSize = position;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            this.output.close();
+        }
+    }
+
+    /**
+     * ジャーナル中の送信データ
+     */
+    private final class RecordBody implements Body {
+
+        private final long id;
+        private final long length;
+
+        private RecordBody(long id, long length) {
+            this.id = id;
+            this.length = length;
+        }
+
+        @Override
+        public long getLength() {
+            return this.length;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public void writeTo(@NonNull OutputStream output) throws IOException {
+            final List<Segment> segments;
+            final long bodyOffset;
+            final ContentResolver resolver;
+            FileInputStream journal = null;
+            synchronized (Journal.this) {
+                final Record record = Journal.this.records.get(this.id);
+                if (record == null) {
+                    throw new IOException("record " + this.id + " is already acknowledged");
+                }
+                segments = record.segments;
+                bodyOffset = record.bodyOffset;
+                resolver = Journal.this.resolver;
+                if (record.inlineLength() > 0) {
+                    // 開いた後で詰められても、開いたファイルは元のまま読める
+                    Journal.this.output.flush();
+                    journal = new FileInputStream(Journal.this.file);
+                }
+            }
+            try {
+                for (final Segment segment : segments) {
+                    switch (segment.type) {
+                        case SEGMENT_INLINE:
+                            Bodies.transfer(journal.getChannel(), bodyOffset + segment.offset, segment.length, output);
+                            break;
+                        case SEGMENT_FILE:
+                            Bodies.of(new File(segment.name), segment.offset, segment.length).writeTo(output);
+                            break;
+                        case SEGMENT_URI:
+                            if (resolver == null) {
+                                throw new IOException("no content resolver for " + segment.name);
+                            }
+                            Bodies.of(resolver, Uri.parse(segment.name)).writeTo(output);
+                            break;
+                        default:
+                            throw new IOException("unknown segment type " + segment.type);
+                    }
+                }
+            } finally {
+                if (journal != null) {
+                    journal.close();
+                }
+            }
+        }
+
+    }
+
+}
@@ -19,8 +19,7 @@ package jp.realglobe.android.uploader;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import org.json.JSONObject;
-
+import java.io.IOException;
 import java.net.URL;
 import java.util.HashMap;
 import java.util.Map;
@@ -35,20 +34,55 @@ public class JsonEntryBuilder implements Poster.EntryBuilder {
     private static final String CONTENT_TYPE = "Content-Type";
     private static final String CONTENT_TYPE_JSON = "application/json";
 
-    private static final Map<String, String> requiredHeader;
+    private static final HeaderTemplate requiredHeader = (new HeaderTemplate.Builder())
+            .set(CONTENT_TYPE, CONTENT_TYPE_JSON)
+            .build();
 
-    static {
-        requiredHeader = new HashMap<>();
-        requiredHeader.put(CONTENT_TYPE, CONTENT_TYPE_JSON);
-    }
+    private static final int WRITER_CAPACITY = 1024;
+    // これより大きくなったバッファは使い回さない
+    private static final int MAX_WRITER_CAPACITY = 64 * 1024;
+
+    private static final ThreadLocal<JsonWriter> writers = new ThreadLocal<>();
 
     private Poster.BasicEntryBuilder builder;
+    private boolean recycle;
+
+    // 同じ内容のヘッダを渡され続ける場合に毎回合成し直さない
+    private HeaderTemplate lastHeader;
+    private Map<String, String> lastSource; // lastHeader のもとになった HeaderTemplate でない Map の写し
+    private HeaderTemplate lastAllHeader;
 
     public JsonEntryBuilder() {
         this.builder = new Poster.BasicEntryBuilder();
         this.builder.setHeader(requiredHeader);
     }
 
+    /**
+     * つくり直した直後の状態に戻す。setRecycle の設定は残す。
+     * build の後に reset して使い回して良い
+     *
+     * @return this
+     */
+    @NonNull
+    public JsonEntryBuilder reset() {
+        this.builder.reset();
+        this.builder.setHeader(requiredHeader);
+        return this;
+    }
+
+    /**
+     * setData でつくるデータが小さければ、使い回すバッファに入れ、送信が終わったらバッファを返す。
+     * こうしてつくった Entry は一度だけ post すること
+     *
+     * @param recycle バッファを使い回すなら true
+     * @return this
+     */
+    @NonNull
+    public JsonEntryBuilder setRecycle(boolean recycle) {
+        this.recycle = recycle;
+        return this;
+    }
+
     /**
      * @return POST する内容
      */
@@ -74,11 +108,51 @@ public class JsonEntryBuilder implements Poster.EntryBuilder {
      */
     @NonNull
     public JsonEntryBuilder setData(@NonNull Map<String, Object> data) {
-        this.builder.setData((new JSONObject(data)).toString().getBytes());
+        JsonWriter writer = writers.get();
+        if (writer == null) {
+            writer = new JsonWriter(WRITER_CAPACITY);
+        } else {
+            // 書き出し中に例外が出て残ったままになっている場合もある
+            writers.remove();
+        }
+        writer.reset(null);
+        try {
+            writer.write(data);
+        } catch (IOException e) {
+            // 出力先が無いので起きない
+            throw new IllegalStateException(e);
+        }
+        if (this.recycle && writer.size() <= BufferPool.BUFFER_SIZE) {
+            final byte[] buff = BufferPool.acquire();
+            writer.copyTo(buff);
+            this.builder.setBody(Bodies.pooled(buff, writer.size()));
+        } else {
+            this.builder.setData(writer.toByteArray());
+        }
+        if (writer.capacity() <= MAX_WRITER_CAPACITY) {
+            writers.set(writer);
+        }
         return this;
     }
 
     /**
+     * setData と違い、JSON にするのは送信時で、バイト列をメモリに溜めずに送信先へ直接書き出す。
+     * 送信が終わるまで data を変更しないこと。
+     * 長さが分からないので Journal や Batcher では扱えない
+     *
+     * @param data JSON にして POST するデータ
+     * @return this
+     */
+    @NonNull
+    public JsonEntryBuilder setStreamingData(@NonNull Map<String, Object> data) {
+        this.builder.setBody(Bodies.json(data));
+        return this;
+    }
+
+    /**
+     * 前回と同じ内容のヘッダを渡した場合は、前回合成したものを使い回す。
+     * HeaderTemplate を渡すと、Content-Type だけを差分として持ち、元のヘッダは共有する
+     *
      * @param header HTTP ヘッダ
      * @return this
      */
@@ -89,12 +163,29 @@ public class JsonEntryBuilder implements Poster.EntryBuilder {
             return this;
         }
 
-        final Map<String, String> allHeader = new HashMap<>(header);
-        allHeader.putAll(requiredHeader);
-        this.builder.setHeader(allHeader);
+        if (!isLastHeader(header)) {
+            // 渡された Map が後で変更されても影響を受けないように、HeaderTemplate でなければ写し取る
+            this.lastHeader = HeaderTemplate.of(header);
+            this.lastSource = (header instanceof HeaderTemplate ? null : new HashMap<>(header));
+            this.lastAllHeader = this.lastHeader.with(requiredHeader);
+        }
+        this.builder.setHeader(this.lastAllHeader);
         return this;
     }
 
+    /**
+     * HeaderTemplate は変更できないので、同じインスタンスか、保持しているハッシュ値が違えばすぐに決まる。
+     * それ以外の Map は変更されているかもしれないので、前回の写しと中身を比べる
+     */
+    private boolean isLastHeader(@NonNull Map<String, String> header) {
+        if (header instanceof HeaderTemplate) {
+            return header == this.lastHeader
+                    || (this.lastHeader != null && this.lastSource == null
+                    && this.lastHeader.hashCode() == header.hashCode() && this.lastHeader.equals(header));
+        }
+        return this.lastSource != null && this.lastSource.equals(header);
+    }
+
     /**
      * @param onFinish POST した後で実行する関数
      * @return this
@@ -125,4 +216,146 @@ public class JsonEntryBuilder implements Poster.EntryBuilder {
         return this;
     }
 
+    /**
+     * @param readTimeout 読み込みタイムアウト（ミリ秒）。0 なら無期限。負値なら既定値
+     * @return this
+     */
+    @NonNull
+    public JsonEntryBuilder setReadTimeout(int readTimeout) {
+        this.builder.setReadTimeout(readTimeout);
+        return this;
+    }
+
+    /**
+     * @param writeTimeout 書き込みタイムアウト（ミリ秒）。0 以下なら無期限。既定では掛けない
+     * @return this
+     */
+    @NonNull
+    public JsonEntryBuilder setWriteTimeout(int writeTimeout) {
+        this.builder.setWriteTimeout(writeTimeout);
+        return this;
+    }
+
+    /**
+     * @param deadline 1 回の送信全体の期限（ミリ秒）。0 以下なら無期限
+     * @return this
+     */
+    @NonNull
+    public JsonEntryBuilder setDeadline(long deadline) {
+        this.builder.setDeadline(deadline);
+        return this;
+    }
+
+    /**
+     * @param orderKey 順序キー。同じ順序キーを持つ Entry は post した順に 1 つずつ送信される
+     * @return this
+     */
+    @NonNull
+    public JsonEntryBuilder setOrderKey(@Nullable String orderKey) {
+        this.builder.setOrderKey(orderKey);
+        return this;
+    }
+
+    /**
+     * @param level     gzip の圧縮レベル。0 なら圧縮しない
+     * @param minLength これより短いデータは圧縮しない
+     * @return this
+     * @throws IllegalArgumentException 圧縮レベルが -1 から 9 でなかった
+     */
+    @NonNull
+    public JsonEntryBuilder setCompression(int level, long minLength) {
+        this.builder.setCompression(level, minLength);
+        return this;
+    }
+
+    /**
+     * @param retryPolicy 再送の仕方。null なら Poster に設定したもの
+     * @return this
+     */
+    @NonNull
+    public JsonEntryBuilder setRetryPolicy(@Nullable RetryPolicy retryPolicy) {
+        this.builder.setRetryPolicy(retryPolicy);
+        return this;
+    }
+
+    /**
+     * @param priority 優先度。大きいほど先に送る
+     * @return this
+     */
+    @NonNull
+    public JsonEntryBuilder setPriority(int priority) {
+        this.builder.setPriority(priority);
+        return this;
+    }
+
+    /**
+     * @param timeToLive 有効期間（ミリ秒）。0 以下なら無期限
+     * @return this
+     */
+    @NonNull
+    public JsonEntryBuilder setTimeToLive(long timeToLive) {
+        this.builder.setTimeToLive(timeToLive);
+        return this;
+    }
+
+    /**
+     * @param coalesceKey 置き換えキー。同じキーを持つまだ送信していない Entry を置き換える。null なら置き換えない
+     * @return this
+     */
+    @NonNull
+    public JsonEntryBuilder setCoalesceKey(@Nullable String coalesceKey) {
+        this.builder.setCoalesceKey(coalesceKey);
+        return this;
+    }
+
+    /**
+     * @param limit 応答本体を読み込むバイト数の上限。0 なら読み込まない
+     * @return this
+     */
+    @NonNull
+    public JsonEntryBuilder setResponseLimit(int limit) {
+        this.builder.setResponseLimit(limit);
+        return this;
+    }
+
+    /**
+     * @param responseHandler 応答本体を渡す先。null なら渡さない
+     * @return this
+     */
+    @NonNull
+    public JsonEntryBuilder setResponseHandler(@Nullable ResponseHandler responseHandler) {
+        this.builder.setResponseHandler(responseHandler);
+        return this;
+    }
+
+    /**
+     * @param onResponse 応答を受け取った後で実行する関数
+     * @return this
+     */
+    @NonNull
+    public JsonEntryBuilder setOnResponse(@Nullable Consumer<Response> onResponse) {
+        this.builder.setOnResponse(onResponse);
+        return this;
+    }
+
+    /**
+     * @param constraints UploadScheduler で送信してよい条件。null なら待たせない
+     * @return this
+     */
+    @NonNull
+    public JsonEntryBuilder setConstraints(@Nullable Constraints constraints) {
+        this.builder.setConstraints(constraints);
+        return this;
+    }
+
+    /**
+     * @param endpoint 送信先の候補。setUrl の URL がこの基底 URL の下にあれば、送るたびに基底 URL を選び直す
+     * @return this
+     */
+    @NonNull
+    public JsonEntryBuilder setEndpoint(@Nullable Endpoint endpoint) {
+        this.builder.setEndpoint(endpoint);
+        return this;
+    }
+
 }
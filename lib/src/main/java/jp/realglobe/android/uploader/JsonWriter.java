@@ -0,0 +1,376 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Map や List、プリミティブの組み合わせを JSON の UTF-8 バイト列に書き出す。
+ * 途中で JSONObject や String をつくらず、バッファに直接書く。
+ * バッファが一杯になったら、出力先があればそこへ書き出し、無ければ広げる。
+ * 出力は Android の new JSONObject(map).toString() と同じになるようにしている。
+ * ただし、有限でない数値は JSONObject では toString が null を返すところを、IllegalArgumentException にする
+ */
+final class JsonWriter {
+
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+    private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+    private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+    private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+    // long の最長は符号込みで 20 文字
+    private static final int MAX_LONG_LENGTH = 20;
+
+    private byte[] buff;
+    private int count;
+    @Nullable
+    private OutputStream output;
+
+    /**
+     * @param capacity バッファの初期サイズ
+     */
+    JsonWriter(int capacity) {
+        this(new byte[Math.max(capacity, MAX_LONG_LENGTH)]);
+    }
+
+    /**
+     * 出力先を付けて使う場合、buff より大きく広げることは無い
+     *
+     * @param buff バッファ。MAX_LONG_LENGTH 以上の長さが要る
+     */
+    JsonWriter(@NonNull byte[] buff) {
+        this.buff = buff;
+    }
+
+    /**
+     * 書き出した内容を捨てて、出力先を付け替える
+     *
+     * @param output 出力先。null ならバッファに溜める
+     */
+    void reset(@Nullable OutputStream output) {
+        this.count = 0;
+        this.output = output;
+    }
+
+    /**
+     * @return バッファの大きさ
+     */
+    int capacity() {
+        return this.buff.length;
+    }
+
+    /**
+     * @return バッファに溜まっているバイト数
+     */
+    int size() {
+        return this.count;
+    }
+
+    /**
+     * @param dst バッファに溜まっている内容のコピー先。size 以上の長さが要る
+     */
+    void copyTo(@NonNull byte[] dst) {
+        System.arraycopy(this.buff, 0, dst, 0, this.count);
+    }
+
+    /**
+     * @return バッファに溜まっている内容のコピー
+     */
+    @NonNull
+    byte[] toByteArray() {
+        return Arrays.copyOf(this.buff, this.count);
+    }
+
+    /**
+     * バッファに溜まっている内容を出力先に書き出す
+     */
+    void flush() throws IOException {
+        if (this.output != null && this.count > 0) {
+            this.output.write(this.buff, 0, this.count);
+            this.count = 0;
+        }
+    }
+
+    /**
+     * JSON の値でないものは JSONObject.wrap と同じく、
+     * java パッケージのもの（BigDecimal など）なら toString した文字列、それ以外なら null にする
+     *
+     * @param value 書き出す値
+     * @throws IllegalArgumentException 有限でない数値が含まれていた
+     * @throws ClassCastException       Map のキーが文字列でなかった
+     */
+    void write(@Nullable Object value) throws IOException {
+        if (value == null || value == JSONObject.NULL) {
+            writeBytes(NULL);
+        } else if (value instanceof JSONObject || value instanceof JSONArray) {
+            writeRaw(value.toString());
+        } else if (value instanceof Collection) {
+            writeCollection((Collection<?>) value);
+        } else if (value.getClass().isArray()) {
+            writeArray(value);
+        } else if (value instanceof Map) {
+            writeMap((Map<?, ?>) value);
+        } else if (value instanceof String || value instanceof Character) {
+            writeString(value.toString());
+        } else if (value instanceof Boolean) {
+            writeBytes((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            writeLong(((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            writeDouble((Number) value);
+        } else if (isJavaPackage(value)) {
+            writeString(value.toString());
+        } else {
+            writeBytes(NULL);
+        }
+    }
+
+    private static boolean isJavaPackage(@NonNull Object value) {
+        final Package pkg = value.getClass().getPackage();
+        return pkg != null && pkg.getName().startsWith("java.");
+    }
+
+    private void writeMap(@NonNull Map<?, ?> map) throws IOException {
+        writeByte('{');
+        boolean first = true;
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            // JSONObject(Map) と同じく、文字列でないキーは ClassCastException にする
+            final String key = (String) entry.getKey();
+            if (key == null) {
+                throw new NullPointerException("key == null");
+            }
+            if (!first) {
+                writeByte(',');
+            }
+            first = false;
+            writeString(key);
+            writeByte(':');
+            write(entry.getValue());
+        }
+        writeByte('}');
+    }
+
+    private void writeCollection(@NonNull Collection<?> collection) throws IOException {
+        writeByte('[');
+        boolean first = true;
+        for (Object element : collection) {
+            if (!first) {
+                writeByte(',');
+            }
+            first = false;
+            write(element);
+        }
+        writeByte(']');
+    }
+
+    private void writeArray(@NonNull Object array) throws IOException {
+        writeByte('[');
+        final int length = Array.getLength(array);
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                writeByte(',');
+            }
+            write(Array.get(array, i));
+        }
+        writeByte(']');
+    }
+
+    /**
+     * @param number Double か Float
+     */
+    private void writeDouble(@NonNull Number number) throws IOException {
+        final double value = number.doubleValue();
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("non-finite number: " + number);
+        }
+        if (number.equals(-0d)) {
+            // JSONObject と同じく、Double の -0 だけは符号を残す
+            writeRaw("-0");
+        } else if (value == (long) value) {
+            // JSONObject と同じく整数値は小数点を付けない
+            writeLong((long) value);
+        } else {
+            writeRaw(number.toString());
+        }
+    }
+
+    private void writeLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            writeRaw(Long.toString(value));
+            return;
+        }
+
+        ensure(MAX_LONG_LENGTH);
+        if (value < 0) {
+            this.buff[this.count++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        int position = this.count + digits;
+        this.count = position;
+        do {
+            this.buff[--position] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+    }
+
+    private void writeString(@NonNull String value) throws IOException {
+        writeByte('"');
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/': {
+                    // JSONObject と同じく / もエスケープする
+                    writeEscape(c);
+                    break;
+                }
+                case '\b': {
+                    writeEscape('b');
+                    break;
+                }
+                case '\f': {
+                    writeEscape('f');
+                    break;
+                }
+                case '\n': {
+                    writeEscape('n');
+                    break;
+                }
+                case '\r': {
+                    writeEscape('r');
+                    break;
+                }
+                case '\t': {
+                    writeEscape('t');
+                    break;
+                }
+                default: {
+                    if (c < 0x20) {
+                        ensure(6);
+                        this.buff[this.count++] = '\\';
+                        this.buff[this.count++] = 'u';
+                        this.buff[this.count++] = '0';
+                        this.buff[this.count++] = '0';
+                        this.buff[this.count++] = HEX[c >> 4];
+                        this.buff[this.count++] = HEX[c & 0xf];
+                    } else if (c < 0x80) {
+                        ensure(1);
+                        this.buff[this.count++] = (byte) c;
+                    } else {
+                        i = writeUtf8(value, i);
+                    }
+                    break;
+                }
+            }
+        }
+        writeByte('"');
+    }
+
+    private void writeEscape(char c) throws IOException {
+        ensure(2);
+        this.buff[this.count++] = '\\';
+        this.buff[this.count++] = (byte) c;
+    }
+
+    /**
+     * エスケープせずに ASCII の文字列として書き出す
+     */
+    private void writeRaw(@NonNull String value) throws IOException {
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c < 0x80) {
+                ensure(1);
+                this.buff[this.count++] = (byte) c;
+            } else {
+                i = writeUtf8(value, i);
+            }
+        }
+    }
+
+    /**
+     * value の index 番目の ASCII でない文字を UTF-8 で書き出す
+     *
+     * @return 最後に読んだ文字の位置
+     */
+    private int writeUtf8(@NonNull String value, int index) throws IOException {
+        ensure(4);
+        final char c = value.charAt(index);
+        if (c < 0x800) {
+            this.buff[this.count++] = (byte) (0xc0 | (c >> 6));
+            this.buff[this.count++] = (byte) (0x80 | (c & 0x3f));
+            return index;
+        } else if (!Character.isSurrogate(c)) {
+            this.buff[this.count++] = (byte) (0xe0 | (c >> 12));
+            this.buff[this.count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            this.buff[this.count++] = (byte) (0x80 | (c & 0x3f));
+            return index;
+        }
+
+        if (Character.isHighSurrogate(c) && index + 1 < value.length() && Character.isLowSurrogate(value.charAt(index + 1))) {
+            final int codePoint = Character.toCodePoint(c, value.charAt(index + 1));
+            this.buff[this.count++] = (byte) (0xf0 | (codePoint >> 18));
+            this.buff[this.count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+            this.buff[this.count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            this.buff[this.count++] = (byte) (0x80 | (codePoint & 0x3f));
+            return index + 1;
+        }
+
+        // 対になっていないサロゲートは String.getBytes と同じく ? にする
+        this.buff[this.count++] = '?';
+        return index;
+    }
+
+    private void writeByte(char c) throws IOException {
+        ensure(1);
+        this.buff[this.count++] = (byte) c;
+    }
+
+    private void writeBytes(@NonNull byte[] bytes) throws IOException {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, this.buff, this.count, bytes.length);
+        this.count += bytes.length;
+    }
+
+    private void ensure(int size) throws IOException {
+        if (this.count + size <= this.buff.length) {
+            return;
+        }
+        flush();
+        if (this.count + size > this.buff.length) {
+            this.buff = Arrays.copyOf(this.buff, Math.max(this.buff.length * 2, this.count + size));
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 通信せずに送信データを読み捨てる Transport。
+ * 送信処理以外の負荷を測るのに使う
+ */
+public class MemoryTransport implements Transport {
+
+    private static final Map<String, List<String>> NO_HEADERS = Collections.emptyMap();
+
+    private final int status;
+    private final AtomicLong requests;
+    private final AtomicLong bytes;
+
+    /**
+     * @param status 返す HTTP ステータス
+     */
+    public MemoryTransport(int status) {
+        this.status = status;
+        this.requests = new AtomicLong();
+        this.bytes = new AtomicLong();
+    }
+
+    /**
+     * 200 を返す
+     */
+    public MemoryTransport() {
+        this(200);
+    }
+
+    /**
+     * @return 受け取ったリクエスト数
+     */
+    public long getRequests() {
+        return this.requests.get();
+    }
+
+    /**
+     * @return 受け取ったデータのバイト数
+     */
+    public long getBytes() {
+        return this.bytes.get();
+    }
+
+    @NonNull
+    @Override
+    public Response send(@NonNull Request request) throws IOException {
+        if (request.isCancelled()) {
+            throw new InterruptedIOException("cancelled");
+        }
+        if (request.getBody() != null) {
+            final CountingSink sink = new CountingSink();
+            request.getBody().writeTo(sink);
+            this.bytes.addAndGet(sink.count);
+        }
+        this.requests.incrementAndGet();
+        return new Response(this.status, NO_HEADERS);
+    }
+
+    private static final class CountingSink extends OutputStream {
+
+        private long count;
+
+        @Override
+        public void write(int b) {
+            this.count++;
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) {
+            this.count += len;
+        }
+
+    }
+
+}
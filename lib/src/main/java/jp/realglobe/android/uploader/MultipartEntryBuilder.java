@@ -1,15 +1,17 @@
 package jp.realglobe.android.uploader;
 
+import android.content.ContentResolver;
+import android.net.Uri;
 import android.util.Base64;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -24,56 +26,76 @@ public class MultipartEntryBuilder implements Poster.EntryBuilder {
     private static final String CONTENT_TYPE = "Content-Type";
     private static final String CONTENT_TYPE_MULTIPART = "multipart/form-data";
 
+    private static final Body CRLF = Bodies.of(new byte[]{'\r', '\n'});
+
     private static class Item {
 
-        private final String name;
-        private final String type;
-        private final byte[] data;
+        // パートのヘッダ部分。build のたびに符号化しないように、追加したときに一度だけつくる
+        private final Body header;
+        private final Body data;
 
-        private Item(@NonNull String name, @Nullable String type, @NonNull byte[] data) {
-            this.name = name;
-            this.type = type;
+        private Item(@NonNull String name, @NonNull String fileName, @Nullable String type, @NonNull Body data) {
+            this.header = header(name, fileName, type);
             this.data = data;
         }
 
+        /**
+         * @return パートのヘッダ部分。データ本体は含まない
+         */
         @NonNull
-        private byte[] toBytes() {
+        private static Body header(@NonNull String name, @NonNull String fileName, @Nullable String type) {
             final StringBuilder builder = (new StringBuilder())
                     .append("Content-Disposition: form-data; name=\"")
-                    .append(this.name)
+                    .append(name)
                     .append("\"; filename=\"")
-                    .append(this.name)
+                    .append(fileName)
                     .append("\"\r\n");
 
-            if (this.type != null) {
+            if (type != null) {
                 builder.append("Content-Type: ")
-                        .append(this.type)
+                        .append(type)
                         .append("\r\n");
             }
 
             builder.append("\r\n");
 
-            final byte[] header = builder.toString().getBytes();
-
-            final byte[] buff = new byte[header.length + this.data.length];
-            System.arraycopy(header, 0, buff, 0, header.length);
-            System.arraycopy(this.data, 0, buff, header.length, this.data.length);
-
-            return buff;
+            return Bodies.of(builder.toString().getBytes(StandardCharsets.UTF_8));
         }
 
     }
 
     private Poster.BasicEntryBuilder builder;
 
-    private Map<String, String> header;
+    private HeaderTemplate header;
     private final List<Item> items;
 
+    // 区切りはインスタンスごとに決まるので、使い回す場合に備えて取っておく
+    private String boundary;
+    private Body separator;
+    private Body terminator;
+    // 同じ内容のヘッダで build し続ける場合に毎回合成し直さない
+    private HeaderTemplate lastHeader;
+    private HeaderTemplate lastAllHeader;
+
     public MultipartEntryBuilder() {
         this.builder = new Poster.BasicEntryBuilder();
         this.items = new ArrayList<>();
     }
 
+    /**
+     * つくり直した直後の状態に戻す。
+     * build の後に reset して使い回して良い
+     *
+     * @return this
+     */
+    @NonNull
+    public MultipartEntryBuilder reset() {
+        this.builder.reset();
+        this.header = null;
+        this.items.clear();
+        return this;
+    }
+
     @NonNull
     private String makeBoundary() {
         final int hash = this.hashCode();
@@ -92,31 +114,32 @@ public class MultipartEntryBuilder implements Poster.EntryBuilder {
     @Override
     @NonNull
     public Poster.Entry build() {
-        final String boundary = makeBoundary();
-
-        final Map<String, String> allHeader = new HashMap<>();
-        if (this.header != null) {
-            allHeader.putAll(this.header);
+        if (this.boundary == null) {
+            this.boundary = makeBoundary();
+            this.separator = Bodies.of(("--" + this.boundary + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            this.terminator = Bodies.of(("--" + this.boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
         }
-        allHeader.put(CONTENT_TYPE, CONTENT_TYPE_MULTIPART + "; boundary=" + boundary);
-
-        this.builder.setHeader(allHeader);
 
-
-        try (final ByteArrayOutputStream buff = new ByteArrayOutputStream()) {
-            final byte[] separator = ("--" + boundary + "\r\n").getBytes();
-            for (final Item item : this.items) {
-                buff.write(separator);
-                buff.write(item.toBytes());
-                buff.write("\r\n".getBytes());
-            }
-            buff.write(("--" + boundary + "--\r\n").getBytes());
-
-            this.builder.setData(buff.toByteArray());
-        } catch (IOException e) {
-            // ByteArray なのでここには来ない
-            throw new RuntimeException(e);
+        final HeaderTemplate header = (this.header != null ? this.header : HeaderTemplate.EMPTY);
+        // HeaderTemplate は変更できないので、同じインスタンスか、保持しているハッシュ値が違えばすぐに決まる
+        if (this.lastHeader != header
+                && (this.lastHeader == null || this.lastHeader.hashCode() != header.hashCode() || !this.lastHeader.equals(header))) {
+            this.lastHeader = header;
+            this.lastAllHeader = header.with(CONTENT_TYPE, CONTENT_TYPE_MULTIPART + "; boundary=" + this.boundary);
+        }
+        this.builder.setHeader(this.lastAllHeader);
+
+        // データはコピーせず、区切りやヘッダと並べて送信時に順に書き出す
+        final List<Body> parts = new ArrayList<>(4 * this.items.size() + 1);
+        for (final Item item : this.items) {
+            parts.add(this.separator);
+            parts.add(item.header);
+            parts.add(item.data);
+            parts.add(CRLF);
         }
+        parts.add(this.terminator);
+
+        this.builder.setBody(Bodies.concat(parts));
 
         return this.builder.build();
     }
@@ -134,12 +157,55 @@ public class MultipartEntryBuilder implements Poster.EntryBuilder {
     /**
      * @param name 名前
      * @param type Content-Type
-     * @param data データ
+     * @param data データ。コピーせずに送信時まで参照する
      * @return this
      */
     @NonNull
     public MultipartEntryBuilder addData(@NonNull String name, @Nullable String type, @NonNull byte[] data) {
-        this.items.add(new Item(name, type, data));
+        this.items.add(new Item(name, name, type, Bodies.of(data)));
+        return this;
+    }
+
+    /**
+     * @param name 名前
+     * @param type Content-Type
+     * @param data データ
+     * @return this
+     */
+    @NonNull
+    public MultipartEntryBuilder addData(@NonNull String name, @Nullable String type, @NonNull Body data) {
+        this.items.add(new Item(name, name, type, data));
+        return this;
+    }
+
+    /**
+     * ファイルは送信時に読みながら書き出す
+     *
+     * @param name 名前
+     * @param type Content-Type
+     * @param file ファイル
+     * @return this
+     */
+    @NonNull
+    public MultipartEntryBuilder addFile(@NonNull String name, @Nullable String type, @NonNull File file) {
+        this.items.add(new Item(name, file.getName(), type, Bodies.of(file)));
+        return this;
+    }
+
+    /**
+     * uri は送信時に読みながら書き出す
+     *
+     * @param name     名前
+     * @param type     Content-Type
+     * @param resolver ContentResolver
+     * @param uri      content:// や file:// の URI
+     * @return this
+     * @throws FileNotFoundException uri を開けなかった
+     */
+    @NonNull
+    public MultipartEntryBuilder addUri(@NonNull String name, @Nullable String type, @NonNull ContentResolver resolver, @NonNull Uri uri) throws FileNotFoundException {
+        final String fileName = uri.getLastPathSegment();
+        this.items.add(new Item(name, (fileName != null ? fileName : name), type, Bodies.of(resolver, uri)));
         return this;
     }
 
@@ -155,12 +221,15 @@ public class MultipartEntryBuilder implements Poster.EntryBuilder {
     }
 
     /**
+     * HeaderTemplate でなければ写し取るので、渡した Map は後で変更して良い。
+     * HeaderTemplate を渡すと、Content-Type だけを差分として持ち、元のヘッダは共有する
+     *
      * @param header HTTP ヘッダ
      * @return this
      */
     @NonNull
     public MultipartEntryBuilder setHeader(@Nullable Map<String, String> header) {
-        this.header = header == null ? new HashMap<>() : new HashMap<>(header);
+        this.header = (header != null ? HeaderTemplate.of(header) : null);
         return this;
     }
 
@@ -194,4 +263,146 @@ public class MultipartEntryBuilder implements Poster.EntryBuilder {
         return this;
     }
 
+    /**
+     * @param readTimeout 読み込みタイムアウト（ミリ秒）。0 なら無期限。負値なら既定値
+     * @return this
+     */
+    @NonNull
+    public MultipartEntryBuilder setReadTimeout(int readTimeout) {
+        this.builder.setReadTimeout(readTimeout);
+        return this;
+    }
+
+    /**
+     * @param writeTimeout 書き込みタイムアウト（ミリ秒）。0 以下なら無期限。既定では掛けない
+     * @return this
+     */
+    @NonNull
+    public MultipartEntryBuilder setWriteTimeout(int writeTimeout) {
+        this.builder.setWriteTimeout(writeTimeout);
+        return this;
+    }
+
+    /**
+     * @param deadline 1 回の送信全体の期限（ミリ秒）。0 以下なら無期限
+     * @return this
+     */
+    @NonNull
+    public MultipartEntryBuilder setDeadline(long deadline) {
+        this.builder.setDeadline(deadline);
+        return this;
+    }
+
+    /**
+     * @param orderKey 順序キー。同じ順序キーを持つ Entry は post した順に 1 つずつ送信される
+     * @return this
+     */
+    @NonNull
+    public MultipartEntryBuilder setOrderKey(@Nullable String orderKey) {
+        this.builder.setOrderKey(orderKey);
+        return this;
+    }
+
+    /**
+     * @param level     gzip の圧縮レベル。0 なら圧縮しない
+     * @param minLength これより短いデータは圧縮しない
+     * @return this
+     * @throws IllegalArgumentException 圧縮レベルが -1 から 9 でなかった
+     */
+    @NonNull
+    public MultipartEntryBuilder setCompression(int level, long minLength) {
+        this.builder.setCompression(level, minLength);
+        return this;
+    }
+
+    /**
+     * @param retryPolicy 再送の仕方。null なら Poster に設定したもの
+     * @return this
+     */
+    @NonNull
+    public MultipartEntryBuilder setRetryPolicy(@Nullable RetryPolicy retryPolicy) {
+        this.builder.setRetryPolicy(retryPolicy);
+        return this;
+    }
+
+    /**
+     * @param priority 優先度。大きいほど先に送る
+     * @return this
+     */
+    @NonNull
+    public MultipartEntryBuilder setPriority(int priority) {
+        this.builder.setPriority(priority);
+        return this;
+    }
+
+    /**
+     * @param timeToLive 有効期間（ミリ秒）。0 以下なら無期限
+     * @return this
+     */
+    @NonNull
+    public MultipartEntryBuilder setTimeToLive(long timeToLive) {
+        this.builder.setTimeToLive(timeToLive);
+        return this;
+    }
+
+    /**
+     * @param coalesceKey 置き換えキー。同じキーを持つまだ送信していない Entry を置き換える。null なら置き換えない
+     * @return this
+     */
+    @NonNull
+    public MultipartEntryBuilder setCoalesceKey(@Nullable String coalesceKey) {
+        this.builder.setCoalesceKey(coalesceKey);
+        return this;
+    }
+
+    /**
+     * @param limit 応答本体を読み込むバイト数の上限。0 なら読み込まない
+     * @return this
+     */
+    @NonNull
+    public MultipartEntryBuilder setResponseLimit(int limit) {
+        this.builder.setResponseLimit(limit);
+        return this;
+    }
+
+    /**
+     * @param responseHandler 応答本体を渡す先。null なら渡さない
+     * @return this
+     */
+    @NonNull
+    public MultipartEntryBuilder setResponseHandler(@Nullable ResponseHandler responseHandler) {
+        this.builder.setResponseHandler(responseHandler);
+        return this;
+    }
+
+    /**
+     * @param onResponse 応答を受け取った後で実行する関数
+     * @return this
+     */
+    @NonNull
+    public MultipartEntryBuilder setOnResponse(@Nullable Consumer<Response> onResponse) {
+        this.builder.setOnResponse(onResponse);
+        return this;
+    }
+
+    /**
+     * @param constraints UploadScheduler で送信してよい条件。null なら待たせない
+     * @return this
+     */
+    @NonNull
+    public MultipartEntryBuilder setConstraints(@Nullable Constraints constraints) {
+        this.builder.setConstraints(constraints);
+        return this;
+    }
+
+    /**
+     * @param endpoint 送信先の候補。setUrl の URL がこの基底 URL の下にあれば、送るたびに基底 URL を選び直す
+     * @return this
+     */
+    @NonNull
+    public MultipartEntryBuilder setEndpoint(@Nullable Endpoint endpoint) {
+        this.builder.setEndpoint(endpoint);
+        return this;
+    }
+
 }
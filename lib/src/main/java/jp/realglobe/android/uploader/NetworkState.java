@@ -0,0 +1,70 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+/**
+ * ある時点の通信と電源の状態
+ */
+public final class NetworkState {
+
+    private final boolean connected;
+    private final boolean metered;
+    private final boolean charging;
+    private final int bandwidth;
+
+    /**
+     * @param connected 通信できるなら true
+     * @param metered   従量制の回線なら true
+     * @param charging  充電中なら true
+     * @param bandwidth 上り帯域の見積もり（kbps）。分からなければ負値
+     */
+    public NetworkState(boolean connected, boolean metered, boolean charging, int bandwidth) {
+        this.connected = connected;
+        this.metered = metered;
+        this.charging = charging;
+        this.bandwidth = bandwidth;
+    }
+
+    /**
+     * @return 通信できるなら true
+     */
+    public boolean isConnected() {
+        return this.connected;
+    }
+
+    /**
+     * @return 従量制の回線なら true
+     */
+    public boolean isMetered() {
+        return this.metered;
+    }
+
+    /**
+     * @return 充電中なら true
+     */
+    public boolean isCharging() {
+        return this.charging;
+    }
+
+    /**
+     * @return 上り帯域の見積もり（kbps）。分からなければ負値
+     */
+    public int getBandwidth() {
+        return this.bandwidth;
+    }
+
+}
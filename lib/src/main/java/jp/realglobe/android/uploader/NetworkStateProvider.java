@@ -0,0 +1,45 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.NonNull;
+
+/**
+ * 通信と電源の状態を知らせる。
+ * 端末の状態を使う AndroidNetworkStateProvider の他、試験用に差し替えられる
+ */
+public interface NetworkStateProvider {
+
+    /**
+     * @return 今の状態
+     */
+    @NonNull
+    NetworkState getState();
+
+    /**
+     * 同じ provider を UploadScheduler と WriteBehindBuffer などで共有できるように、複数登録できる
+     *
+     * @param listener 状態が変わったら呼ぶ関数
+     */
+    void addListener(@NonNull Runnable listener);
+
+    /**
+     * @param listener addListener で登録した関数
+     */
+    void removeListener(@NonNull Runnable listener);
+
+}
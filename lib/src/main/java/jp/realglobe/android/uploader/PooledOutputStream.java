@@ -0,0 +1,89 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.NonNull;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * BufferPool のバッファを使う BufferedOutputStream。
+ * 閉じるとバッファを返す
+ */
+final class PooledOutputStream extends FilterOutputStream {
+
+    private byte[] buff;
+    private int count;
+
+    PooledOutputStream(@NonNull OutputStream output) {
+        super(output);
+        this.buff = BufferPool.acquire();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (this.count == this.buff.length) {
+            flushBuffer();
+        }
+        this.buff[this.count++] = (byte) b;
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+        if (len >= this.buff.length) {
+            // 大きいものはバッファを通さない
+            flushBuffer();
+            this.out.write(b, off, len);
+            return;
+        }
+        if (len > this.buff.length - this.count) {
+            flushBuffer();
+        }
+        System.arraycopy(b, off, this.buff, this.count, len);
+        this.count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        this.out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.buff == null) {
+            return;
+        }
+        try {
+            flushBuffer();
+        } finally {
+            BufferPool.release(this.buff);
+            this.buff = null;
+            this.out.close();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (this.count > 0) {
+            this.out.write(this.buff, 0, this.count);
+            this.count = 0;
+        }
+    }
+
+}
@@ -0,0 +1,211 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import jp.realglobe.android.function.Consumer;
+
+/**
+ * Poster.submit で送信した結果。
+ * 応答を受け取ったら完了し、通信エラーなどで終わったら例外で完了する
+ */
+public final class PostFuture implements Future<Response> {
+
+    private final Poster poster;
+
+    private boolean done;
+    private boolean cancelled;
+    private Response response;
+    private Exception error;
+    private PostMetrics metrics;
+    private Runnable abort;
+    private List<Consumer<PostFuture>> listeners;
+
+    PostFuture(@NonNull Poster poster) {
+        this.poster = poster;
+    }
+
+    /**
+     * 送信待ちなら送信しない。
+     * 送信中で mayInterruptIfRunning が true なら、接続を切って中断する。
+     * 取り消した Entry の onFinish と onError は呼ばれない
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        final Runnable abort;
+        final List<Consumer<PostFuture>> listeners;
+        synchronized (this) {
+            if (this.done) {
+                return false;
+            }
+            this.done = true;
+            this.cancelled = true;
+            abort = this.abort;
+            listeners = this.listeners;
+            this.listeners = null;
+            notifyAll();
+        }
+
+        this.poster.cancel(this);
+        if (mayInterruptIfRunning && abort != null) {
+            abort.run();
+        }
+        notifyListeners(listeners);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return this.done;
+    }
+
+    @Override
+    public synchronized Response get() throws InterruptedException, ExecutionException {
+        while (!this.done) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized Response get(long timeout, @NonNull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!this.done) {
+            final long rest = deadline - System.nanoTime();
+            if (rest <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, rest);
+        }
+        return result();
+    }
+
+    @NonNull
+    private Response result() throws ExecutionException {
+        if (this.cancelled) {
+            throw new CancellationException();
+        } else if (this.error != null) {
+            throw new ExecutionException(this.error);
+        }
+        return this.response;
+    }
+
+    /**
+     * @return 送信の計測値。送信せずに終わった場合や、まだ終わっていない場合は null
+     */
+    @Nullable
+    public synchronized PostMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * 完了したら呼ぶ関数を登録する。
+     * 送信スレッドで呼ばれるので、重い処理をしないこと。
+     * 既に完了していたらこのスレッドで呼ぶ。
+     * 送信スレッドで呼ばれたときに投げた RuntimeException は無視する
+     *
+     * @param listener 完了したら呼ぶ関数
+     * @return this
+     */
+    @NonNull
+    public PostFuture addListener(@NonNull Consumer<PostFuture> listener) {
+        synchronized (this) {
+            if (!this.done) {
+                if (this.listeners == null) {
+                    this.listeners = new ArrayList<>(1);
+                }
+                this.listeners.add(listener);
+                return this;
+            }
+        }
+        listener.accept(this);
+        return this;
+    }
+
+    /**
+     * 取り消されたときに送信を中断する処理を登録する。
+     * 既に取り消されていたらすぐに実行する
+     *
+     * @param abort 中断する処理。null なら解除する
+     */
+    void setAbort(@Nullable Runnable abort) {
+        synchronized (this) {
+            if (!this.cancelled) {
+                this.abort = abort;
+                return;
+            }
+        }
+        if (abort != null) {
+            abort.run();
+        }
+    }
+
+    void complete(@NonNull Response response, @Nullable PostMetrics metrics) {
+        finish(response, null, metrics);
+    }
+
+    void fail(@NonNull Exception error, @Nullable PostMetrics metrics) {
+        finish(null, error, metrics);
+    }
+
+    private void finish(@Nullable Response response, @Nullable Exception error, @Nullable PostMetrics metrics) {
+        final List<Consumer<PostFuture>> listeners;
+        synchronized (this) {
+            if (this.done) {
+                return;
+            }
+            this.done = true;
+            this.response = response;
+            this.error = error;
+            this.metrics = metrics;
+            this.abort = null;
+            listeners = this.listeners;
+            this.listeners = null;
+            notifyAll();
+        }
+        notifyListeners(listeners);
+    }
+
+    private void notifyListeners(@Nullable List<Consumer<PostFuture>> listeners) {
+        if (listeners == null) {
+            return;
+        }
+        for (final Consumer<PostFuture> listener : listeners) {
+            try {
+                listener.accept(this);
+            } catch (RuntimeException e) {
+                // 1 つの失敗で残りの関数と送信スレッドを止めない
+            }
+        }
+    }
+
+}
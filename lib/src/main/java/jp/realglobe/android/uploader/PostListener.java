@@ -0,0 +1,34 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Entry の送信が終わるたびに呼ばれる
+ */
+public interface PostListener {
+
+    /**
+     * 送信スレッドで呼ばれるので、重い処理はしないこと
+     *
+     * @param entry   送信した Entry
+     * @param metrics 送信にかかった時間など
+     */
+    void onPosted(@NonNull Poster.Entry entry, @NonNull PostMetrics metrics);
+
+}
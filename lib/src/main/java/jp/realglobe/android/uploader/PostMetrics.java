@@ -0,0 +1,101 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.Nullable;
+
+/**
+ * 1 つの Entry の送信にかかった時間など。
+ * 時間はナノ秒で、再送した場合は最後の送信のもの
+ */
+public final class PostMetrics {
+
+    long queueWait;
+    long connect;
+    long write;
+    long firstByte;
+    long total;
+    long bytesSent;
+    int retries;
+    int status = -1;
+    Exception error;
+
+    /**
+     * @return post されてから最初の送信を始めるまでの時間
+     */
+    public long getQueueWaitNanos() {
+        return this.queueWait;
+    }
+
+    /**
+     * @return 名前解決も含めた接続にかかった時間。送信処理が報告しなければ 0
+     */
+    public long getConnectNanos() {
+        return this.connect;
+    }
+
+    /**
+     * @return データの書き出しにかかった時間。送信処理が報告しなければ 0
+     */
+    public long getWriteNanos() {
+        return this.write;
+    }
+
+    /**
+     * @return 書き出し終わってから応答が来るまでの時間。送信処理が報告しなければ 0
+     */
+    public long getFirstByteNanos() {
+        return this.firstByte;
+    }
+
+    /**
+     * @return 最後の送信の開始から終了までの時間
+     */
+    public long getTotalNanos() {
+        return this.total;
+    }
+
+    /**
+     * @return 送信したデータのバイト数。圧縮した場合は圧縮後
+     */
+    public long getBytesSent() {
+        return this.bytesSent;
+    }
+
+    /**
+     * @return 再送した回数
+     */
+    public int getRetries() {
+        return this.retries;
+    }
+
+    /**
+     * @return HTTP ステータス。応答が無ければ負値
+     */
+    public int getStatus() {
+        return this.status;
+    }
+
+    /**
+     * @return 失敗した場合の例外
+     */
+    @Nullable
+    public Exception getError() {
+        return this.error;
+    }
+
+}
@@ -23,12 +23,18 @@ import android.os.Message;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
 
 import jp.realglobe.android.function.Consumer;
 import jp.realglobe.android.function.Functions;
@@ -41,36 +47,134 @@ public class Poster {
 
     private static final int DEFAULT_TIMEOUT = 30_000; // ミリ秒
 
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+    private static final String CONTENT_ENCODING_GZIP = "gzip";
+    private static final String RETRY_AFTER = "Retry-After";
+
+    private static final String SPILL_PREFIX = "spill";
+    private static final String SPILL_SUFFIX = ".body";
+
+    /**
+     * 後回しにしてよい送信の優先度
+     */
+    public static final int PRIORITY_LOW = -1;
+    /**
+     * 既定の優先度
+     */
+    public static final int PRIORITY_NORMAL = 0;
+    /**
+     * 利用者が待っている送信の優先度
+     */
+    public static final int PRIORITY_HIGH = 1;
+
     /**
      * POST する内容
      */
     public static class Entry {
 
-        private final URL url;
-        private final byte[] data;
-        private final Map<String, String> header;
-        private final Consumer<Integer> onFinish;
-        private final Consumer<Exception> onError;
-        private final int timeout;
-
-        private Entry(
-                @NonNull URL url,
-                @Nullable byte[] data,
-                @Nullable Map<String, String> header,
-                @Nullable Consumer<Integer> onFinish,
-                @Nullable Consumer<Exception> onError,
-                int timeout
-        ) {
-            this.url = url;
-            this.data = data;
-            this.header = (header != null ? header : Collections.emptyMap());
-            this.onFinish = (onFinish != null ? onFinish : Functions::nop);
-            this.onError = (onError != null ? onError : Functions::nop);
-            this.timeout = (timeout >= 0 ? timeout : DEFAULT_TIMEOUT);
+        final URL url;
+        final Body body;
+        final HeaderTemplate header;
+        final Consumer<Integer> onFinish;
+        final Consumer<Exception> onError;
+        final int timeout;
+        final int readTimeout;
+        final int writeTimeout;
+        final long deadline; // ミリ秒。0 以下なら無期限
+        final String orderKey;
+        final int compressionLevel;
+        final long compressionMinLength;
+        final RetryPolicy retryPolicy;
+        final int priority;
+        final long timeToLive; // ミリ秒。0 以下なら無期限
+        final String coalesceKey;
+        final int responseLimit;
+        final ResponseHandler responseHandler;
+        final Consumer<Response> onResponse;
+        final Constraints constraints;
+        final Endpoint endpoint;
+
+        private Entry(@NonNull BasicEntryBuilder builder) {
+            this.url = builder.url;
+            this.body = builder.body;
+            this.header = HeaderTemplate.of(builder.header);
+            this.onFinish = (builder.onFinish != null ? builder.onFinish : Functions::nop);
+            this.onError = (builder.onError != null ? builder.onError : Functions::nop);
+            this.timeout = (builder.timeout >= 0 ? builder.timeout : DEFAULT_TIMEOUT);
+            this.readTimeout = (builder.readTimeout >= 0 ? builder.readTimeout : DEFAULT_TIMEOUT);
+            // 書き込みタイムアウトは見張りのスレッドを使うので、指定されたときだけ掛ける
+            this.writeTimeout = Math.max(0, builder.writeTimeout);
+            this.deadline = builder.deadline;
+            this.orderKey = builder.orderKey;
+            this.compressionLevel = builder.compressionLevel;
+            this.compressionMinLength = builder.compressionMinLength;
+            this.retryPolicy = builder.retryPolicy;
+            this.priority = builder.priority;
+            this.timeToLive = builder.timeToLive;
+            this.coalesceKey = builder.coalesceKey;
+            this.responseLimit = builder.responseLimit;
+            this.responseHandler = builder.responseHandler;
+            this.onResponse = (builder.onResponse != null ? builder.onResponse : Functions::nop);
+            this.constraints = builder.constraints;
+            this.endpoint = builder.endpoint;
+        }
+
+        private Entry(@NonNull Entry base, @Nullable Body body) {
+            this(base, body, base.onError);
+        }
+
+        /**
+         * 送信データかエラー時の処理だけを差し替えた Entry をつくる
+         */
+        Entry(@NonNull Entry base, @Nullable Body body, @NonNull Consumer<Exception> onError) {
+            this.url = base.url;
+            this.body = body;
+            this.header = base.header;
+            this.onFinish = base.onFinish;
+            this.onError = onError;
+            this.timeout = base.timeout;
+            this.readTimeout = base.readTimeout;
+            this.writeTimeout = base.writeTimeout;
+            this.deadline = base.deadline;
+            this.orderKey = base.orderKey;
+            this.compressionLevel = base.compressionLevel;
+            this.compressionMinLength = base.compressionMinLength;
+            this.retryPolicy = base.retryPolicy;
+            this.priority = base.priority;
+            this.timeToLive = base.timeToLive;
+            this.coalesceKey = base.coalesceKey;
+            this.responseLimit = base.responseLimit;
+            this.responseHandler = base.responseHandler;
+            this.onResponse = base.onResponse;
+            this.constraints = base.constraints;
+            this.endpoint = base.endpoint;
         }
 
     }
 
+    /**
+     * 送信待ちの Entry が上限に達したときの扱い
+     */
+    public enum OverflowPolicy {
+        /**
+         * 空くまで post を待たせる
+         */
+        BLOCK,
+        /**
+         * 一番古い Entry を捨てる。
+         * Body をディスクに逃がしたものと再送待ちのものは捨てず、それしか無ければ新しい Entry を捨てる
+         */
+        DROP_OLDEST,
+        /**
+         * 新しい Entry を捨てる
+         */
+        DROP_NEWEST,
+        /**
+         * 新しい Entry の Body をディスクに逃がして溜める
+         */
+        SPILL,
+    }
+
     /**
      * Entry をつくる
      */
@@ -87,14 +191,60 @@ public class Poster {
     public static class BasicEntryBuilder implements EntryBuilder {
 
         private URL url;
-        private byte[] data;
+        private Body body;
         private Map<String, String> header;
         private Consumer<Integer> onFinish;
         private Consumer<Exception> onError;
         private int timeout;
+        private int readTimeout;
+        private int writeTimeout;
+        private long deadline;
+        private String orderKey;
+        private int compressionLevel;
+        private long compressionMinLength;
+        private RetryPolicy retryPolicy;
+        private int priority;
+        private long timeToLive;
+        private String coalesceKey;
+        private int responseLimit;
+        private ResponseHandler responseHandler;
+        private Consumer<Response> onResponse;
+        private Constraints constraints;
+        private Endpoint endpoint;
 
         public BasicEntryBuilder() {
+            reset();
+        }
+
+        /**
+         * つくり直した直後の状態に戻す。
+         * build でできた Entry は設定を写し取っているので、build の後に reset して使い回して良い
+         *
+         * @return this
+         */
+        public BasicEntryBuilder reset() {
+            this.url = null;
+            this.body = null;
+            this.header = null;
+            this.onFinish = null;
+            this.onError = null;
             this.timeout = -1;
+            this.readTimeout = -1;
+            this.writeTimeout = 0;
+            this.deadline = 0;
+            this.orderKey = null;
+            this.compressionLevel = 0;
+            this.compressionMinLength = 0;
+            this.retryPolicy = null;
+            this.priority = PRIORITY_NORMAL;
+            this.timeToLive = 0;
+            this.coalesceKey = null;
+            this.responseLimit = 0;
+            this.responseHandler = null;
+            this.onResponse = null;
+            this.constraints = null;
+            this.endpoint = null;
+            return this;
         }
 
         @Override
@@ -104,7 +254,7 @@ public class Poster {
                 throw new IllegalStateException("null URL");
             }
 
-            return new Entry(this.url, this.data, this.header, this.onFinish, this.onError, this.timeout);
+            return new Entry(this);
         }
 
         /**
@@ -121,11 +271,23 @@ public class Poster {
          * @return this
          */
         public BasicEntryBuilder setData(@Nullable byte[] data) {
-            this.data = data;
+            this.body = (data != null ? Bodies.of(data) : null);
+            return this;
+        }
+
+        /**
+         * @param body POST するデータ
+         * @return this
+         */
+        public BasicEntryBuilder setBody(@Nullable Body body) {
+            this.body = body;
             return this;
         }
 
         /**
+         * 多くの Entry で同じヘッダを使うなら HeaderTemplate を渡すと、検査と変換が build ごとに行われない。
+         * 名前や値に使えない文字が含まれていると build で IllegalArgumentException になる
+         *
          * @param header HTTP ヘッダ
          * @return this
          */
@@ -161,71 +323,281 @@ public class Poster {
             return this;
         }
 
+        /**
+         * 応答を待つ間や応答を読む間に、これだけ何も届かなければ失敗にする
+         *
+         * @param readTimeout 読み込みタイムアウト（ミリ秒）。0 なら無期限。負値なら既定値
+         * @return this
+         */
+        public BasicEntryBuilder setReadTimeout(int readTimeout) {
+            this.readTimeout = readTimeout;
+            return this;
+        }
+
+        /**
+         * 送信データの書き出しがこれだけ進まなければ、接続を切って失敗にする。
+         * 既定では掛けない
+         *
+         * @param writeTimeout 書き込みタイムアウト（ミリ秒）。0 以下なら無期限
+         * @return this
+         */
+        public BasicEntryBuilder setWriteTimeout(int writeTimeout) {
+            this.writeTimeout = writeTimeout;
+            return this;
+        }
+
+        /**
+         * 1 回の送信が接続から応答を読み終わるまでにこれだけ掛かったら、接続を切って失敗にする。
+         * 再送する場合は、再送ごとに数え直す
+         *
+         * @param deadline 送信全体の期限（ミリ秒）。0 以下なら無期限
+         * @return this
+         */
+        public BasicEntryBuilder setDeadline(long deadline) {
+            this.deadline = deadline;
+            return this;
+        }
+
+        /**
+         * 複数の送信スレッドを使う場合でも、同じ順序キーを持つ Entry は post した順に 1 つずつ送信される
+         *
+         * @param orderKey 順序キー。null なら順序を気にしない
+         * @return this
+         */
+        public BasicEntryBuilder setOrderKey(@Nullable String orderKey) {
+            this.orderKey = orderKey;
+            return this;
+        }
+
+        /**
+         * 送信時に gzip で圧縮して Content-Encoding: gzip を付ける。
+         * 圧縮は書き出しながら行うので、圧縮後のデータ全体をメモリに溜めることはない
+         *
+         * @param level     圧縮レベル。1 から 9 か Deflater.DEFAULT_COMPRESSION。0 なら圧縮しない
+         * @param minLength これより短いデータは圧縮しない。長さが分からないデータは圧縮する
+         * @return this
+         * @throws IllegalArgumentException 圧縮レベルが -1 から 9 でなかった
+         */
+        public BasicEntryBuilder setCompression(int level, long minLength) {
+            if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+                throw new IllegalArgumentException("invalid compression level: " + level);
+            }
+            this.compressionLevel = level;
+            this.compressionMinLength = minLength;
+            return this;
+        }
+
+        /**
+         * 再送は何度でも書き出せる Body の場合だけ行う
+         *
+         * @param retryPolicy 再送の仕方。null なら Poster に設定したもの
+         * @return this
+         */
+        public BasicEntryBuilder setRetryPolicy(@Nullable RetryPolicy retryPolicy) {
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * 優先度の高い Entry から送信する。
+         * 待たされている Entry は待ち時間に応じて優先度が上がるので、低い優先度の Entry もいずれ送信される
+         *
+         * @param priority 優先度。PRIORITY_LOW や PRIORITY_HIGH など。大きいほど先に送る
+         * @return this
+         */
+        public BasicEntryBuilder setPriority(int priority) {
+            this.priority = priority;
+            return this;
+        }
+
+        /**
+         * post してからこの時間内に送信を始められなかった Entry は、送信せずに ExpiredException で onError を呼ぶ。
+         * 再送待ちの間に期限が切れた場合も同じ
+         *
+         * @param timeToLive 有効期間（ミリ秒）。0 以下なら無期限
+         * @return this
+         */
+        public BasicEntryBuilder setTimeToLive(long timeToLive) {
+            this.timeToLive = timeToLive;
+            return this;
+        }
+
+        /**
+         * 送信スレッドがある場合、同じ置き換えキーを持つまだ送信していない Entry を、この Entry で置き換える。
+         * 置き換えはキューの同じ位置で行い、置き換えられた Entry は送信されず、onFinish も onError も呼ばれない。
+         * 位置情報のように最新の値だけ送れば良いものに使う
+         *
+         * @param coalesceKey 置き換えキー。null なら置き換えない
+         * @return this
+         */
+        public BasicEntryBuilder setCoalesceKey(@Nullable String coalesceKey) {
+            this.coalesceKey = coalesceKey;
+            return this;
+        }
+
+        /**
+         * 応答本体を読み込んで、onResponse や PostFuture に渡す Response に入れる。
+         * 上限を超えた分は読み込まずに捨てる
+         *
+         * @param limit 読み込むバイト数の上限。0 なら読み込まない
+         * @return this
+         */
+        public BasicEntryBuilder setResponseLimit(int limit) {
+            this.responseLimit = limit;
+            return this;
+        }
+
+        /**
+         * 応答本体をメモリに溜めずに読む場合に使う。
+         * 指定した場合、応答本体は Response に入らない
+         *
+         * @param responseHandler 応答本体を渡す先。null なら渡さない
+         * @return this
+         */
+        public BasicEntryBuilder setResponseHandler(@Nullable ResponseHandler responseHandler) {
+            this.responseHandler = responseHandler;
+            return this;
+        }
+
+        /**
+         * @param onResponse 応答を受け取った後で onFinish に続けて実行する関数。応答ヘッダも受け取れる
+         * @return this
+         */
+        public BasicEntryBuilder setOnResponse(@Nullable Consumer<Response> onResponse) {
+            this.onResponse = onResponse;
+            return this;
+        }
+
+        /**
+         * UploadScheduler に渡した場合に、条件を満たすまで送信を待たせる。
+         * Poster に直接渡した場合は無視される
+         *
+         * @param constraints 送信してよい条件。null なら待たせない
+         * @return this
+         */
+        public BasicEntryBuilder setConstraints(@Nullable Constraints constraints) {
+            this.constraints = constraints;
+            return this;
+        }
+
+        /**
+         * setUrl で指定した URL が endpoint の基底 URL の下にあれば、送るたびに基底 URL を選び直す。
+         * URL は Endpoint.url でつくると良い。
+         * ジャーナルから送り直すときには設定されない
+         *
+         * @param endpoint 送信先の候補。null なら setUrl の URL だけに送る
+         * @return this
+         */
+        public BasicEntryBuilder setEndpoint(@Nullable Endpoint endpoint) {
+            this.endpoint = endpoint;
+            return this;
+        }
+
     }
 
     private static class PostHandler extends Handler {
 
         private static final int MSG_POST = 0;
+        private static final int MSG_SYNC = 1;
+        private static final int MSG_RETRY = 2;
+
+        private final Poster poster;
 
-        private PostHandler(@NonNull Looper looper) {
+        private PostHandler(@NonNull Looper looper, @NonNull Poster poster) {
             super(looper);
+            this.poster = poster;
         }
 
         @Override
         public void handleMessage(Message msg) {
-            if (msg.what == MSG_POST) {
-                final Entry entry = (Entry) msg.obj;
-                post(entry);
-            }
-        }
-
-        private static void post(@NonNull Entry entry) {
-            try {
-                final HttpURLConnection connection = (HttpURLConnection) entry.url.openConnection();
-                try {
-                    connection.setConnectTimeout(entry.timeout);
-                    connection.setDoOutput(entry.data != null);
-                    connection.setDoInput(false);
-                    for (final Map.Entry<String, String> header : entry.header.entrySet()) {
-                        connection.setRequestProperty(header.getKey(), header.getValue());
-                    }
-                    connection.connect();
-
-                    if (entry.data != null) {
-                        try (final OutputStream reqBody = new BufferedOutputStream(connection.getOutputStream())) {
-                            reqBody.write(entry.data);
+            switch (msg.what) {
+                case MSG_POST: {
+                    final Task task = this.poster.queue.poll();
+                    this.poster.dropExpired();
+                    if (task != null) {
+                        try {
+                            this.poster.send(task);
+                        } finally {
+                            this.poster.queue.done(task);
+                        }
+                        if (!this.poster.queue.isEmpty() && !hasMessages(MSG_POST)) {
+                            // 送信中の Task に止められていた同じ順序キーの Task は、
+                            // 追加されたときの MSG_POST を空振りしているので取り出し直す
+                            sendEmptyMessage(MSG_POST);
                         }
                     }
-                    entry.onFinish.accept(connection.getResponseCode());
-                } finally {
-                    connection.disconnect();
+                    break;
+                }
+                case MSG_SYNC: {
+                    this.poster.syncJournal();
+                    break;
+                }
+                case MSG_RETRY: {
+                    this.poster.queue.addRetry((Task) msg.obj);
+                    sendEmptyMessage(MSG_POST);
+                    break;
                 }
-            } catch (Exception e) {
-                entry.onError.accept(e);
             }
         }
 
         /**
-         * @param entry POST する内容
-         * @param clear true なら溜まってる分は捨てる
+         * 送信スレッドを塞がずに、待ってから再送に回す
+         *
+         * @param task  再送する Task
+         * @param delay 待ち時間（ミリ秒）
+         */
+        void retry(@NonNull Task task, long delay) {
+            sendMessageDelayed(obtainMessage(MSG_RETRY, task), delay);
+        }
+
+        /**
+         * @param task 追加した Task
          */
-        void post(@NonNull Entry entry, boolean clear) {
-            if (clear && hasMessages(MSG_POST)) {
-                removeMessages(MSG_POST);
+        void notifyAdded(@NonNull Task task) {
+            sendEmptyMessage(MSG_POST);
+
+            final Journal journal = this.poster.journal;
+            if (journal != null && task.journalId >= 0 && !hasMessages(MSG_SYNC)) {
+                // まとめて同期しきれなかった分が残らないように
+                sendEmptyMessageDelayed(MSG_SYNC, journal.getSyncInterval());
             }
-            sendMessage(obtainMessage(MSG_POST, entry));
         }
 
     }
 
+    private final TaskQueue queue;
     private final PostHandler handler;
+    private final WorkerPool pool;
+    private final Random random;
+    private volatile Journal journal;
+    private volatile RetryPolicy retryPolicy;
+    private volatile Transport transport;
+    private volatile PostListener listener;
+    private volatile File spillDirectory;
+    private final PosterStats stats;
+    // 送信待ちから取り出して、まだ終わっていない Task。送信中のものと再送待ちのもの
+    private final List<Task> active;
+
+    private Poster(@Nullable Looper looper, int workers, int maxPerHost) {
+        this.queue = (looper == null && workers <= 0 ? null : new TaskQueue(maxPerHost));
+        this.handler = (looper == null ? null : new PostHandler(looper, this));
+        this.pool = (workers <= 0 ? null : new WorkerPool(this, this.queue, workers));
+        this.random = new Random();
+        this.transport = new UrlConnectionTransport();
+        this.stats = new PosterStats();
+        this.active = new ArrayList<>();
+        this.retryPolicy = RetryPolicy.NONE;
+        if (this.pool != null) {
+            this.pool.start();
+        }
+    }
 
     /**
      * @param looper 送信スレッド。
      *               null の場合、post を実行したスレッドで送信処理を行うインスタンスをつくる
      */
     public Poster(@Nullable Looper looper) {
-        this.handler = (looper == null ? null : new PostHandler(looper));
+        this(looper, 0, 0);
     }
 
     /**
@@ -235,21 +607,203 @@ public class Poster {
         this(null);
     }
 
+    /**
+     * 複数の送信スレッドで並行して送信するインスタンスをつくる。
+     * 送信スレッドは shutdown で止める
+     *
+     * @param workers    送信スレッド数
+     * @param maxPerHost 同じホストへの同時送信数の上限。0 以下なら無制限
+     */
+    public Poster(int workers, int maxPerHost) {
+        this(null, checkWorkers(workers), maxPerHost);
+    }
+
+    private static int checkWorkers(int workers) {
+        if (workers <= 0) {
+            throw new IllegalArgumentException("non-positive workers: " + workers);
+        }
+        return workers;
+    }
+
+    /**
+     * 複数の送信スレッドを使っている場合、それらを止める。
+     * 送信中の Entry は最後まで送信される。
+     * 溜まっている Entry と再送待ちの Entry は送信せず、RejectedException で onError を呼ぶ。
+     * 送信中の Entry が再送することになった場合も同じ。
+     * ジャーナルの記録は消さないので、次の replay で送り直せる。
+     * 止めた後の post は RejectedException で断る
+     */
+    public void shutdown() {
+        if (this.pool == null) {
+            return;
+        }
+        final List<Task> remaining = this.pool.shutdown();
+        remaining.addAll(this.queue.close());
+        final RejectedException e = new RejectedException("poster is shut down");
+        for (final Task task : remaining) {
+            release(task);
+            fail(task, e, null);
+        }
+    }
+
+    /**
+     * 送信待ちの Entry をジャーナルに記録するようにする。
+     * Body が何度も書き出せないか長さの分からない Entry は記録しない。
+     * 送信前に設定すること
+     *
+     * @param journal ジャーナル。null なら記録しない
+     * @return this
+     */
+    @NonNull
+    public Poster setJournal(@Nullable Journal journal) {
+        this.journal = journal;
+        return this;
+    }
+
+    /**
+     * 送信スレッドがある場合、再送の待ち時間は送信スレッドを塞がない。
+     * 送信スレッドが無い場合は post を実行したスレッドで待つ
+     *
+     * @param retryPolicy Entry に指定が無い場合の再送の仕方。null なら再送しない
+     * @return this
+     */
+    @NonNull
+    public Poster setRetryPolicy(@Nullable RetryPolicy retryPolicy) {
+        this.retryPolicy = (retryPolicy != null ? retryPolicy : RetryPolicy.NONE);
+        return this;
+    }
+
+    /**
+     * 送信処理を差し替える。送信前に設定すること
+     *
+     * @param transport 送信処理。null なら HttpURLConnection を使う既定のもの
+     * @return this
+     */
+    @NonNull
+    public Poster setTransport(@Nullable Transport transport) {
+        this.transport = (transport != null ? transport : new UrlConnectionTransport());
+        return this;
+    }
+
+    /**
+     * 送信スレッドがある場合に、送信待ちの Entry を溜める上限を決める。
+     * 再送で上限を超えないように、送信中と再送待ちの Entry も数える。
+     * 上限に達すると、post は policy に従い、offer は受け付けずに false を返す。
+     * 捨てた Entry には RejectedException で onError を呼ぶ。
+     * SPILL では、ジャーナルがあればその記録を、無ければ setSpillDirectory のファイルを Body として使い、
+     * 逃がした Entry は上限に数えない
+     *
+     * @param maxEntries 溜める Entry の数の上限。0 以下なら無制限
+     * @param maxBytes   溜める Entry の Body の長さの合計の上限。0 以下なら無制限
+     * @param policy     上限に達したときの扱い
+     * @return this
+     */
+    @NonNull
+    public Poster setCapacity(int maxEntries, long maxBytes, @NonNull OverflowPolicy policy) {
+        if (this.queue != null) {
+            this.queue.setCapacity(maxEntries, maxBytes, policy);
+        }
+        return this;
+    }
+
+    /**
+     * 前回までに残った逃がし先のファイルは消す
+     *
+     * @param directory OverflowPolicy.SPILL で Body を逃がすディレクトリ。null なら逃がさずに捨てる
+     * @return this
+     */
+    @NonNull
+    public Poster setSpillDirectory(@Nullable File directory) {
+        if (directory != null) {
+            final File[] files = directory.listFiles((File dir, String name) -> name.endsWith(SPILL_SUFFIX));
+            if (files != null) {
+                for (final File file : files) {
+                    file.delete();
+                }
+            }
+        }
+        this.spillDirectory = directory;
+        return this;
+    }
+
+    /**
+     * @param listener Entry の送信が終わるたびに呼ぶ関数。null なら呼ばない
+     * @return this
+     */
+    @NonNull
+    public Poster setListener(@Nullable PostListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * @return 送信の集計
+     */
+    @NonNull
+    public PosterStats getStats() {
+        return this.stats;
+    }
+
+    /**
+     * ジャーナルに残っている未送信の Entry を送信する。
+     * 通信エラーで送信できなかった Entry も、もう一度呼べば送り直す。
+     * 再送の仕方などジャーナルに保存されない設定は Poster の既定のものになる
+     *
+     * @param onFinish POST した後で実行する関数
+     * @param onError  エラー発生時に実行する関数
+     * @return 送信に回した Entry の数
+     */
+    public int replay(@Nullable Consumer<Integer> onFinish, @Nullable Consumer<Exception> onError) {
+        final Journal journal = this.journal;
+        if (journal == null) {
+            return 0;
+        }
+
+        final List<Journal.Record> records = journal.claim();
+        for (final Journal.Record record : records) {
+            final Entry entry = record.newBuilder()
+                    .setBody(record.hasBody() ? journal.body(record) : null)
+                    .setOnFinish(onFinish)
+                    .setOnError(onError)
+                    .build();
+            final Task task = new Task(entry, record.id);
+            try {
+                enqueue(task, false, false, false);
+            } catch (RejectedException e) {
+                // 上限を守らないので、断られるのは shutdown の後だけ
+                fail(task, e, null);
+            }
+        }
+        return records.size();
+    }
+
     /**
      * 送信する。
-     * 初期化時に送信スレッドを指定している場合、送信終了を待たずに返る。
-     * 初期化時に送信スレッドを指定していなければ、送信終了までブロックする。
+     * 送信スレッドがある場合、送信終了を待たずに返る。
+     * 送信スレッドが無ければ、送信終了までブロックする。
+     * ジャーナルへの記録に失敗した場合は送信せずに onError を呼ぶ。
+     * 送信待ちの Entry が上限に達していて BLOCK の場合、空くまで待つ。
+     * ただし、送信スレッドの Looper 上で呼んだ場合は待たずに捨てる
      *
      * @param entry POST する内容
-     * @param clear 送信スレッドを指定している場合、true なら溜まってる分を捨てる。
-     *              送信スレッドを指定していない場合、意味無し
+     * @param clear 送信スレッドがある場合、true なら溜まってる分を捨てる。
+     *              送信スレッドが無い場合、意味無し。
+     *              最新の値だけ送りたい場合は、他の Entry を巻き込まない BasicEntryBuilder.setCoalesceKey を使うと良い
      */
     public void post(@NonNull Entry entry, boolean clear) {
-        if (this.handler == null) {
-            PostHandler.post(entry);
+        final Task task;
+        try {
+            task = newTask(entry);
+        } catch (IOException e) {
+            entry.onError.accept(e);
             return;
         }
-        this.handler.post(entry, clear);
+        try {
+            enqueue(task, clear, true, true);
+        } catch (RejectedException e) {
+            this.stats.recordDropped();
+            entry.onError.accept(e);
+        }
     }
 
     /**
@@ -259,4 +813,522 @@ public class Poster {
         post(entry, false);
     }
 
+    /**
+     * post と同じだが、送信待ちの Entry が上限に達していたら待たずに受け付けない。
+     * 受け付けなかった場合、entry の onError は呼ばない
+     *
+     * @param entry POST する内容
+     * @return 受け付けたら true
+     */
+    public boolean offer(@NonNull Entry entry) {
+        final Task task;
+        try {
+            task = newTask(entry);
+        } catch (IOException e) {
+            entry.onError.accept(e);
+            return false;
+        }
+        try {
+            enqueue(task, false, true, false);
+        } catch (RejectedException e) {
+            this.stats.recordDropped();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * post と同じように送信し、結果を PostFuture で返す。
+     * entry の onFinish や onError も今まで通り呼ばれる。
+     * 送信スレッドが無ければ、送信終了までブロックして完了した PostFuture を返す
+     *
+     * @param entry POST する内容
+     * @return 送信結果
+     */
+    @NonNull
+    public PostFuture submit(@NonNull Entry entry) {
+        return submit(entry, true);
+    }
+
+    /**
+     * @param journaled ジャーナルに記録するなら true。呼び出し側で既に保存している場合は false
+     */
+    @NonNull
+    PostFuture submit(@NonNull Entry entry, boolean journaled) {
+        final PostFuture future = new PostFuture(this);
+        final Task task;
+        try {
+            task = (journaled ? newTask(entry) : new Task(entry, -1));
+        } catch (IOException e) {
+            entry.onError.accept(e);
+            future.fail(e, null);
+            return future;
+        }
+        task.future = future;
+        try {
+            enqueue(task, false, true, true);
+        } catch (RejectedException e) {
+            this.stats.recordDropped();
+            fail(task, e, null);
+        }
+        return future;
+    }
+
+    /**
+     * @return entry を送る Task
+     * @throws IOException ジャーナルに記録できなかった
+     */
+    @NonNull
+    private Task newTask(@NonNull Entry entry) throws IOException {
+        long journalId = -1;
+        final Journal journal = this.journal;
+        if (journal != null && Journal.canAppend(entry.body)) {
+            journalId = journal.append(entry);
+        }
+        return new Task(entry, journalId);
+    }
+
+    /**
+     * 送信待ちから取り除く。送信中のものは送信後に捨てられる
+     *
+     * @param future 取り消された送信結果
+     */
+    void cancel(@NonNull PostFuture future) {
+        if (this.queue == null) {
+            return;
+        }
+        final Task task = this.queue.remove(future);
+        if (task != null) {
+            acknowledge(task);
+        }
+    }
+
+    /**
+     * post した Entry を取り消す。
+     * 送信待ちなら送信せず、送信中なら接続を切り、再送待ちなら再送しない。
+     * 取り消した Entry の onFinish と onError は呼ばれない。
+     * submit で送信したものなら PostFuture も取り消す
+     *
+     * @param entry post に渡した Entry
+     * @return 取り消したら true。既に終わっていたか、受け取っていなければ false
+     */
+    public boolean cancel(@NonNull Entry entry) {
+        Task task = (this.queue != null ? this.queue.remove(entry) : null);
+        if (task != null) {
+            task.cancelled = true;
+            discard(task);
+            return true;
+        }
+
+        synchronized (this.active) {
+            for (final Task activeTask : this.active) {
+                if (activeTask.origin == entry) {
+                    task = activeTask;
+                    break;
+                }
+            }
+        }
+        if (task == null || task.cancelled) {
+            return false;
+        }
+        task.cancelled = true;
+        if (task.future != null) {
+            task.future.cancel(true);
+        }
+        final Watchdog.Watch watch = task.watch;
+        if (watch != null) {
+            watch.cancel();
+        }
+        return true;
+    }
+
+    /**
+     * @param bounded 上限を守るなら true
+     * @param wait    上限に達していて BLOCK の場合、空くまで待つなら true
+     * @throws RejectedException 上限に達していたので追加しなかった
+     */
+    private void enqueue(@NonNull Task task, boolean clear, boolean bounded, boolean wait) throws RejectedException {
+        if (this.queue == null) {
+            send(task);
+            return;
+        }
+
+        final List<Task> dropped = (clear ? this.queue.clear() : Collections.<Task>emptyList());
+        for (final Task droppedTask : dropped) {
+            discard(droppedTask);
+        }
+
+        final Task replaced;
+        final List<Task> evicted = new ArrayList<>(0);
+        if (bounded) {
+            if (this.queue.getOverflowPolicy() == OverflowPolicy.SPILL && this.queue.isFull(task)) {
+                task = spill(task);
+            }
+            try {
+                replaced = this.queue.offer(task, wait && !isHandlerThread(), evicted);
+            } catch (RejectedException e) {
+                acknowledge(task);
+                throw e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                acknowledge(task);
+                throw new RejectedException("interrupted while waiting for room", e);
+            }
+        } else {
+            try {
+                replaced = this.queue.add(task);
+            } catch (RejectedException e) {
+                release(task);
+                throw e;
+            }
+        }
+
+        if (replaced != null) {
+            discard(replaced);
+            this.stats.recordCoalesced();
+        }
+        for (final Task evictedTask : evicted) {
+            acknowledge(evictedTask);
+            this.stats.recordDropped();
+            fail(evictedTask, new RejectedException("evicted from full queue"), null);
+        }
+        if (this.handler != null) {
+            this.handler.notifyAdded(task);
+        }
+    }
+
+    private boolean isHandlerThread() {
+        return this.handler != null && Looper.myLooper() == this.handler.getLooper();
+    }
+
+    /**
+     * task の Body をメモリから追い出す。
+     * ジャーナルに記録していればその記録を、無ければ逃がし先のファイルを読むようにする
+     *
+     * @return Body を差し替えた Task
+     * @throws RejectedException 逃がせなかった
+     */
+    @NonNull
+    private Task spill(@NonNull Task task) throws RejectedException {
+        final Entry entry = task.entry;
+        Body body = null;
+        final Journal journal = this.journal;
+        if (journal != null && task.journalId >= 0) {
+            body = journal.body(task.journalId);
+        }
+
+        File file = null;
+        if (body == null && entry.body != null) {
+            final File directory = this.spillDirectory;
+            if (directory == null) {
+                acknowledge(task);
+                throw new RejectedException("queue is full and no spill directory");
+            }
+            try {
+                file = File.createTempFile(SPILL_PREFIX, SPILL_SUFFIX, directory);
+                try (final OutputStream output = new FileOutputStream(file)) {
+                    entry.body.writeTo(output);
+                }
+            } catch (IOException e) {
+                if (file != null) {
+                    file.delete();
+                }
+                acknowledge(task);
+                throw new RejectedException("queue is full and spill failed", e);
+            }
+            body = Bodies.of(file);
+        }
+
+        final Task spilled = new Task(new Entry(entry, body), task.journalId);
+        Bodies.recycle(entry.body);
+        spilled.spilled = true;
+        spilled.spillFile = file;
+        spilled.future = task.future;
+        spilled.origin = task.origin;
+        return spilled;
+    }
+
+    void send(@NonNull Task task) {
+        final Entry entry = task.entry;
+        final RetryPolicy policy = (entry.retryPolicy != null ? entry.retryPolicy : this.retryPolicy);
+        final long start = System.nanoTime();
+        if (task.attempts == 0) {
+            synchronized (this.active) {
+                this.active.add(task);
+            }
+            task.queueWait = start - task.enqueuedAt;
+        }
+        task.retrying = false;
+        syncJournalIfNeeded();
+        if (isCancelled(task)) {
+            acknowledge(task);
+            return;
+        }
+        if (task.isExpired(start)) {
+            expire(task);
+            return;
+        }
+        task.attempts++;
+
+        final PostMetrics metrics = new PostMetrics();
+        final Response response;
+        try {
+            response = execute(task, metrics);
+        } catch (Exception e) {
+            if (isCancelled(task)) {
+                // 取り消しで接続を切られた
+                acknowledge(task);
+                return;
+            }
+            if (policy.isRetryable(e) && retry(task, policy, null)) {
+                return;
+            }
+            if (e instanceof IOException) {
+                // 届いていないかもしれないので、ジャーナルに残して送り直せるようにする
+                release(task);
+            } else {
+                acknowledge(task);
+            }
+            metrics.error = e;
+            report(task, metrics, start);
+            fail(task, e, metrics);
+            return;
+        }
+        if (policy.isRetryable(response.getStatus()) && retry(task, policy, response.getHeader(RETRY_AFTER))) {
+            return;
+        }
+        acknowledge(task);
+        metrics.status = response.getStatus();
+        report(task, metrics, start);
+        try {
+            callBack(entry, () -> entry.onFinish.accept(response.getStatus()));
+            callBack(entry, () -> entry.onResponse.accept(response));
+        } finally {
+            if (task.future != null) {
+                task.future.complete(response, metrics);
+            }
+        }
+    }
+
+    /**
+     * 利用側の処理が投げた例外は onError に回す。送信の後始末は止めない
+     */
+    private static void callBack(@NonNull Entry entry, @NonNull Runnable callback) {
+        try {
+            callback.run();
+        } catch (RuntimeException e) {
+            entry.onError.accept(e);
+        }
+    }
+
+    private static boolean isCancelled(@NonNull Task task) {
+        return task.cancelled || (task.future != null && task.future.isCancelled());
+    }
+
+    private static void fail(@NonNull Task task, @NonNull Exception e, @Nullable PostMetrics metrics) {
+        try {
+            task.entry.onError.accept(e);
+        } finally {
+            if (task.future != null) {
+                task.future.fail(e, metrics);
+            }
+        }
+    }
+
+    /**
+     * 溜まっている分を捨てた場合や置き換えた場合に、送信せずに終わらせる
+     */
+    private void discard(@NonNull Task task) {
+        acknowledge(task);
+        if (task.future != null) {
+            task.future.cancel(false);
+        }
+    }
+
+    private void report(@NonNull Task task, @NonNull PostMetrics metrics, long start) {
+        metrics.total = System.nanoTime() - start;
+        metrics.queueWait = task.queueWait;
+        metrics.retries = task.attempts - 1;
+        this.stats.record(metrics);
+
+        final PostListener listener = this.listener;
+        if (listener != null) {
+            callBack(task.entry, () -> listener.onPosted(task.entry, metrics));
+        }
+    }
+
+    /**
+     * 送信待ちの間に期限が切れた Entry を送信せずに終わらせる
+     */
+    void dropExpired() {
+        if (this.queue == null) {
+            return;
+        }
+        for (final Task task : this.queue.drainExpired()) {
+            expire(task);
+        }
+    }
+
+    private void expire(@NonNull Task task) {
+        acknowledge(task);
+        this.stats.recordExpired();
+        fail(task, new ExpiredException(task.entry.url, task.entry.timeToLive), null);
+    }
+
+    /**
+     * @return 再送に回したか、shutdown されていて断ったら true
+     */
+    private boolean retry(@NonNull Task task, @NonNull RetryPolicy policy, @Nullable String retryAfter) {
+        final Body body = task.entry.body;
+        if (task.attempts >= policy.getMaxAttempts() || (body != null && !body.isRepeatable()) || isCancelled(task)) {
+            return false;
+        }
+
+        final long delay = policy.getDelay(task.attempts, retryAfter, this.random);
+        if (this.handler != null) {
+            task.retrying = true;
+            this.handler.retry(task, delay);
+        } else if (this.pool != null) {
+            task.retrying = true;
+            if (!this.pool.retry(task, delay)) {
+                // shutdown された。再送待ちの Task と同じく断る
+                task.retrying = false;
+                release(task);
+                fail(task, new RejectedException("poster is shut down"), null);
+            }
+        } else {
+            // post が送信終了までブロックする使い方なので、ここで待つ
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            send(task);
+        }
+        return true;
+    }
+
+    /**
+     * @throws SocketTimeoutException 書き込みタイムアウトか送信全体の期限で接続を切った
+     */
+    @NonNull
+    private Response execute(@NonNull Task task, @NonNull PostMetrics metrics) throws IOException {
+        final Entry entry = task.entry;
+        final Watchdog.Watch watch = Watchdog.watch(task.future, entry.deadline, entry.writeTimeout);
+        task.watch = watch;
+        if (task.cancelled) {
+            // watch を設定する前に cancel された
+            watch.cancel();
+        }
+        try {
+            final Body compressed = compress(entry);
+            final HeaderTemplate header = (compressed != entry.body ? entry.header.with(CONTENT_ENCODING, CONTENT_ENCODING_GZIP) : entry.header);
+            final Body body = watch.wrap(compressed);
+            if (entry.endpoint == null) {
+                return send(entry, entry.url, header, body, metrics, task.future, watch);
+            }
+            final boolean repeatable = (body == null || body.isRepeatable());
+            return entry.endpoint.execute(entry.url, repeatable, watch, metrics,
+                    (URL url) -> send(entry, url, header, body, metrics, task.future, watch));
+        } catch (IOException e) {
+            final String timeout = watch.getTimeout();
+            if (timeout == null) {
+                throw e;
+            }
+            final SocketTimeoutException timedOut = new SocketTimeoutException(timeout);
+            timedOut.initCause(e);
+            throw timedOut;
+        } finally {
+            task.watch = null;
+            Watchdog.unwatch(watch);
+        }
+    }
+
+    @NonNull
+    private Response send(@NonNull Entry entry, @NonNull URL url, @NonNull HeaderTemplate header, @Nullable Body body,
+                          @NonNull PostMetrics metrics, @Nullable PostFuture future, @NonNull Watchdog.Watch watch) throws IOException {
+        final Request request = new Request(url, header, body, entry.timeout, entry.readTimeout, entry.responseLimit, entry.responseHandler, metrics, future);
+        watch.attach(request);
+        return this.transport.send(request);
+    }
+
+    /**
+     * @return 圧縮する場合は圧縮しながら書き出す Body、しない場合は entry.body
+     */
+    @Nullable
+    private static Body compress(@NonNull Entry entry) {
+        final Body body = entry.body;
+        if (body == null || entry.compressionLevel == Deflater.NO_COMPRESSION) {
+            return body;
+        }
+        final long length = body.getLength();
+        if (length >= 0 && length < entry.compressionMinLength) {
+            return body;
+        }
+        return Bodies.gzip(body, entry.compressionLevel);
+    }
+
+    private void acknowledge(@NonNull Task task) {
+        dispose(task);
+        final Journal journal = this.journal;
+        if (journal == null || task.journalId < 0) {
+            return;
+        }
+        try {
+            journal.ack(task.journalId);
+        } catch (IOException e) {
+            // 消せなかった記録は次の replay で送り直されるだけ
+        }
+    }
+
+    private void release(@NonNull Task task) {
+        dispose(task);
+        final Journal journal = this.journal;
+        if (journal == null || task.journalId < 0) {
+            return;
+        }
+        journal.release(task.journalId);
+    }
+
+    /**
+     * 送信が終わった Task が抱えていた逃がし先のファイルやバッファを片付ける
+     */
+    private void dispose(@NonNull Task task) {
+        synchronized (this.active) {
+            this.active.remove(task);
+        }
+        if (task.spillFile != null) {
+            task.spillFile.delete();
+        }
+        Bodies.recycle(task.entry.body);
+    }
+
+    void syncJournal() {
+        final Journal journal = this.journal;
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.sync();
+        } catch (IOException e) {
+            // 次の同期で再試行される
+        }
+    }
+
+    /**
+     * 記録するスレッドを待たせないように、ジャーナルの同期は送信するスレッドで行う
+     */
+    private void syncJournalIfNeeded() {
+        final Journal journal = this.journal;
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.syncIfNeeded();
+        } catch (IOException e) {
+            // 次の同期で再試行される
+        }
+    }
+
 }
@@ -0,0 +1,174 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Poster の送信の集計。
+ * 送信のたびに更新されるので、必要なときに値を読めば良い
+ */
+public final class PosterStats {
+
+    private final AtomicLong posted;
+    private final AtomicLong failed;
+    private final AtomicLong expired;
+    private final AtomicLong coalesced;
+    private final AtomicLong dropped;
+    private final AtomicLong retries;
+    private final AtomicLong bytesSent;
+
+    private final Histogram queueWait;
+    private final Histogram connect;
+    private final Histogram write;
+    private final Histogram firstByte;
+    private final Histogram total;
+
+    PosterStats() {
+        this.posted = new AtomicLong();
+        this.failed = new AtomicLong();
+        this.expired = new AtomicLong();
+        this.coalesced = new AtomicLong();
+        this.dropped = new AtomicLong();
+        this.retries = new AtomicLong();
+        this.bytesSent = new AtomicLong();
+        this.queueWait = new Histogram();
+        this.connect = new Histogram();
+        this.write = new Histogram();
+        this.firstByte = new Histogram();
+        this.total = new Histogram();
+    }
+
+    void record(@NonNull PostMetrics metrics) {
+        if (metrics.error != null) {
+            this.failed.incrementAndGet();
+        } else {
+            this.posted.incrementAndGet();
+        }
+        this.retries.addAndGet(metrics.retries);
+        this.bytesSent.addAndGet(metrics.bytesSent);
+        this.queueWait.record(metrics.queueWait);
+        this.connect.record(metrics.connect);
+        this.write.record(metrics.write);
+        this.firstByte.record(metrics.firstByte);
+        this.total.record(metrics.total);
+    }
+
+    void recordExpired() {
+        this.expired.incrementAndGet();
+    }
+
+    void recordCoalesced() {
+        this.coalesced.incrementAndGet();
+    }
+
+    void recordDropped() {
+        this.dropped.incrementAndGet();
+    }
+
+    /**
+     * @return 応答を受け取れた Entry の数
+     */
+    public long getPosted() {
+        return this.posted.get();
+    }
+
+    /**
+     * @return 例外で終わった Entry の数
+     */
+    public long getFailed() {
+        return this.failed.get();
+    }
+
+    /**
+     * @return 有効期限が切れて送信しなかった Entry の数
+     */
+    public long getExpired() {
+        return this.expired.get();
+    }
+
+    /**
+     * @return 後から post した Entry に置き換えられて送信しなかった Entry の数
+     */
+    public long getCoalesced() {
+        return this.coalesced.get();
+    }
+
+    /**
+     * @return 送信待ちの上限に達していたため受け付けなかった、もしくは追い出した Entry の数
+     */
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    /**
+     * @return 再送した回数の合計
+     */
+    public long getRetries() {
+        return this.retries.get();
+    }
+
+    /**
+     * @return 送信したバイト数の合計
+     */
+    public long getBytesSent() {
+        return this.bytesSent.get();
+    }
+
+    /**
+     * @return 送信待ち時間の分布
+     */
+    @NonNull
+    public Histogram getQueueWait() {
+        return this.queueWait;
+    }
+
+    /**
+     * @return 接続時間の分布
+     */
+    @NonNull
+    public Histogram getConnect() {
+        return this.connect;
+    }
+
+    /**
+     * @return 書き出し時間の分布
+     */
+    @NonNull
+    public Histogram getWrite() {
+        return this.write;
+    }
+
+    /**
+     * @return 応答待ち時間の分布
+     */
+    @NonNull
+    public Histogram getFirstByte() {
+        return this.firstByte;
+    }
+
+    /**
+     * @return 送信全体の時間の分布
+     */
+    @NonNull
+    public Histogram getTotal() {
+        return this.total;
+    }
+
+}
@@ -0,0 +1,34 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.NonNull;
+
+/**
+ * 送信待ちの Entry が上限に達していたので、受け付けなかった、もしくは追い出した
+ */
+public class RejectedException extends Exception {
+
+    RejectedException(@NonNull String message) {
+        super(message);
+    }
+
+    RejectedException(@NonNull String message, @NonNull Throwable cause) {
+        super(message, cause);
+    }
+
+}
@@ -0,0 +1,195 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Transport に渡す 1 回分の送信内容
+ */
+public final class Request {
+
+    private final URL url;
+    private final Map<String, String> header;
+    private final Body body;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final PostMetrics metrics;
+    private final PostFuture future;
+    private final int responseLimit;
+    private final ResponseHandler responseHandler;
+
+    private Runnable abort;
+    private boolean aborted;
+
+    Request(@NonNull URL url, @NonNull Map<String, String> header, @Nullable Body body, int connectTimeout, int readTimeout,
+            int responseLimit, @Nullable ResponseHandler responseHandler, @Nullable PostMetrics metrics, @Nullable PostFuture future) {
+        this.url = url;
+        this.header = header;
+        this.body = body;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.responseLimit = responseLimit;
+        this.responseHandler = responseHandler;
+        this.metrics = metrics;
+        this.future = future;
+    }
+
+    /**
+     * @return POST 先 URL
+     */
+    @NonNull
+    public URL getUrl() {
+        return this.url;
+    }
+
+    /**
+     * @return HTTP ヘッダ
+     */
+    @NonNull
+    public Map<String, String> getHeader() {
+        return this.header;
+    }
+
+    /**
+     * @return POST するデータ。圧縮する場合は圧縮しながら書き出す
+     */
+    @Nullable
+    public Body getBody() {
+        return this.body;
+    }
+
+    /**
+     * @return 接続タイムアウト（ミリ秒）
+     */
+    public int getConnectTimeout() {
+        return this.connectTimeout;
+    }
+
+    /**
+     * @return 読み込みタイムアウト（ミリ秒）。応答を待つ間や応答を読む間に、これだけ何も届かなければ失敗する。0 なら無期限
+     */
+    public int getReadTimeout() {
+        return this.readTimeout;
+    }
+
+    /**
+     * @return 応答本体を読み込んで Response に入れる上限のバイト数。0 なら読み込まない
+     */
+    public int getResponseLimit() {
+        return this.responseLimit;
+    }
+
+    /**
+     * @return 応答本体を渡す先。null なら渡さない
+     */
+    @Nullable
+    public ResponseHandler getResponseHandler() {
+        return this.responseHandler;
+    }
+
+    /**
+     * 送信中に取り消されたり期限を過ぎたりしたときの中断方法を登録する。
+     * 接続を切るなどして、送信中の処理を IOException で終わらせるものにすること。
+     * 既に中断されていたらすぐに実行する。
+     * 送信が終わったら null で解除する
+     *
+     * @param abort 中断する処理。null なら解除する
+     */
+    public void setAbort(@Nullable Runnable abort) {
+        final boolean aborted;
+        synchronized (this) {
+            this.abort = abort;
+            aborted = this.aborted;
+        }
+        if (this.future != null) {
+            this.future.setAbort(abort);
+        }
+        if (aborted && abort != null) {
+            abort.run();
+        }
+    }
+
+    /**
+     * @return 取り消されたか、期限を過ぎて中断されたら true
+     */
+    public boolean isCancelled() {
+        synchronized (this) {
+            if (this.aborted) {
+                return true;
+            }
+        }
+        return this.future != null && this.future.isCancelled();
+    }
+
+    /**
+     * 登録された中断方法で送信を中断する
+     */
+    void abort() {
+        final Runnable abort;
+        synchronized (this) {
+            if (this.aborted) {
+                return;
+            }
+            this.aborted = true;
+            abort = this.abort;
+        }
+        if (abort != null) {
+            abort.run();
+        }
+    }
+
+    /**
+     * 接続にかかった時間を報告する
+     *
+     * @param nanos 名前解決も含めた接続時間（ナノ秒）
+     */
+    public void recordConnect(long nanos) {
+        if (this.metrics != null) {
+            this.metrics.connect = nanos;
+        }
+    }
+
+    /**
+     * データの書き出しにかかった時間を報告する
+     *
+     * @param nanos 書き出し時間（ナノ秒）
+     * @param bytes 書き出したバイト数
+     */
+    public void recordWrite(long nanos, long bytes) {
+        if (this.metrics != null) {
+            this.metrics.write = nanos;
+            this.metrics.bytesSent = bytes;
+        }
+    }
+
+    /**
+     * 応答待ちにかかった時間を報告する
+     *
+     * @param nanos 書き出し終わってから応答が来るまでの時間（ナノ秒）
+     */
+    public void recordFirstByte(long nanos) {
+        if (this.metrics != null) {
+            this.metrics.firstByte = nanos;
+        }
+    }
+
+}
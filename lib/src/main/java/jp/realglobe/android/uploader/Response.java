@@ -0,0 +1,105 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * POST の応答
+ */
+public final class Response {
+
+    private final int status;
+    private final Map<String, List<String>> headers;
+    private final byte[] body;
+    private final boolean bodyTruncated;
+
+    /**
+     * @param status        HTTP ステータス
+     * @param headers       応答ヘッダ
+     * @param body          読み込んだ応答本体。読み込まなかった場合は null
+     * @param bodyTruncated 上限で読み込みを打ち切ったなら true
+     */
+    public Response(int status, @Nullable Map<String, List<String>> headers, @Nullable byte[] body, boolean bodyTruncated) {
+        this.status = status;
+        this.headers = (headers != null ? headers : Collections.emptyMap());
+        this.body = body;
+        this.bodyTruncated = bodyTruncated;
+    }
+
+    /**
+     * 応答本体を含まない応答をつくる
+     *
+     * @param status  HTTP ステータス
+     * @param headers 応答ヘッダ
+     */
+    public Response(int status, @Nullable Map<String, List<String>> headers) {
+        this(status, headers, null, false);
+    }
+
+    /**
+     * @return HTTP ステータス
+     */
+    public int getStatus() {
+        return this.status;
+    }
+
+    /**
+     * @return 応答ヘッダ
+     */
+    @NonNull
+    public Map<String, List<String>> getHeaders() {
+        return this.headers;
+    }
+
+    /**
+     * Entry で読み込むよう指定した場合だけ読み込まれる
+     *
+     * @return 応答本体。読み込まなかった場合は null
+     */
+    @Nullable
+    public byte[] getBody() {
+        return this.body;
+    }
+
+    /**
+     * @return 応答本体が上限より長く、読み込みを打ち切ったなら true
+     */
+    public boolean isBodyTruncated() {
+        return this.bodyTruncated;
+    }
+
+    /**
+     * @param name ヘッダ名。大文字小文字は区別しない
+     * @return ヘッダの最初の値。無ければ null
+     */
+    @Nullable
+    public String getHeader(@NonNull String name) {
+        for (final Map.Entry<String, List<String>> field : this.headers.entrySet()) {
+            if (name.equalsIgnoreCase(field.getKey()) && !field.getValue().isEmpty()) {
+                return field.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,40 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 応答本体を読む
+ */
+public interface ResponseHandler {
+
+    /**
+     * 送信スレッドで呼ばれる。
+     * body は呼び出し後に閉じられ、読み残した分は捨てられる。
+     * 例外を投げると送信の失敗として扱われる
+     *
+     * @param response 応答。本体は含まない
+     * @param body     応答本体
+     * @throws IOException 読み込みに失敗した
+     */
+    void onResponse(@NonNull Response response, @NonNull InputStream body) throws IOException;
+
+}
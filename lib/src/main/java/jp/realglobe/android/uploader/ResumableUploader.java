@@ -0,0 +1,267 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 大きなファイルを一定の大きさに分けて送り、途切れても途中から再開できるようにする。
+ * <p>
+ * 各断片は Content-Range: bytes 先頭-末尾/全体 を付けて POST する。
+ * サーバーは途中なら 308 と受け取り済みの範囲 Range: bytes=0-末尾 を、全部受け取ったら 2xx を返すこと。
+ * 再開時は Content-Range: bytes *&#47;全体 を付けた空の POST で受け取り済みの範囲を問い合わせる。
+ * 問い合わせに 404 か 410 が返ったら、サーバーが途中までの分を捨てたとみなして最初から送り直す。
+ * <p>
+ * 確認できた位置は保存するので、プロセスが終了しても再開できる。
+ * 断片を送っても位置が進まない 308 は、通信エラーと同じく失敗として RetryPolicy の回数に数える。
+ * 送信終了までブロックするので、UI スレッドから呼ばないこと
+ */
+public class ResumableUploader {
+
+    private static final long DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private static final int STATUS_RESUME_INCOMPLETE = 308;
+    private static final int STATUS_NOT_FOUND = 404;
+    private static final int STATUS_GONE = 410;
+
+    private static final String CONTENT_RANGE = "Content-Range";
+    private static final String RANGE = "Range";
+
+    private final Transport transport;
+    private final File stateDirectory;
+    private final Random random;
+
+    private long chunkSize;
+    private RetryPolicy retryPolicy;
+
+    /**
+     * @param transport      送信処理
+     * @param stateDirectory 送信済みの位置を保存するディレクトリ
+     */
+    public ResumableUploader(@NonNull Transport transport, @NonNull File stateDirectory) {
+        this.transport = transport;
+        this.stateDirectory = stateDirectory;
+        this.random = new Random();
+        this.chunkSize = DEFAULT_CHUNK_SIZE;
+        this.retryPolicy = (new RetryPolicy.Builder()).build();
+    }
+
+    /**
+     * @param chunkSize 1 回に送るバイト数
+     * @return this
+     */
+    @NonNull
+    public ResumableUploader setChunkSize(long chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("non-positive chunk size: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * @param retryPolicy 通信エラー時に問い合わせからやり直す回数と間隔
+     * @return this
+     */
+    @NonNull
+    public ResumableUploader setRetryPolicy(@NonNull RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * 送信する。前回途中で終わっていれば続きから送る
+     *
+     * @param uploadId 再開のための識別子。同じファイルの送信には同じものを使う
+     * @param url      POST 先 URL
+     * @param header   HTTP ヘッダ
+     * @param file     送るファイル
+     * @param timeout  接続と読み込みのタイムアウト（ミリ秒）
+     * @return 最後の応答。2xx 以外の応答で止まった場合はその応答
+     * @throws IOException 再送しても通信できなかった
+     */
+    @NonNull
+    public Response upload(@NonNull String uploadId, @NonNull URL url, @Nullable Map<String, String> header, @NonNull File file, int timeout) throws IOException {
+        final File stateFile = stateFile(uploadId);
+        final long total = file.length();
+        final HeaderTemplate baseHeader = HeaderTemplate.of(header);
+
+        int failures = 0;
+        final long saved = loadOffset(stateFile, uploadId, total);
+        boolean query = (saved >= 0);
+        // サーバーが受け取ったと確認できた位置
+        long offset = Math.max(0, saved);
+        while (true) {
+            try {
+                final boolean queried = query;
+                final Response response;
+                if (query) {
+                    // サーバーが実際に受け取った位置から再開する
+                    response = send(url, baseHeader, "bytes */" + total, null, timeout);
+                } else {
+                    final long length = Math.min(this.chunkSize, total - offset);
+                    final String range = (total == 0 ? "bytes */0" : "bytes " + offset + "-" + (offset + length - 1) + "/" + total);
+                    response = send(url, baseHeader, range, Bodies.of(file, offset, length), timeout);
+                }
+                query = false;
+
+                if (queried && (response.getStatus() == STATUS_NOT_FOUND || response.getStatus() == STATUS_GONE)) {
+                    // 途中までの分は無くなっているので、記録を消して最初から送る
+                    if (!stateFile.delete() && stateFile.exists()) {
+                        throw new IOException("cannot delete " + stateFile);
+                    }
+                    offset = 0;
+                    continue;
+                }
+                if (response.getStatus() != STATUS_RESUME_INCOMPLETE) {
+                    if (response.getStatus() / 100 == 2 && !stateFile.delete() && stateFile.exists()) {
+                        throw new IOException("cannot delete " + stateFile);
+                    }
+                    return response;
+                }
+                final long next = parseOffset(response.getHeader(RANGE));
+                if (next > total) {
+                    throw new IOException("invalid range: " + response.getHeader(RANGE));
+                }
+                final boolean advanced = (next > offset);
+                offset = next;
+                saveOffset(stateFile, uploadId, total, offset);
+                if (advanced) {
+                    failures = 0;
+                } else if (!queried) {
+                    // 進まない 308 を返され続けても止まるように、失敗として数える
+                    throw new IOException("chunk at " + offset + " was not accepted");
+                }
+            } catch (IOException e) {
+                failures++;
+                if (failures >= this.retryPolicy.getMaxAttempts() || !this.retryPolicy.isRetryable(e)) {
+                    throw e;
+                }
+                try {
+                    Thread.sleep(this.retryPolicy.getDelay(failures, null, this.random));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while waiting to resume");
+                }
+                query = true;
+            }
+        }
+    }
+
+    /**
+     * 保存してある送信済みの位置を消す
+     *
+     * @param uploadId 再開のための識別子
+     */
+    public void forget(@NonNull String uploadId) {
+        //noinspection ResultOfMethodCallIgnored
+        stateFile(uploadId).delete();
+    }
+
+    @NonNull
+    private Response send(@NonNull URL url, @NonNull HeaderTemplate baseHeader, @NonNull String range, @Nullable Body body, int timeout) throws IOException {
+        return this.transport.send(new Request(url, baseHeader.with(CONTENT_RANGE, range), (body != null ? body : Bodies.of(new byte[0])), timeout, timeout, 0, null, null, null));
+    }
+
+    /**
+     * @param range Range ヘッダ。bytes=0-末尾
+     * @return 次に送る位置
+     */
+    static long parseOffset(@Nullable String range) throws IOException {
+        if (range == null) {
+            return 0;
+        }
+        final int hyphen = range.lastIndexOf('-');
+        if (!range.startsWith("bytes=") || hyphen < 0) {
+            throw new IOException("invalid range: " + range);
+        }
+        try {
+            return Long.parseLong(range.substring(hyphen + 1).trim()) + 1;
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid range: " + range, e);
+        }
+    }
+
+    @NonNull
+    private File stateFile(@NonNull String uploadId) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(uploadId.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder name = new StringBuilder();
+            for (final byte b : digest) {
+                name.append(String.format("%02x", b));
+            }
+            return new File(this.stateDirectory, name.toString());
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-1 は必ずある
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return 保存されている位置。無いか別のファイルの記録なら負値
+     */
+    private static long loadOffset(@NonNull File stateFile, @NonNull String uploadId, long total) {
+        if (!stateFile.exists()) {
+            return -1;
+        }
+        try (final DataInputStream input = new DataInputStream(new FileInputStream(stateFile))) {
+            if (!uploadId.equals(input.readUTF()) || input.readLong() != total) {
+                return -1;
+            }
+            return input.readLong();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static void saveOffset(@NonNull File stateFile, @NonNull String uploadId, long total, long offset) throws IOException {
+        final File parent = stateFile.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("cannot create " + parent);
+        }
+
+        // 書き込み途中で終わっても前の記録が残るように、別ファイルに書いてから置き換える
+        final File tmp = new File(stateFile.getPath() + ".tmp");
+        try (final FileOutputStream file = new FileOutputStream(tmp);
+             final DataOutputStream output = new DataOutputStream(file)) {
+            output.writeUTF(uploadId);
+            output.writeLong(total);
+            output.writeLong(offset);
+            output.flush();
+            file.getFD().sync();
+        }
+        if (!tmp.renameTo(stateFile)) {
+            throw new IOException("cannot replace " + stateFile);
+        }
+    }
+
+}
@@ -0,0 +1,241 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * 送信に失敗したときの再送の仕方。
+ * 待ち時間は指数的に伸ばし、ゆらぎを加える
+ */
+public final class RetryPolicy {
+
+    /**
+     * 再送しない
+     */
+    public static final RetryPolicy NONE = (new Builder()).setMaxAttempts(1).build();
+
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final double multiplier;
+    private final double jitter;
+    private final Set<Integer> retryableStatuses;
+    private final Set<Class<? extends Exception>> retryableExceptions;
+    private final boolean respectRetryAfter;
+
+    private RetryPolicy(@NonNull Builder builder) {
+        this.maxAttempts = builder.maxAttempts;
+        this.baseDelay = builder.baseDelay;
+        this.maxDelay = builder.maxDelay;
+        this.multiplier = builder.multiplier;
+        this.jitter = builder.jitter;
+        this.retryableStatuses = Collections.unmodifiableSet(new HashSet<>(builder.retryableStatuses));
+        this.retryableExceptions = Collections.unmodifiableSet(new HashSet<>(builder.retryableExceptions));
+        this.respectRetryAfter = builder.respectRetryAfter;
+    }
+
+    /**
+     * @return 最初の送信も含めた最大送信回数
+     */
+    public int getMaxAttempts() {
+        return this.maxAttempts;
+    }
+
+    /**
+     * @param status HTTP ステータス
+     * @return 再送すべきステータスなら true
+     */
+    public boolean isRetryable(int status) {
+        return this.retryableStatuses.contains(status);
+    }
+
+    /**
+     * @param e 送信中に起きた例外
+     * @return 再送すべき例外なら true
+     */
+    public boolean isRetryable(@NonNull Exception e) {
+        for (final Class<? extends Exception> type : this.retryableExceptions) {
+            if (type.isInstance(e)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param attempt    失敗した送信が何回目か。1 から
+     * @param retryAfter 応答の Retry-After ヘッダ
+     * @param random     ゆらぎに使う乱数
+     * @return 再送までの待ち時間（ミリ秒）
+     */
+    long getDelay(int attempt, @Nullable String retryAfter, @NonNull Random random) {
+        double delay = this.baseDelay * Math.pow(this.multiplier, attempt - 1);
+        delay = Math.min(delay, this.maxDelay);
+        // 一斉に再送しないように、待ち時間の一部をランダムに削る
+        delay -= delay * this.jitter * random.nextDouble();
+
+        long result = (long) delay;
+        if (this.respectRetryAfter && retryAfter != null) {
+            // 遠い日時を指定されても上限より長くは待たない
+            result = Math.min(Math.max(result, parseRetryAfter(retryAfter)), this.maxDelay);
+        }
+        return result;
+    }
+
+    /**
+     * @param value Retry-After ヘッダの値。秒数か HTTP 日付
+     * @return 待ち時間（ミリ秒）。解釈できなければ 0
+     */
+    static long parseRetryAfter(@NonNull String value) {
+        final String trimmed = value.trim();
+        try {
+            return Math.max(0, Long.parseLong(trimmed) * 1_000);
+        } catch (NumberFormatException e) {
+            // 日付かもしれない
+        }
+
+        final SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            final Date date = format.parse(trimmed);
+            return Math.max(0, date.getTime() - System.currentTimeMillis());
+        } catch (ParseException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * RetryPolicy をつくる
+     */
+    public static final class Builder {
+
+        private int maxAttempts;
+        private long baseDelay;
+        private long maxDelay;
+        private double multiplier;
+        private double jitter;
+        private final Set<Integer> retryableStatuses;
+        private final Set<Class<? extends Exception>> retryableExceptions;
+        private boolean respectRetryAfter;
+
+        /**
+         * 3 回まで、1 秒から 2 倍ずつ最大 60 秒待って、408, 429, 500, 502, 503, 504 と IOException で再送する設定から始める
+         */
+        public Builder() {
+            this.maxAttempts = 3;
+            this.baseDelay = 1_000;
+            this.maxDelay = 60_000;
+            this.multiplier = 2;
+            this.jitter = 0.5;
+            this.retryableStatuses = new HashSet<>(Arrays.asList(408, 429, 500, 502, 503, 504));
+            this.retryableExceptions = new HashSet<>();
+            this.retryableExceptions.add(IOException.class);
+            this.respectRetryAfter = true;
+        }
+
+        @NonNull
+        public RetryPolicy build() {
+            return new RetryPolicy(this);
+        }
+
+        /**
+         * @param maxAttempts 最初の送信も含めた最大送信回数
+         * @return this
+         */
+        @NonNull
+        public Builder setMaxAttempts(int maxAttempts) {
+            this.maxAttempts = Math.max(1, maxAttempts);
+            return this;
+        }
+
+        /**
+         * @param baseDelay  最初の再送までの待ち時間（ミリ秒）
+         * @param maxDelay   待ち時間の上限（ミリ秒）。Retry-After ヘッダの指定にも適用する
+         * @param multiplier 再送ごとに待ち時間に掛ける数
+         * @return this
+         */
+        @NonNull
+        public Builder setBackoff(long baseDelay, long maxDelay, double multiplier) {
+            this.baseDelay = Math.max(0, baseDelay);
+            this.maxDelay = Math.max(this.baseDelay, maxDelay);
+            this.multiplier = Math.max(1, multiplier);
+            return this;
+        }
+
+        /**
+         * @param jitter 待ち時間からランダムに削る割合の上限。0 から 1
+         * @return this
+         */
+        @NonNull
+        public Builder setJitter(double jitter) {
+            this.jitter = Math.max(0, Math.min(1, jitter));
+            return this;
+        }
+
+        /**
+         * @param statuses 再送する HTTP ステータス
+         * @return this
+         */
+        @NonNull
+        public Builder setRetryableStatuses(@NonNull Integer... statuses) {
+            this.retryableStatuses.clear();
+            this.retryableStatuses.addAll(Arrays.asList(statuses));
+            return this;
+        }
+
+        /**
+         * @param types 再送する例外の型。サブクラスも含む
+         * @return this
+         */
+        @SafeVarargs
+        @NonNull
+        public final Builder setRetryableExceptions(@NonNull Class<? extends Exception>... types) {
+            this.retryableExceptions.clear();
+            this.retryableExceptions.addAll(Arrays.asList(types));
+            return this;
+        }
+
+        /**
+         * @param respectRetryAfter true なら Retry-After ヘッダの指定より早く再送しない。
+         *                          ただし待ち時間の上限を超える指定は上限まで縮める
+         * @return this
+         */
+        @NonNull
+        public Builder setRespectRetryAfter(boolean respectRetryAfter) {
+            this.respectRetryAfter = respectRetryAfter;
+            return this;
+        }
+
+    }
+
+}
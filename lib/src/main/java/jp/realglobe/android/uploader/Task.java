@@ -0,0 +1,67 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 送信待ちの Entry
+ */
+final class Task {
+
+    final Poster.Entry entry;
+    final long journalId; // ジャーナルに記録していなければ負値
+
+    long enqueuedAt; // System.nanoTime。置き換えで追加された場合は置き換えられた Task のもの
+    long seq; // TaskQueue に追加された順。置き換えで追加された場合は置き換えられた Task のもの
+    final long expiresAt; // System.nanoTime。無期限なら Long.MAX_VALUE
+
+    int attempts; // 送信した回数
+    long queueWait;
+    boolean retrying; // 再送待ちなら true
+    boolean spilled; // Body をメモリからディスクに逃がしたなら true
+    File spillFile; // 逃がし先のファイル。ジャーナルの記録を使う場合は null
+    PostFuture future; // submit でなければ null
+    Poster.Entry origin; // post に渡された Entry。Body を逃がしても変わらない
+    volatile boolean cancelled; // Poster.cancel で取り消されたら true
+    volatile Watchdog.Watch watch; // 送信中の見張り。送信中でなければ null
+
+    Task(@NonNull Poster.Entry entry, long journalId) {
+        this.entry = entry;
+        this.origin = entry;
+        this.journalId = journalId;
+        this.enqueuedAt = System.nanoTime();
+        this.expiresAt = (entry.timeToLive > 0 ? this.enqueuedAt + TimeUnit.MILLISECONDS.toNanos(entry.timeToLive) : Long.MAX_VALUE);
+    }
+
+    /**
+     * @param now System.nanoTime
+     * @return 有効期限が切れていたら true
+     */
+    boolean isExpired(long now) {
+        return this.expiresAt != Long.MAX_VALUE && now - this.expiresAt >= 0;
+    }
+
+    @NonNull
+    String host() {
+        return this.entry.url.getHost();
+    }
+
+}
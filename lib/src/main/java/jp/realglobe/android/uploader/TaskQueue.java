@@ -0,0 +1,583 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 送信待ちの Task の列。
+ * 同じホストへの同時送信数と、同じ順序キーを持つ Task の送信順を守って、優先度の高いものから取り出す。
+ * 優先度ごとに、順序キーに止められていない Task だけを追加順に並べておき、各優先度の先頭から選ぶ。
+ * 上限には、送信待ちの Task に加えて、送信中と再送待ちの Task も数える
+ */
+final class TaskQueue {
+
+    // 待ち時間がこれだけ延びるごとに優先度を 1 上げる
+    private static final long AGING_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+    // 追加順
+    private static final Comparator<Task> SEQUENCE = (a, b) -> Long.compare(a.seq, b.seq);
+    // 有効期限の早い順
+    private static final Comparator<Task> EXPIRY = (a, b) -> {
+        final long diff = a.expiresAt - b.expiresAt;
+        return (diff != 0 ? Long.signum(diff) : Long.compare(a.seq, b.seq));
+    };
+
+    private final int maxPerHost; // 0 以下なら無制限
+    private int maxEntries; // 0 以下なら無制限
+    private long maxBytes; // 0 以下なら無制限
+    private Poster.OverflowPolicy overflowPolicy;
+
+    private final TreeSet<Task> tasks; // 送信待ちの Task。追加順
+    private final TreeMap<Integer, TreeSet<Task>> candidates; // 優先度の高い順に、順序キーに止められていない送信待ちの Task
+    private final Map<String, TreeSet<Task>> ordered; // 順序キーごとの送信待ちの Task
+    private final TreeSet<Task> expiring; // 有効期限のある送信待ちの Task
+    private final Map<PostFuture, Task> futures;
+    private final Map<Poster.Entry, Task> origins; // 同じ Entry の Task が複数あれば最初のもの
+    private int duplicates; // origins に入れられなかった Task の数
+    private long nextSeq;
+    private long headSeq; // 先頭に戻した Task の追加順。負値
+
+    private int entries; // 受け付けて終わっていない Task のうち Body をディスクに逃がしていないものの数
+    private long bytes; // 受け付けて終わっていない Task の Body の長さの合計
+    private final List<Task> expired;
+    private final Map<String, Integer> activeHosts;
+    private final Map<String, Task> activeKeys; // 順序キーから、送信中か再送待ちの Task
+    private final Map<String, Task> coalescing; // 置き換えキーから、まだ一度も送信していない Task
+    private boolean closed;
+
+    /**
+     * @param maxPerHost 同じホストへの同時送信数の上限。0 以下なら無制限
+     */
+    TaskQueue(int maxPerHost) {
+        this.maxPerHost = maxPerHost;
+        this.tasks = new TreeSet<>(SEQUENCE);
+        this.candidates = new TreeMap<>(Collections.<Integer>reverseOrder());
+        this.ordered = new HashMap<>();
+        this.expiring = new TreeSet<>(EXPIRY);
+        this.futures = new HashMap<>();
+        this.origins = new HashMap<>();
+        this.expired = new ArrayList<>();
+        this.activeHosts = new HashMap<>();
+        this.activeKeys = new HashMap<>();
+        this.coalescing = new HashMap<>();
+        this.overflowPolicy = Poster.OverflowPolicy.BLOCK;
+    }
+
+    /**
+     * @param maxEntries     溜める Task の数の上限。0 以下なら無制限
+     * @param maxBytes       溜める Task の Body の長さの合計の上限。0 以下なら無制限
+     * @param overflowPolicy 上限を超えるときの扱い
+     */
+    synchronized void setCapacity(int maxEntries, long maxBytes, @NonNull Poster.OverflowPolicy overflowPolicy) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.overflowPolicy = overflowPolicy;
+        notifyAll();
+    }
+
+    @NonNull
+    synchronized Poster.OverflowPolicy getOverflowPolicy() {
+        return this.overflowPolicy;
+    }
+
+    /**
+     * @param task 追加しようとしている Task
+     * @return task を追加すると上限を超えるなら true
+     */
+    synchronized boolean isFull(@NonNull Task task) {
+        return !fits(task);
+    }
+
+    /**
+     * 上限を守って追加する。
+     * 同じ置き換えキーを持つ未送信の Task を置き換える場合は、上限を超えていても追加する
+     *
+     * @param task    追加する Task
+     * @param wait    上限を超えていて BLOCK の場合、空くまで待つなら true
+     * @param evicted DROP_OLDEST で追い出した Task を入れる
+     * @return 置き換えられた Task。無ければ null
+     * @throws RejectedException    上限を超えるか閉じられているので追加しなかった
+     * @throws InterruptedException 空くのを待っている間に割り込まれた
+     */
+    @Nullable
+    synchronized Task offer(@NonNull Task task, boolean wait, @NonNull List<Task> evicted) throws RejectedException, InterruptedException {
+        checkOpen();
+        while (!fits(task)) {
+            switch (this.overflowPolicy) {
+                case BLOCK: {
+                    if (!wait) {
+                        throw new RejectedException("queue is full");
+                    }
+                    wait();
+                    checkOpen();
+                    break;
+                }
+                case DROP_OLDEST: {
+                    final Task oldest = oldest();
+                    if (oldest == null) {
+                        // 追い出しても空かない
+                        throw new RejectedException("queue is full");
+                    }
+                    erase(oldest);
+                    release(oldest);
+                    evicted.add(oldest);
+                    break;
+                }
+                default: {
+                    throw new RejectedException("queue is full");
+                }
+            }
+        }
+        return add(task);
+    }
+
+    /**
+     * 同じ置き換えキーを持つ未送信の Task があれば、それと同じ位置で置き換える。
+     * 置き換えても待ち時間による優先度の引き上げが振り出しに戻らないように、追加された時刻は引き継ぐ。
+     * 有効期限は新しい Task のもの
+     *
+     * @param task 追加する Task
+     * @return 置き換えられた Task。無ければ null
+     * @throws RejectedException 閉じられているので追加しなかった
+     */
+    @Nullable
+    synchronized Task add(@NonNull Task task) throws RejectedException {
+        checkOpen();
+        this.entries += count(task);
+        this.bytes += weight(task);
+        final String key = task.entry.coalesceKey;
+        final Task replaced = (key != null ? this.coalescing.get(key) : null);
+        if (replaced != null) {
+            erase(replaced);
+            release(replaced);
+            task.seq = replaced.seq;
+            task.enqueuedAt = replaced.enqueuedAt;
+        } else {
+            task.seq = this.nextSeq++;
+        }
+        if (key != null) {
+            this.coalescing.put(key, task);
+        }
+        insert(task);
+        notifyAll();
+        return replaced;
+    }
+
+    /**
+     * 再送する Task を先頭に戻す。
+     * 受け付けたときから上限に数えているので、上限は確かめない
+     *
+     * @param task 再送する Task
+     */
+    synchronized void addRetry(@NonNull Task task) {
+        final String key = task.entry.orderKey;
+        if (key != null && this.activeKeys.get(key) == task) {
+            // 先頭に戻すので、後ろの Task に追い越されることは無い
+            this.activeKeys.remove(key);
+        }
+        task.seq = --this.headSeq;
+        insert(task);
+        notifyAll();
+    }
+
+    /**
+     * @param future 取り消された送信結果
+     * @return future の Task。送信待ちでなければ null
+     */
+    @Nullable
+    synchronized Task remove(@NonNull PostFuture future) {
+        return remove(this.futures.get(future));
+    }
+
+    /**
+     * @param entry 取り消された Entry
+     * @return entry の Task。送信待ちでなければ null
+     */
+    @Nullable
+    synchronized Task remove(@NonNull Poster.Entry entry) {
+        return remove(this.origins.get(entry));
+    }
+
+    @Nullable
+    private Task remove(@Nullable Task task) {
+        if (task == null) {
+            return null;
+        }
+        erase(task);
+        release(task);
+        notifyAll();
+        return task;
+    }
+
+    /**
+     * @return 溜まっていた Task
+     */
+    @NonNull
+    synchronized List<Task> clear() {
+        final List<Task> removed = new ArrayList<>(this.tasks);
+        for (final Task task : removed) {
+            release(task);
+        }
+        this.tasks.clear();
+        this.candidates.clear();
+        this.ordered.clear();
+        this.expiring.clear();
+        this.futures.clear();
+        this.origins.clear();
+        this.duplicates = 0;
+        this.coalescing.clear();
+        notifyAll();
+        return removed;
+    }
+
+    /**
+     * 以降の追加を断り、take で待っているスレッドを起こす
+     *
+     * @return 溜まっていた Task
+     */
+    @NonNull
+    synchronized List<Task> close() {
+        this.closed = true;
+        return clear();
+    }
+
+    private void checkOpen() throws RejectedException {
+        if (this.closed) {
+            throw new RejectedException("queue is closed");
+        }
+    }
+
+    /**
+     * 今送信できる Task の中で、待ち時間を加味した優先度が最も高いものを取り出す。
+     * 同じ優先度なら先に入れたものから取り出す。
+     * 有効期限が切れた Task は取り除いて drainExpired で返す
+     *
+     * @return 今送信できる Task。無ければ null
+     */
+    @Nullable
+    synchronized Task poll() {
+        final long now = System.nanoTime();
+        while (!this.expiring.isEmpty() && this.expiring.first().isExpired(now)) {
+            final Task task = this.expiring.first();
+            erase(task);
+            release(task);
+            this.expired.add(task);
+        }
+
+        Task best = null;
+        long bestPriority = 0;
+        for (final TreeSet<Task> level : this.candidates.values()) {
+            for (final Task task : level) {
+                if (!hostAvailable(task.host())) {
+                    continue;
+                }
+                // 同じ優先度なら前にあるものほど長く待っているので、最初に送信できるものだけ比べれば良い
+                final long priority = task.entry.priority + (now - task.enqueuedAt) / AGING_INTERVAL;
+                if (best == null || priority > bestPriority || (priority == bestPriority && task.seq < best.seq)) {
+                    best = task;
+                    bestPriority = priority;
+                }
+                break;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+
+        // 先に順序キーを押さえて、同じキーの次の Task を送信できるものに加えないようにする
+        start(best);
+        erase(best);
+        return best;
+    }
+
+    /**
+     * @return poll で取り除いた、有効期限が切れた Task
+     */
+    @NonNull
+    synchronized List<Task> drainExpired() {
+        if (this.expired.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<Task> drained = new ArrayList<>(this.expired);
+        this.expired.clear();
+        return drained;
+    }
+
+    /**
+     * 今送信できる Task が来るまで待って取り出す
+     *
+     * @param timeout 待つ時間（ミリ秒）
+     * @return 今送信できる Task。時間切れか閉じられたなら null
+     * @throws InterruptedException 待っている間に割り込まれた
+     */
+    @Nullable
+    synchronized Task take(long timeout) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            final Task task = poll();
+            if (task != null) {
+                return task;
+            } else if (this.closed) {
+                return null;
+            }
+            final long rest = deadline - System.currentTimeMillis();
+            if (rest <= 0) {
+                return null;
+            }
+            wait(rest);
+        }
+    }
+
+    /**
+     * 送信が終わったことを知らせる。
+     * 再送待ちになった Task は、上限に数えたまま順序キーも押さえておく
+     *
+     * @param task poll や take で取り出した Task
+     */
+    synchronized void done(@NonNull Task task) {
+        final String host = task.host();
+        final Integer count = this.activeHosts.get(host);
+        if (count != null && count > 1) {
+            this.activeHosts.put(host, count - 1);
+        } else {
+            this.activeHosts.remove(host);
+        }
+        if (!task.retrying) {
+            release(task);
+            final String key = task.entry.orderKey;
+            if (key != null && this.activeKeys.remove(key) != null) {
+                final TreeSet<Task> group = this.ordered.get(key);
+                if (group != null) {
+                    addCandidate(group.first());
+                }
+            }
+        }
+        // 空くのを待っている追加と、止められていた Task を待っている take を起こす
+        notifyAll();
+    }
+
+    /**
+     * @return 送信待ちの Task が無ければ true
+     */
+    synchronized boolean isEmpty() {
+        return this.tasks.isEmpty();
+    }
+
+    /**
+     * 送信待ちの Task として並べる
+     */
+    private void insert(@NonNull Task task) {
+        this.tasks.add(task);
+        if (task.expiresAt != Long.MAX_VALUE) {
+            this.expiring.add(task);
+        }
+        if (task.future != null) {
+            this.futures.put(task.future, task);
+        }
+        final Task sameOrigin = this.origins.get(task.origin);
+        if (sameOrigin == null) {
+            this.origins.put(task.origin, task);
+        } else if (task.seq < sameOrigin.seq) {
+            this.origins.put(task.origin, task);
+            this.duplicates++;
+        } else {
+            this.duplicates++;
+        }
+
+        final String key = task.entry.orderKey;
+        if (key == null) {
+            addCandidate(task);
+            return;
+        }
+        TreeSet<Task> group = this.ordered.get(key);
+        if (group == null) {
+            group = new TreeSet<>(SEQUENCE);
+            this.ordered.put(key, group);
+        }
+        final Task head = (group.isEmpty() ? null : group.first());
+        group.add(task);
+        if (this.activeKeys.containsKey(key)) {
+            // 送信中か再送待ちの Task が終わるまで止める
+            return;
+        }
+        if (head == null) {
+            addCandidate(task);
+        } else if (task.seq < head.seq) {
+            removeCandidate(head);
+            addCandidate(task);
+        }
+    }
+
+    /**
+     * 送信待ちの Task から外す。上限の数え方は変えない
+     */
+    private void erase(@NonNull Task task) {
+        this.tasks.remove(task);
+        this.expiring.remove(task);
+        if (task.future != null && this.futures.get(task.future) == task) {
+            this.futures.remove(task.future);
+        }
+        if (this.origins.get(task.origin) != task) {
+            this.duplicates--;
+        } else {
+            this.origins.remove(task.origin);
+            if (this.duplicates > 0) {
+                // 同じ Entry を何度も追加された場合だけ探す
+                for (final Task other : this.tasks) {
+                    if (other.origin == task.origin) {
+                        this.origins.put(other.origin, other);
+                        this.duplicates--;
+                        break;
+                    }
+                }
+            }
+        }
+        forget(task);
+
+        final String key = task.entry.orderKey;
+        if (key == null) {
+            removeCandidate(task);
+            return;
+        }
+        final TreeSet<Task> group = this.ordered.get(key);
+        final boolean head = (group.first() == task);
+        group.remove(task);
+        if (!head) {
+            return;
+        }
+        removeCandidate(task);
+        if (group.isEmpty()) {
+            this.ordered.remove(key);
+        } else if (!this.activeKeys.containsKey(key)) {
+            addCandidate(group.first());
+        }
+    }
+
+    private void addCandidate(@NonNull Task task) {
+        TreeSet<Task> level = this.candidates.get(task.entry.priority);
+        if (level == null) {
+            level = new TreeSet<>(SEQUENCE);
+            this.candidates.put(task.entry.priority, level);
+        }
+        level.add(task);
+    }
+
+    private void removeCandidate(@NonNull Task task) {
+        final TreeSet<Task> level = this.candidates.get(task.entry.priority);
+        if (level != null && level.remove(task) && level.isEmpty()) {
+            this.candidates.remove(task.entry.priority);
+        }
+    }
+
+    /**
+     * 上限の数から外す
+     */
+    private void release(@NonNull Task task) {
+        this.entries -= count(task);
+        this.bytes -= weight(task);
+    }
+
+    /**
+     * 逃がした Task はメモリを使わないので、上限には数えない
+     */
+    private boolean fits(@NonNull Task task) {
+        if (task.spilled || this.entries == 0) {
+            return true;
+        }
+        final String key = task.entry.coalesceKey;
+        if (key != null && this.coalescing.containsKey(key)) {
+            // 置き換えなので増えない
+            return true;
+        }
+        if (this.maxEntries > 0 && this.entries >= this.maxEntries) {
+            return false;
+        }
+        return this.maxBytes <= 0 || this.bytes + weight(task) <= this.maxBytes;
+    }
+
+    /**
+     * @return DROP_OLDEST で追い出す、一番前に追加された Task。
+     * 逃がした Task は追い出しても空かず、再送待ちの Task は受け付け済みなので除く。無ければ null
+     */
+    @Nullable
+    private Task oldest() {
+        for (final Task task : this.tasks) {
+            if (!task.spilled && !task.retrying) {
+                return task;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return task がメモリを使っているなら 1
+     */
+    private static int count(@NonNull Task task) {
+        return (task.spilled ? 0 : 1);
+    }
+
+    /**
+     * @return task がメモリに抱えている Body の長さ
+     */
+    private static long weight(@NonNull Task task) {
+        final Body body = task.entry.body;
+        if (task.spilled || body == null) {
+            return 0;
+        }
+        return Math.max(0, body.getLength());
+    }
+
+    /**
+     * task を置き換えの対象から外す
+     */
+    private void forget(@NonNull Task task) {
+        final String key = task.entry.coalesceKey;
+        if (key != null && this.coalescing.get(key) == task) {
+            this.coalescing.remove(key);
+        }
+    }
+
+    private boolean hostAvailable(@NonNull String host) {
+        if (this.maxPerHost <= 0) {
+            return true;
+        }
+        final Integer count = this.activeHosts.get(host);
+        return count == null || count < this.maxPerHost;
+    }
+
+    private void start(@NonNull Task task) {
+        final String host = task.host();
+        final Integer count = this.activeHosts.get(host);
+        this.activeHosts.put(host, (count != null ? count + 1 : 1));
+        if (task.entry.orderKey != null) {
+            this.activeKeys.put(task.entry.orderKey, task);
+        }
+    }
+
+}
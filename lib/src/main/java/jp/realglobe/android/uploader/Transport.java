@@ -0,0 +1,41 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+
+/**
+ * HTTP の送信処理。
+ * 既定は HttpURLConnection を使う UrlConnectionTransport。
+ * Poster が複数の送信スレッドを使う場合は並行して呼ばれる
+ */
+public interface Transport {
+
+    /**
+     * 送信して応答を待つ。
+     * 取り消しに応じられるように、送信中は Request.setAbort で中断方法を登録すると良い
+     *
+     * @param request 送信するリクエスト
+     * @return 応答
+     * @throws IOException 通信に失敗した
+     */
+    @NonNull
+    Response send(@NonNull Request request) throws IOException;
+
+}
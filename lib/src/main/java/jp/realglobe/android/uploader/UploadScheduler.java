@@ -0,0 +1,140 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Entry の Constraints を満たすまで預かってから Poster に渡す。
+ * 状態が変わるたびに、条件を満たした Entry をまとめて渡す。
+ * 状態の変化はメインスレッドで知らされることがあるので、渡すのは専用のスレッドで行い、
+ * Poster が BLOCK で待たせても知らせたスレッドを塞がない。
+ * post はどのスレッドからでも呼べるが、渡す先の Poster は送信スレッドを持つものにすること。
+ * <p>
+ * 預かっている Entry はメモリ上にしか無く、プロセスが終了すると失われる。
+ * 残す必要があれば、shutdown で受け取って保存するか、WriteBehindBuffer などを使うこと
+ */
+public class UploadScheduler {
+
+    private final Poster poster;
+    private final NetworkStateProvider provider;
+    private final Runnable listener;
+    private final ExecutorService checker;
+    private final LinkedList<Poster.Entry> held;
+
+    /**
+     * @param poster   渡す先
+     * @param provider 通信と電源の状態を知らせるもの
+     */
+    public UploadScheduler(@NonNull Poster poster, @NonNull NetworkStateProvider provider) {
+        this.poster = poster;
+        this.provider = provider;
+        this.held = new LinkedList<>();
+        this.checker = Executors.newSingleThreadExecutor((Runnable runnable) -> {
+            final Thread thread = new Thread(runnable, "UploadScheduler-checker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.listener = () -> {
+            try {
+                this.checker.execute(this::check);
+            } catch (RejectedExecutionException e) {
+                // shutdown した後
+            }
+        };
+        provider.addListener(this.listener);
+    }
+
+    /**
+     * 条件を満たしていればすぐに Poster に渡し、満たしていなければ満たすまで預かる。
+     * 預かっている間は Entry の有効期間に数えず、ジャーナルにも記録しない
+     *
+     * @param entry POST する内容
+     */
+    public void post(@NonNull Poster.Entry entry) {
+        final Constraints constraints = entry.constraints;
+        if (constraints != null) {
+            synchronized (this.held) {
+                // 調べてから預けるまでの間に状態が変わっても取りこぼさないように、check と排他する
+                if (!constraints.isSatisfiedBy(this.provider.getState())) {
+                    this.held.add(entry);
+                    return;
+                }
+            }
+        }
+        this.poster.post(entry);
+    }
+
+    /**
+     * 状態を調べ直して、条件を満たした Entry を預けた順にまとめて Poster に渡す。
+     * 状態の変化は NetworkStateProvider から知らされるので、普通は呼ぶ必要は無い。
+     * 呼んだスレッドで渡すので、Poster が BLOCK なら空くまで待つことがある
+     */
+    public void check() {
+        final List<Poster.Entry> ready = new ArrayList<>();
+        synchronized (this.held) {
+            if (this.held.isEmpty()) {
+                return;
+            }
+            final NetworkState state = this.provider.getState();
+            for (final Iterator<Poster.Entry> it = this.held.iterator(); it.hasNext(); ) {
+                final Poster.Entry entry = it.next();
+                if (entry.constraints.isSatisfiedBy(state)) {
+                    it.remove();
+                    ready.add(entry);
+                }
+            }
+        }
+        for (final Poster.Entry entry : ready) {
+            this.poster.post(entry);
+        }
+    }
+
+    /**
+     * @return 預かっている Entry の数
+     */
+    public int getHeldCount() {
+        synchronized (this.held) {
+            return this.held.size();
+        }
+    }
+
+    /**
+     * 状態の監視を止める
+     *
+     * @return 預かっていた Entry
+     */
+    @NonNull
+    public List<Poster.Entry> shutdown() {
+        this.provider.removeListener(this.listener);
+        this.checker.shutdown();
+        synchronized (this.held) {
+            final List<Poster.Entry> entries = new ArrayList<>(this.held);
+            this.held.clear();
+            return entries;
+        }
+    }
+
+}
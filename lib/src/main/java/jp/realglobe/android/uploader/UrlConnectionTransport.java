@@ -0,0 +1,279 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.NonNull;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HttpURLConnection で送信する Transport
+ */
+public class UrlConnectionTransport implements Transport {
+
+    private static final String CONNECTION = "Connection";
+    private static final String CONNECTION_CLOSE = "close";
+
+    private static final long MAX_DRAIN_LENGTH = 64 * 1024;
+
+    private final AtomicLong releasedConnections;
+    private final AtomicLong discardedConnections;
+
+    public UrlConnectionTransport() {
+        this.releasedConnections = new AtomicLong();
+        this.discardedConnections = new AtomicLong();
+    }
+
+    /**
+     * HttpURLConnection の接続の使い回しを設定する。
+     * システムプロパティを書き換えるので、このインスタンスに限らずプロセス中の全ての HttpURLConnection に効く。
+     * 接続プールは最初の接続時に作られるので、それより前に呼ぶこと
+     *
+     * @param keepAlive      接続を使い回すなら true
+     * @param maxConnections ホストごとに保持する接続数
+     */
+    public static void setKeepAlive(boolean keepAlive, int maxConnections) {
+        System.setProperty("http.keepAlive", Boolean.toString(keepAlive));
+        System.setProperty("http.maxConnections", Integer.toString(maxConnections));
+    }
+
+    /**
+     * @return 応答を読み切って接続プールに戻した接続の数
+     */
+    public long getReleasedConnections() {
+        return this.releasedConnections.get();
+    }
+
+    /**
+     * @return 使い回せずに切断した接続の数
+     */
+    public long getDiscardedConnections() {
+        return this.discardedConnections.get();
+    }
+
+    @NonNull
+    @Override
+    public Response send(@NonNull Request request) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) request.getUrl().openConnection();
+        boolean reusable = false;
+        // 取り消されたら接続を切って、書き出しや応答待ちを IOException で終わらせる
+        request.setAbort(connection::disconnect);
+        try {
+            final Body body = request.getBody();
+            connection.setConnectTimeout(request.getConnectTimeout());
+            connection.setReadTimeout(request.getReadTimeout());
+            connection.setDoOutput(body != null);
+            connection.setDoInput(true);
+            setHeader(connection, request.getHeader());
+            if (body != null) {
+                // 送信データを HttpURLConnection 内部に溜め込ませない
+                final long length = body.getLength();
+                if (length >= 0) {
+                    connection.setFixedLengthStreamingMode(length);
+                } else {
+                    connection.setChunkedStreamingMode(0);
+                }
+            }
+            final long start = System.nanoTime();
+            connection.connect();
+            final long connected = System.nanoTime();
+            request.recordConnect(connected - start);
+
+            if (body != null) {
+                final CountingOutputStream counter = new CountingOutputStream(connection.getOutputStream());
+                try (final OutputStream reqBody = new PooledOutputStream(counter)) {
+                    body.writeTo(reqBody);
+                }
+                request.recordWrite(System.nanoTime() - connected, counter.count);
+            }
+            final long written = System.nanoTime();
+            final int status = connection.getResponseCode();
+            request.recordFirstByte(System.nanoTime() - written);
+            final Map<String, List<String>> headers = connection.getHeaderFields();
+            final boolean close = CONNECTION_CLOSE.equalsIgnoreCase(connection.getHeaderField(CONNECTION));
+
+            // 応答が届いた時点で送信は済んでいるので、本体を読めなくても失敗にしない。
+            // 失敗にすると、受け付けられた POST が再送で重複する
+            final InputStream resBody;
+            try {
+                if (status >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                    resBody = connection.getErrorStream();
+                } else {
+                    resBody = connection.getInputStream();
+                }
+            } catch (IOException e) {
+                if (request.isCancelled()) {
+                    throw e;
+                }
+                return new Response(status, headers);
+            }
+            if (resBody == null) {
+                reusable = !close;
+                return new Response(status, headers);
+            }
+
+            try {
+                final Response response;
+                try {
+                    response = receive(request, status, headers, connection.getContentLength(), resBody);
+                } catch (IOException e) {
+                    if (request.isCancelled()) {
+                        throw e;
+                    }
+                    return new Response(status, headers);
+                }
+                try {
+                    reusable = !close && drain(resBody);
+                } catch (IOException e) {
+                    // 読み捨てられなかった接続は使い回さない
+                }
+                return response;
+            } finally {
+                closeQuietly(resBody);
+            }
+        } finally {
+            request.setAbort(null);
+            if (reusable) {
+                this.releasedConnections.incrementAndGet();
+            } else {
+                // 読み残しがあると接続を使い回せないので切る
+                this.discardedConnections.incrementAndGet();
+                connection.disconnect();
+            }
+        }
+    }
+
+    private static void setHeader(@NonNull HttpURLConnection connection, @NonNull Map<String, String> header) {
+        if (!(header instanceof HeaderTemplate)) {
+            for (final Map.Entry<String, String> field : header.entrySet()) {
+                connection.setRequestProperty(field.getKey(), field.getValue());
+            }
+            return;
+        }
+
+        // 合成した Map はつくらず、土台を設定してから差分で上書きする。
+        // setRequestProperty は大文字小文字だけが違う名前の値も置き換える
+        final HeaderTemplate template = (HeaderTemplate) header;
+        if (template.base() != null) {
+            setHeader(connection, template.base());
+        }
+        for (int i = 0; i < template.fieldCount(); i++) {
+            connection.setRequestProperty(template.name(i), template.value(i));
+        }
+    }
+
+    private static void closeQuietly(@NonNull InputStream input) {
+        try {
+            input.close();
+        } catch (IOException e) {
+            // 接続ごと捨てるか、読み切っているので問題無い
+        }
+    }
+
+    /**
+     * 求められていれば応答本体を読む。
+     * 何も求められていなければ読まないので、余計な負荷は掛からない
+     */
+    @NonNull
+    private static Response receive(@NonNull Request request, int status, @NonNull Map<String, List<String>> headers, int contentLength, @NonNull InputStream input) throws IOException {
+        final ResponseHandler handler = request.getResponseHandler();
+        if (handler != null) {
+            final Response response = new Response(status, headers);
+            handler.onResponse(response, new FilterInputStream(input) {
+                @Override
+                public void close() {
+                    // 読み残しを捨ててから閉じる
+                }
+            });
+            return response;
+        }
+
+        final int limit = request.getResponseLimit();
+        if (limit <= 0) {
+            return new Response(status, headers);
+        }
+
+        if (contentLength >= 0 && contentLength <= limit) {
+            // 長さが分かっていれば一度で確保する
+            final byte[] body = new byte[contentLength];
+            int count = 0;
+            while (count < body.length) {
+                final int n = input.read(body, count, body.length - count);
+                if (n < 0) {
+                    break;
+                }
+                count += n;
+            }
+            return new Response(status, headers, (count == body.length ? body : Arrays.copyOf(body, count)), false);
+        }
+
+        final byte[] buff = BufferPool.acquire();
+        try {
+            byte[] body = new byte[Math.min(limit, buff.length)];
+            int count = 0;
+            while (count < limit) {
+                final int n = input.read(buff, 0, Math.min(buff.length, limit - count));
+                if (n < 0) {
+                    break;
+                }
+                if (count + n > body.length) {
+                    body = Arrays.copyOf(body, Math.min(limit, Math.max(body.length * 2, count + n)));
+                }
+                System.arraycopy(buff, 0, body, count, n);
+                count += n;
+            }
+            final boolean truncated = (count == limit && input.read() >= 0);
+            return new Response(status, headers, (count == body.length ? body : Arrays.copyOf(body, count)), truncated);
+        } finally {
+            BufferPool.release(buff);
+        }
+    }
+
+    /**
+     * 応答本体の残りを読み切って、接続を使い回せるようにする
+     *
+     * @return 接続を使い回せる状態にできたら true
+     */
+    private static boolean drain(@NonNull InputStream input) throws IOException {
+        final byte[] buff = BufferPool.acquire();
+        try {
+            long total = 0;
+            while (true) {
+                final int n = input.read(buff);
+                if (n < 0) {
+                    return true;
+                }
+                total += n;
+                if (total > MAX_DRAIN_LENGTH) {
+                    // 大きな応答を読み捨てるより繋ぎ直す方が安い
+                    return false;
+                }
+            }
+        } finally {
+            BufferPool.release(buff);
+        }
+    }
+
+}
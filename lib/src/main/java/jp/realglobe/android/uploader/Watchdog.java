@@ -0,0 +1,289 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 送信中の接続を見張り、全体の期限を過ぎたり書き出しが止まったりしたら接続を切る。
+ * 1 つのスレッドで全ての Poster の送信を見張る
+ */
+final class Watchdog {
+
+    /**
+     * 送信 1 回分の見張り。
+     * Endpoint で送信先を替えて送り直す場合も 1 つの Watch で見張る
+     */
+    static final class Watch {
+
+        private final PostFuture future;
+        private final long deadline; // System.nanoTime。0 なら無期限
+        private final long writeTimeout; // ナノ秒。0 なら無期限
+        private volatile long writeDeadline; // System.nanoTime。書き出し中でなければ 0
+
+        private Request request;
+        private boolean stopped;
+        private String timeout; // 期限切れで切ったならその理由
+
+        private Watch(@Nullable PostFuture future, long deadline, long writeTimeout) {
+            this.future = future;
+            this.deadline = deadline;
+            this.writeTimeout = writeTimeout;
+        }
+
+        /**
+         * 切るときに中断する送信を設定する。既に切られていたらすぐに中断する
+         */
+        void attach(@NonNull Request request) {
+            synchronized (this) {
+                this.request = request;
+                if (!this.stopped) {
+                    return;
+                }
+            }
+            request.abort();
+        }
+
+        /**
+         * 取り消されたので切る
+         */
+        void cancel() {
+            stop(null);
+        }
+
+        /**
+         * @return 取り消されたか期限切れで切ったなら true
+         */
+        boolean isStopped() {
+            synchronized (this) {
+                if (this.stopped) {
+                    return true;
+                }
+            }
+            return this.future != null && this.future.isCancelled();
+        }
+
+        /**
+         * @return 期限切れで切ったならその理由。そうでなければ null
+         */
+        @Nullable
+        synchronized String getTimeout() {
+            return this.timeout;
+        }
+
+        /**
+         * @return 書き出しが止まっていないか見張りながら書き出す Body。見張らないなら body
+         */
+        @Nullable
+        Body wrap(@Nullable Body body) {
+            return (body == null || this.writeTimeout <= 0 ? body : new WatchedBody(body, this));
+        }
+
+        private void stop(@Nullable String timeout) {
+            final Request request;
+            synchronized (this) {
+                if (this.stopped) {
+                    return;
+                }
+                this.stopped = true;
+                this.timeout = timeout;
+                request = this.request;
+            }
+            if (request != null) {
+                request.abort();
+            }
+        }
+
+        private void progress() {
+            this.writeDeadline = System.nanoTime() + this.writeTimeout;
+        }
+
+    }
+
+    private static final class WatchedBody implements Body {
+
+        private final Body body;
+        private final Watch watch;
+
+        private WatchedBody(@NonNull Body body, @NonNull Watch watch) {
+            this.body = body;
+            this.watch = watch;
+        }
+
+        @Override
+        public long getLength() {
+            return this.body.getLength();
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return this.body.isRepeatable();
+        }
+
+        @Override
+        public void writeTo(@NonNull OutputStream output) throws IOException {
+            final Watch watch = this.watch;
+            watch.progress();
+            wake();
+            try {
+                this.body.writeTo(new FilterOutputStream(output) {
+                    @Override
+                    public void write(int b) throws IOException {
+                        this.out.write(b);
+                        watch.progress();
+                    }
+
+                    @Override
+                    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+                        this.out.write(b, off, len);
+                        watch.progress();
+                    }
+                });
+            } finally {
+                // 書き出した後は応答待ちなので、読み込みタイムアウトに任せる
+                watch.writeDeadline = 0;
+            }
+        }
+
+    }
+
+    private static final List<Watch> watches = new ArrayList<>();
+    private static Thread thread;
+
+    private Watchdog() {
+    }
+
+    /**
+     * 見張りを始める。期限が無ければ見張らずに、取り消しを伝えるためだけの Watch を返す
+     *
+     * @param future       取り消しを知るための送信結果
+     * @param deadline     送信全体の期限（ミリ秒）。0 以下なら無期限
+     * @param writeTimeout 書き出しが止まってよい時間（ミリ秒）。0 以下なら無期限
+     * @return 送信が終わったら unwatch に渡す
+     */
+    @NonNull
+    static Watch watch(@Nullable PostFuture future, long deadline, long writeTimeout) {
+        final Watch watch = new Watch(future,
+                (deadline > 0 ? nonZero(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadline)) : 0),
+                (writeTimeout > 0 ? TimeUnit.MILLISECONDS.toNanos(writeTimeout) : 0));
+        if (watch.deadline == 0 && watch.writeTimeout == 0) {
+            return watch;
+        }
+        synchronized (watches) {
+            watches.add(watch);
+            if (thread == null) {
+                thread = new Thread(Watchdog::run, "Poster-watchdog");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            watches.notifyAll();
+        }
+        return watch;
+    }
+
+    static void unwatch(@NonNull Watch watch) {
+        if (watch.deadline == 0 && watch.writeTimeout == 0) {
+            return;
+        }
+        synchronized (watches) {
+            watches.remove(watch);
+        }
+    }
+
+    /**
+     * @return 見張っている送信の数
+     */
+    static int getWatchCount() {
+        synchronized (watches) {
+            return watches.size();
+        }
+    }
+
+    private static long nonZero(long time) {
+        return (time != 0 ? time : 1);
+    }
+
+    /**
+     * 書き出しが始まって、起きるべき時刻が早まったかもしれないので起こす
+     */
+    private static void wake() {
+        synchronized (watches) {
+            watches.notifyAll();
+        }
+    }
+
+    private static void run() {
+        final List<Watch> expired = new ArrayList<>();
+        final List<String> reasons = new ArrayList<>();
+        while (true) {
+            synchronized (watches) {
+                try {
+                    while (expired.isEmpty()) {
+                        final long now = System.nanoTime();
+                        long wait = Long.MAX_VALUE;
+                        for (final Iterator<Watch> it = watches.iterator(); it.hasNext(); ) {
+                            final Watch watch = it.next();
+                            final long writeDeadline = watch.writeDeadline;
+                            if (watch.deadline != 0 && now - watch.deadline >= 0) {
+                                it.remove();
+                                expired.add(watch);
+                                reasons.add("deadline exceeded");
+                            } else if (writeDeadline != 0 && now - writeDeadline >= 0) {
+                                it.remove();
+                                expired.add(watch);
+                                reasons.add("write timed out");
+                            } else {
+                                if (watch.deadline != 0) {
+                                    wait = Math.min(wait, watch.deadline - now);
+                                }
+                                if (writeDeadline != 0) {
+                                    wait = Math.min(wait, writeDeadline - now);
+                                }
+                            }
+                        }
+                        if (!expired.isEmpty()) {
+                            break;
+                        } else if (wait == Long.MAX_VALUE) {
+                            watches.wait();
+                        } else {
+                            TimeUnit.NANOSECONDS.timedWait(watches, wait);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // デーモンスレッドなので割り込まれない
+                }
+            }
+
+            // 接続を切るのは時間が掛かることがあるので、ロックの外で行う
+            for (int i = 0; i < expired.size(); i++) {
+                expired.get(i).stop(reasons.get(i));
+            }
+            expired.clear();
+            reasons.clear();
+        }
+    }
+
+}
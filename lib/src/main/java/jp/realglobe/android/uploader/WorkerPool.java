@@ -0,0 +1,132 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 複数のスレッドで TaskQueue から取り出して送信する
+ */
+final class WorkerPool {
+
+    private static final long IDLE_INTERVAL = 1_000; // ミリ秒
+
+    private final TaskQueue queue;
+    private final Thread[] workers;
+    private final ScheduledExecutorService timer;
+    private final Set<Task> retries; // 待ち時間が明けていない再送
+    private volatile boolean stopped;
+
+    WorkerPool(@NonNull Poster poster, @NonNull TaskQueue queue, int size) {
+        this.queue = queue;
+        this.timer = new ScheduledThreadPoolExecutor(1, (Runnable runnable) -> {
+            final Thread thread = new Thread(runnable, "Poster-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.retries = new HashSet<>();
+        this.workers = new Thread[size];
+        for (int i = 0; i < size; i++) {
+            final Thread worker = new Thread(() -> run(poster), "Poster-worker-" + i);
+            worker.setDaemon(true);
+            this.workers[i] = worker;
+        }
+    }
+
+    void start() {
+        for (final Thread worker : this.workers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * 送信スレッドに、今の送信を終えたら止まるよう伝える。
+     * 割り込むと FileChannel からの転送などが壊れるので、割り込まずに待ちから起こすだけにする。
+     * 溜まっている Task は TaskQueue.close で取り出す
+     *
+     * @return 待ち時間が明けていない再送の Task
+     */
+    @NonNull
+    List<Task> shutdown() {
+        final List<Task> pending;
+        synchronized (this.retries) {
+            this.stopped = true;
+            pending = new ArrayList<>(this.retries);
+            this.retries.clear();
+        }
+        this.timer.shutdownNow();
+        return pending;
+    }
+
+    /**
+     * 送信スレッドを塞がずに、待ってから再送に回す
+     *
+     * @param task  再送する Task
+     * @param delay 待ち時間（ミリ秒）
+     * @return 止められていて再送に回さなかったら false
+     */
+    boolean retry(@NonNull Task task, long delay) {
+        synchronized (this.retries) {
+            if (this.stopped) {
+                return false;
+            }
+            this.retries.add(task);
+            this.timer.schedule(() -> {
+                synchronized (this.retries) {
+                    // shutdown で取り出されていれば、そちらで片付ける
+                    if (!this.retries.remove(task)) {
+                        return;
+                    }
+                    this.queue.addRetry(task);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    private void run(@NonNull Poster poster) {
+        try {
+            while (!this.stopped) {
+                final Task task = this.queue.take(IDLE_INTERVAL);
+                poster.dropExpired();
+                if (task == null) {
+                    // 暇なうちにジャーナルを同期しておく
+                    poster.syncJournal();
+                    continue;
+                }
+                try {
+                    poster.send(task);
+                } catch (RuntimeException e) {
+                    // onError まで投げた場合。利用側の失敗で Worker を止めない
+                } finally {
+                    this.queue.done(task);
+                }
+            }
+        } catch (InterruptedException e) {
+            // 終了
+        }
+    }
+
+}
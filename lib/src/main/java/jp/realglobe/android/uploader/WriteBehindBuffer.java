@@ -0,0 +1,682 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import jp.realglobe.android.function.Consumer;
+import jp.realglobe.android.function.Functions;
+
+/**
+ * 通信できない間の Entry を預かって、通信できるようになったら Poster に渡す。
+ * Entry はまずメモリ上の小さなリングバッファに溜め、一杯になったらまとめて書き出しスレッドに渡し、
+ * ディスク上のセグメントファイルに追記させる。post したスレッドはディスクへの書き込みを待たない。
+ * 通信できるようになったら、セグメントを古い順に送り直し、全部送れたセグメントを消す。
+ * 送り直しは少なくとも 1 回で、途中で通信が切れると同じ Entry を 2 回送ることがある。
+ * <p>
+ * 通信できていて預かっている Entry も無ければ、そのまま Poster に渡す。
+ * 送信中に IOException で失敗した Entry は onError を呼ばずに預かり直す。
+ * 送信データが何度でも書き出せて長さが分かっているもの以外は、預からずにそのまま渡す。
+ * セグメントから送り直す Entry は Poster のジャーナルには記録しない
+ */
+public class WriteBehindBuffer implements Closeable {
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String ACK_SUFFIX = ".ack";
+
+    private static final int DEFAULT_RING_SIZE = 64;
+    private static final long DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+    private static final long DEFAULT_RETRY_INTERVAL = 60_000; // ミリ秒
+
+    // ディスクへはこの単位でまとめて書く
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_META_LENGTH = 1024 * 1024;
+
+    private static final class Segment {
+
+        private final File file;
+        private final File ackFile;
+        // このプロセスで書いた Entry を送信データ抜きで取っておき、送り直すときに関数を呼べるようにする。
+        // 前回のプロセスで書いたセグメントなら空
+        private final List<Poster.Entry> entries;
+        private boolean writing; // 書き出しスレッドが追記中なら true
+
+        private Segment(@NonNull File directory, long seq) {
+            this.file = new File(directory, seq + SEGMENT_SUFFIX);
+            this.ackFile = new File(directory, seq + ACK_SUFFIX);
+            this.entries = new ArrayList<>();
+        }
+
+    }
+
+    private final Poster poster;
+    private final NetworkStateProvider provider;
+    private final Runnable listener;
+    private final File directory;
+    private final ScheduledExecutorService drainer;
+    private final ExecutorService writer;
+
+    private final ArrayDeque<Poster.Entry> ring;
+    private final ArrayDeque<List<Poster.Entry>> spilling; // 書き出しスレッドに渡して、まだ書き終わっていないもの
+    private final LinkedList<Segment> segments;
+    private Segment tail;
+    private long nextSeq;
+
+    private int ringSize;
+    private long segmentSize;
+    private long retryInterval;
+    private Consumer<Integer> onReplayFinish;
+    private Consumer<Exception> onReplayError;
+
+    private boolean draining;
+    private boolean retryScheduled;
+    private boolean closed;
+
+    /**
+     * 前回のプロセスで残ったセグメントは、check を呼ぶか通信状態が変わったときに送り直す。
+     * provider は UploadScheduler などと共有してよい
+     *
+     * @param poster    渡す先。送信スレッドを持つものにすること
+     * @param provider  通信状態を知らせるもの
+     * @param directory セグメントファイルの保存先ディレクトリ
+     * @throws IOException ディレクトリをつくれなかった
+     */
+    public WriteBehindBuffer(@NonNull Poster poster, @NonNull NetworkStateProvider provider, @NonNull File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        this.poster = poster;
+        this.provider = provider;
+        this.directory = directory;
+        this.ring = new ArrayDeque<>();
+        this.spilling = new ArrayDeque<>();
+        this.segments = new LinkedList<>();
+        this.ringSize = DEFAULT_RING_SIZE;
+        this.segmentSize = DEFAULT_SEGMENT_SIZE;
+        this.retryInterval = DEFAULT_RETRY_INTERVAL;
+        this.onReplayFinish = Functions::nop;
+        this.onReplayError = Functions::nop;
+        this.drainer = new ScheduledThreadPoolExecutor(1, (Runnable runnable) -> {
+            final Thread thread = new Thread(runnable, "WriteBehind-drainer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.writer = Executors.newSingleThreadExecutor((Runnable runnable) -> {
+            final Thread thread = new Thread(runnable, "WriteBehind-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        load();
+        this.listener = this::check;
+        provider.addListener(this.listener);
+    }
+
+    private void load() {
+        final File[] files = this.directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        final List<Long> seqs = new ArrayList<>();
+        for (final File file : files) {
+            final String name = file.getName();
+            if (!name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            try {
+                seqs.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+            } catch (NumberFormatException e) {
+                // 別のファイル
+            }
+        }
+        Collections.sort(seqs);
+        for (final long seq : seqs) {
+            this.segments.add(new Segment(this.directory, seq));
+            this.nextSeq = seq + 1;
+        }
+    }
+
+    /**
+     * @param ringSize    メモリ上に溜める Entry の数。これに達したらディスクに書き出す
+     * @param segmentSize セグメントファイルの大きさの目安（バイト）。送信データがこれより大きい Entry は預からない
+     * @return this
+     */
+    @NonNull
+    public synchronized WriteBehindBuffer setCapacity(int ringSize, long segmentSize) {
+        this.ringSize = Math.max(1, ringSize);
+        this.segmentSize = Math.max(1, segmentSize);
+        return this;
+    }
+
+    /**
+     * @param retryInterval 通信できるはずなのに送れなかったとき、次に送り直すまでの時間（ミリ秒）
+     * @return this
+     */
+    @NonNull
+    public synchronized WriteBehindBuffer setRetryInterval(long retryInterval) {
+        this.retryInterval = Math.max(0, retryInterval);
+        return this;
+    }
+
+    /**
+     * 前回のプロセスで保存した Entry は関数を保存できないので、送り直すときに使う関数を指定する
+     *
+     * @param onFinish POST した後で実行する関数
+     * @param onError  エラー発生時に実行する関数
+     * @return this
+     */
+    @NonNull
+    public synchronized WriteBehindBuffer setOnReplay(@Nullable Consumer<Integer> onFinish, @Nullable Consumer<Exception> onError) {
+        this.onReplayFinish = (onFinish != null ? onFinish : Functions::nop);
+        this.onReplayError = (onError != null ? onError : Functions::nop);
+        return this;
+    }
+
+    /**
+     * @param entry POST する内容
+     */
+    public void post(@NonNull Poster.Entry entry) {
+        final boolean spillable;
+        synchronized (this) {
+            spillable = (!this.closed && isSpillable(entry));
+            if (spillable && (this.draining || !this.ring.isEmpty() || !this.segments.isEmpty() || !isOnline())) {
+                buffer(entry);
+                return;
+            }
+        }
+        if (spillable) {
+            send(entry);
+        } else {
+            this.poster.post(entry);
+        }
+    }
+
+    /**
+     * 通信状態を調べ直して、通信できれば預かっている Entry を送り直し始める。
+     * 状態の変化は NetworkStateProvider から知らされるので、普通は呼ぶ必要は無い
+     */
+    public void check() {
+        synchronized (this) {
+            if (this.closed || this.draining || (this.ring.isEmpty() && this.segments.isEmpty()) || !isOnline()) {
+                return;
+            }
+            this.draining = true;
+        }
+        this.drainer.execute(this::drain);
+    }
+
+    /**
+     * メモリ上に溜めている Entry をディスクに書き出し、書き終わるまで待つ。
+     * プロセスが終了させられそうなときに呼ぶ
+     */
+    public synchronized void flush() {
+        spill();
+        awaitSpilled();
+    }
+
+    /**
+     * @return メモリ上に溜めている Entry の数。書き出しスレッドに渡してまだ書き終わっていないものも含む
+     */
+    public synchronized int getBufferedCount() {
+        int count = this.ring.size();
+        for (final List<Poster.Entry> batch : this.spilling) {
+            count += batch.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return ディスクに書き出して、まだ送れていないセグメントファイルの合計バイト数
+     */
+    public synchronized long getSpilledBytes() {
+        long bytes = 0;
+        for (final Segment segment : this.segments) {
+            bytes += segment.file.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * 通信状態の監視と送り直しを止め、メモリ上に溜めている Entry をディスクに書き出す。
+     * 以降の post はそのまま Poster に渡す
+     */
+    @Override
+    public void close() {
+        this.provider.removeListener(this.listener);
+        synchronized (this) {
+            this.closed = true;
+            spill();
+            awaitSpilled();
+        }
+        this.drainer.shutdownNow();
+        this.writer.shutdown();
+    }
+
+    private boolean isOnline() {
+        return this.provider.getState().isConnected();
+    }
+
+    private boolean isSpillable(@NonNull Poster.Entry entry) {
+        final Body body = entry.body;
+        if (body == null) {
+            return true;
+        }
+        // pooled な送信データは送信が終わると書き出せなくなり、失敗しても預かり直せない
+        final long length = body.getLength();
+        return body.isRepeatable() && length >= 0 && length <= this.segmentSize && !Bodies.isPooled(body);
+    }
+
+    /**
+     * this をロックした状態で呼ぶ
+     */
+    private void buffer(@NonNull Poster.Entry entry) {
+        this.ring.add(entry);
+        if (this.ring.size() >= this.ringSize) {
+            spill();
+        }
+    }
+
+    /**
+     * 送信中に通信が切れたら、onError を呼ばずに預かり直す
+     */
+    private void send(@NonNull Poster.Entry entry) {
+        this.poster.post(new Poster.Entry(entry, entry.body, (Exception e) -> {
+            if (!(e instanceof IOException)) {
+                entry.onError.accept(e);
+                return;
+            }
+            synchronized (this) {
+                if (this.closed) {
+                    entry.onError.accept(e);
+                    return;
+                }
+                buffer(entry);
+            }
+            scheduleRetry();
+        }));
+    }
+
+    private void scheduleRetry() {
+        final long delay;
+        synchronized (this) {
+            if (this.closed || this.retryScheduled) {
+                return;
+            }
+            this.retryScheduled = true;
+            delay = this.retryInterval;
+        }
+        this.drainer.schedule(() -> {
+            synchronized (this) {
+                this.retryScheduled = false;
+            }
+            check();
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * リングバッファの中身を書き出しスレッドに渡す。
+     * this をロックした状態で呼ぶ
+     */
+    private void spill() {
+        if (this.ring.isEmpty()) {
+            return;
+        }
+        this.spilling.add(new ArrayList<>(this.ring));
+        this.ring.clear();
+        this.writer.execute(this::writeSpilled);
+    }
+
+    /**
+     * 書き出しスレッドに渡したものが全部書き終わるまで待つ。
+     * this をロックした状態で呼ぶ
+     */
+    private void awaitSpilled() {
+        try {
+            while (!this.spilling.isEmpty()) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 書き出しスレッドで動く。
+     * 渡されたものを 1 まとまり、末尾のセグメントに追記する
+     */
+    private void writeSpilled() {
+        final List<Poster.Entry> batch;
+        final Segment segment;
+        synchronized (this) {
+            batch = this.spilling.getFirst();
+            if (this.tail == null || this.tail.file.length() >= this.segmentSize) {
+                this.tail = new Segment(this.directory, this.nextSeq++);
+                this.segments.add(this.tail);
+            }
+            segment = this.tail;
+            segment.writing = true;
+        }
+
+        IOException error = null;
+        try {
+            write(segment.file, batch);
+        } catch (IOException e) {
+            error = e;
+        }
+
+        synchronized (this) {
+            segment.writing = false;
+            this.spilling.removeFirst();
+            if (error == null) {
+                for (final Poster.Entry entry : batch) {
+                    segment.entries.add(new Poster.Entry(entry, null, entry.onError));
+                }
+            }
+            notifyAll();
+        }
+        if (error != null) {
+            // 書き出せなかったものは諦める
+            for (final Poster.Entry entry : batch) {
+                entry.onError.accept(error);
+            }
+        }
+    }
+
+    /**
+     * 追記して 1 回だけ同期する。失敗したら追記前に戻す
+     */
+    private static void write(@NonNull File file, @NonNull Iterable<Poster.Entry> entries) throws IOException {
+        final long start = file.length();
+        try (final FileOutputStream fileOutput = new FileOutputStream(file, true)) {
+            try {
+                final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput, IO_BUFFER_SIZE));
+                for (final Poster.Entry entry : entries) {
+                    write(output, entry);
+                }
+                output.flush();
+                fileOutput.getFD().sync();
+            } catch (IOException e) {
+                fileOutput.getChannel().truncate(start);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * メタデータの長さ、メタデータ、送信データの長さ、送信データ、CRC の順に書く。
+     * メタデータは Journal と同じ形式
+     */
+    private static void write(@NonNull DataOutputStream output, @NonNull Poster.Entry entry) throws IOException {
+        final byte[] meta = Journal.encodeMeta(entry);
+        final CRC32 crc = new CRC32();
+        output.writeInt(meta.length);
+        output.write(meta);
+        crc.update(meta);
+
+        final long bodyLength = (entry.body != null ? entry.body.getLength() : -1);
+        output.writeLong(bodyLength);
+        if (entry.body != null) {
+            final CountingOutputStream counter = new CountingOutputStream(new CheckedOutputStream(output, crc));
+            entry.body.writeTo(counter);
+            if (counter.count != bodyLength) {
+                throw new IOException("body length mismatch: " + counter.count + " != " + bodyLength);
+            }
+        }
+        output.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * 書き込み途中で壊れた末尾は読まない
+     *
+     * @return 前回のプロセスで保存した場合に使う関数を設定した Entry
+     */
+    @NonNull
+    private List<Poster.Entry> read(@NonNull File file) throws IOException {
+        final List<Poster.Entry> entries = new ArrayList<>();
+        if (!file.exists()) {
+            return entries;
+        }
+        final Consumer<Integer> onFinish;
+        final Consumer<Exception> onError;
+        synchronized (this) {
+            onFinish = this.onReplayFinish;
+            onError = this.onReplayError;
+        }
+
+        final long fileLength = file.length();
+        try (final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), IO_BUFFER_SIZE))) {
+            while (true) {
+                final int metaLength;
+                try {
+                    metaLength = input.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (metaLength < 0 || metaLength > MAX_META_LENGTH) {
+                    break;
+                }
+                final byte[] meta = new byte[metaLength];
+                input.readFully(meta);
+                final long bodyLength = input.readLong();
+                if (bodyLength > fileLength) {
+                    break;
+                }
+                final byte[] body = (bodyLength >= 0 ? new byte[(int) bodyLength] : null);
+                if (body != null) {
+                    input.readFully(body);
+                }
+                final CRC32 crc = new CRC32();
+                crc.update(meta);
+                if (body != null) {
+                    crc.update(body);
+                }
+                if (input.readInt() != (int) crc.getValue()) {
+                    break;
+                }
+                entries.add(Journal.decodeMeta(meta)
+                        .setData(body)
+                        .setOnFinish(onFinish)
+                        .setOnError(onError)
+                        .build());
+            }
+        } catch (EOFException e) {
+            // 書き込み途中で終わっている
+        }
+        return entries;
+    }
+
+    private static int readAck(@NonNull Segment segment) {
+        if (!segment.ackFile.exists()) {
+            return 0;
+        }
+        try (final DataInputStream input = new DataInputStream(new FileInputStream(segment.ackFile))) {
+            return Math.max(0, input.readInt());
+        } catch (IOException e) {
+            // 読めなければ最初から送り直す
+            return 0;
+        }
+    }
+
+    private static void writeAck(@NonNull Segment segment, int count) {
+        try (final FileOutputStream fileOutput = new FileOutputStream(segment.ackFile)) {
+            final DataOutputStream output = new DataOutputStream(fileOutput);
+            output.writeInt(count);
+            output.flush();
+            fileOutput.getFD().sync();
+        } catch (IOException e) {
+            // 記録できなければ送れた分も次に送り直すだけ
+        }
+    }
+
+    /**
+     * 送り直しスレッドで動く。
+     * セグメントを古い順に送り直し、セグメントが無くなったらリングバッファの中身を渡す
+     */
+    private void drain() {
+        while (true) {
+            Segment segment;
+            List<Poster.Entry> buffered = null;
+            synchronized (this) {
+                try {
+                    while (true) {
+                        segment = null;
+                        if (this.closed || !isOnline()) {
+                            this.draining = false;
+                            return;
+                        }
+                        if (!this.segments.isEmpty()) {
+                            segment = this.segments.getFirst();
+                            if (segment == this.tail) {
+                                // 送り直している間に追記されないように、次からは新しいセグメントに書く
+                                this.tail = null;
+                            }
+                            if (!segment.writing) {
+                                break;
+                            }
+                        } else if (this.spilling.isEmpty()) {
+                            if (this.ring.isEmpty()) {
+                                this.draining = false;
+                                return;
+                            }
+                            buffered = new ArrayList<>(this.ring);
+                            this.ring.clear();
+                            break;
+                        }
+                        // リングバッファより古いものを書き出し中なので、書き終わるのを待つ
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    this.draining = false;
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+
+            if (buffered != null) {
+                for (final Poster.Entry entry : buffered) {
+                    send(entry);
+                }
+                continue;
+            }
+
+            final boolean done;
+            try {
+                done = replay(segment);
+            } catch (InterruptedException e) {
+                synchronized (this) {
+                    this.draining = false;
+                }
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (!done) {
+                synchronized (this) {
+                    this.draining = false;
+                }
+                scheduleRetry();
+                return;
+            }
+            synchronized (this) {
+                this.segments.remove(segment);
+            }
+            //noinspection ResultOfMethodCallIgnored
+            segment.file.delete();
+            //noinspection ResultOfMethodCallIgnored
+            segment.ackFile.delete();
+        }
+    }
+
+    /**
+     * セグメントの Entry を順に Poster に渡し、全部の結果が出るまで待つ。
+     * IOException で失敗したら、そこまでに送れた数を記録して止める
+     *
+     * @return 全部送れたら true
+     */
+    private boolean replay(@NonNull Segment segment) throws InterruptedException {
+        final List<Poster.Entry> records;
+        try {
+            records = read(segment.file);
+        } catch (IOException e) {
+            return false;
+        }
+
+        int acked = readAck(segment);
+        final List<PostFuture> futures = new ArrayList<>();
+        for (int i = acked; i < records.size(); i++) {
+            final Poster.Entry record = records.get(i);
+            final Poster.Entry base = (i < segment.entries.size() ? segment.entries.get(i) : record);
+            // セグメントに保存してあるので、Poster のジャーナルには記録しない
+            futures.add(this.poster.submit(new Poster.Entry(base, record.body, (Exception e) -> {
+                // 通信の失敗は送り直すので知らせない
+                if (!(e instanceof IOException)) {
+                    base.onError.accept(e);
+                }
+            }), false));
+        }
+
+        try {
+            for (final PostFuture future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        return false;
+                    }
+                } catch (CancellationException e) {
+                    // 取り消されたものは送れたものとして扱う
+                }
+                acked++;
+            }
+            return true;
+        } finally {
+            if (acked < records.size()) {
+                // 後ろのものは次にまとめて送り直す
+                for (final PostFuture future : futures) {
+                    future.cancel(true);
+                }
+                writeAck(segment, acked);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class BatcherTest {
+
+    private RecordingTransport transport;
+    private Poster poster;
+
+    @Before
+    public void setUp() {
+        this.transport = new RecordingTransport();
+        this.poster = (new Poster()).setTransport(this.transport);
+    }
+
+    private static JsonEntryBuilder json(int value, boolean recycle) throws IOException {
+        return (new JsonEntryBuilder())
+                .setRecycle(recycle)
+                .setUrl(new URL("http://localhost/logs"))
+                .setData(Collections.singletonMap("v", value));
+    }
+
+    private static JsonEntryBuilder json(int value) throws IOException {
+        return json(value, false);
+    }
+
+    @Test
+    public void combinesIntoJsonArray() throws Exception {
+        final Batcher batcher = new Batcher(this.poster, Looper.getMainLooper(), 60_000, 3, 0, Batcher.Format.JSON_ARRAY);
+        final int[] finished = new int[1];
+        for (int i = 0; i < 3; i++) {
+            batcher.post(json(i).setOnFinish(status -> finished[0]++).build());
+        }
+
+        assertEquals(1, this.transport.getSent().size());
+        assertEquals("[{\"v\":0},{\"v\":1},{\"v\":2}]", this.transport.getSent().get(0).text());
+        assertEquals("application/json", this.transport.getSent().get(0).header.get("content-type"));
+        assertEquals(3, finished[0]);
+    }
+
+    @Test
+    public void combinesIntoNdjson() throws Exception {
+        final Batcher batcher = new Batcher(this.poster, Looper.getMainLooper(), 60_000, 2, 0, Batcher.Format.NDJSON);
+        batcher.post(json(0).build());
+        batcher.post(json(1).build());
+
+        assertEquals("{\"v\":0}\n{\"v\":1}\n", this.transport.getSent().get(0).text());
+        assertEquals("application/x-ndjson", this.transport.getSent().get(0).header.get("content-type"));
+    }
+
+    @Test
+    public void sendsNonJsonImmediately() throws Exception {
+        final Batcher batcher = new Batcher(this.poster, Looper.getMainLooper(), 60_000, 10, 0, Batcher.Format.JSON_ARRAY);
+        batcher.post((new Poster.BasicEntryBuilder())
+                .setUrl(new URL("http://localhost/logs"))
+                .setHeader(Collections.singletonMap("Content-Type", "text/plain"))
+                .setData("text".getBytes())
+                .build());
+
+        assertEquals(1, this.transport.getSent().size());
+        assertEquals("text", this.transport.getSent().get(0).text());
+    }
+
+    @Test
+    public void keepsDifferentSettingsApart() throws Exception {
+        final Batcher batcher = new Batcher(this.poster, Looper.getMainLooper(), 60_000, 10, 0, Batcher.Format.JSON_ARRAY);
+        batcher.post(json(0).setReadTimeout(1_000).build());
+        batcher.post(json(1).setReadTimeout(2_000).build());
+        batcher.post(json(2).setReadTimeout(1_000).build());
+        // maxBytes が 0 なのでバイト数では送らない
+        assertEquals(0, this.transport.getSent().size());
+
+        batcher.flush();
+        assertEquals(2, this.transport.getSent().size());
+    }
+
+    @Test
+    public void recyclesPooledBodies() throws Exception {
+        final Batcher batcher = new Batcher(this.poster, Looper.getMainLooper(), 60_000, 2, 0, Batcher.Format.JSON_ARRAY);
+        final Poster.Entry first = json(0, true).build();
+        final Poster.Entry second = json(1, true).build();
+        batcher.post(first);
+        batcher.post(second);
+        assertEquals("[{\"v\":0},{\"v\":1}]", this.transport.getSent().get(0).text());
+
+        try {
+            first.body.writeTo(new ByteArrayOutputStream());
+            fail("not recycled");
+        } catch (IllegalStateException e) {
+            // バッファは返されている
+        }
+    }
+
+}
@@ -0,0 +1,94 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class BodiesTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file(byte[] data) throws IOException {
+        final File file = this.folder.newFile();
+        try (final FileOutputStream output = new FileOutputStream(file)) {
+            output.write(data);
+        }
+        return file;
+    }
+
+    private static byte[] random(int size) {
+        final byte[] data = new byte[size];
+        (new Random(1)).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void writesFileRange() throws Exception {
+        // バッファより大きく、半端な長さの範囲
+        final byte[] data = random(3 * BufferPool.BUFFER_SIZE + 100);
+        final Body body = Bodies.of(file(data), 50, data.length - 70);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        body.writeTo(output);
+        assertArrayEquals(Arrays.copyOfRange(data, 50, data.length - 20), output.toByteArray());
+
+        // 何度でも書き出せる
+        final ByteArrayOutputStream again = new ByteArrayOutputStream();
+        body.writeTo(again);
+        assertArrayEquals(output.toByteArray(), again.toByteArray());
+    }
+
+    @Test
+    public void keepsChannelPosition() throws Exception {
+        final byte[] data = random(2 * 1024 * 1024);
+        try (final FileInputStream input = new FileInputStream(file(data))) {
+            final FileChannel channel = input.getChannel();
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            Bodies.transfer(channel, 1, data.length - 1, output);
+            assertArrayEquals(Arrays.copyOfRange(data, 1, data.length), output.toByteArray());
+            assertEquals(0, channel.position());
+        }
+    }
+
+    @Test
+    public void failsOnShortFile() throws Exception {
+        final byte[] data = random(100);
+        try (final FileInputStream input = new FileInputStream(file(data))) {
+            Bodies.transfer(input.getChannel(), 0, 200, new ByteArrayOutputStream());
+            fail();
+        } catch (EOFException e) {
+            // 足りない
+        }
+    }
+
+}
@@ -0,0 +1,148 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EndpointTest {
+
+    private LocalServer server;
+    private LocalServer other;
+
+    @After
+    public void tearDown() throws IOException {
+        if (this.server != null) {
+            this.server.close();
+        }
+        if (this.other != null) {
+            this.other.close();
+        }
+    }
+
+    /**
+     * @return 接続を拒否される URL
+     */
+    private static URL refusedUrl() throws IOException {
+        try (final ServerSocket socket = new ServerSocket(0)) {
+            return new URL("http://127.0.0.1:" + socket.getLocalPort() + "/api");
+        }
+    }
+
+    @Test
+    public void rewritesBaseUrl() throws Exception {
+        final Endpoint endpoint = (new Endpoint.Builder())
+                .addUrl(new URL("http://a.example.com/api/"))
+                .addUrl(new URL("http://b.example.com/v1"))
+                .build();
+        assertEquals(new URL("http://a.example.com/api/logs?x=1"), endpoint.url("logs?x=1"));
+        assertEquals(Arrays.asList(new URL("http://a.example.com/api/"), new URL("http://b.example.com/v1")), endpoint.getOrder());
+    }
+
+    @Test
+    public void failsOverWhenConnectionIsRefused() throws Exception {
+        this.server = new LocalServer(LocalServer.respond(200, "ok"));
+        final URL refused = refusedUrl();
+        final Endpoint endpoint = (new Endpoint.Builder())
+                .addUrl(refused)
+                .addUrl(this.server.url("/api"))
+                .setCircuitBreaker(1, 60_000)
+                .build();
+
+        final int[] status = new int[1];
+        final Poster poster = new Poster();
+        poster.post((new Poster.BasicEntryBuilder())
+                .setUrl(endpoint.url("/logs"))
+                .setEndpoint(endpoint)
+                .setData("a".getBytes())
+                .setOnFinish(s -> status[0] = s)
+                .build());
+
+        assertEquals(200, status[0]);
+        assertEquals(1, this.server.getRequests());
+        // 失敗した方は休ませる
+        assertEquals(this.server.url("/api"), endpoint.getOrder().get(0));
+    }
+
+    @Test
+    public void doesNotFailOverAfterRequestWasSent() throws Exception {
+        // 受け取るが応答しない
+        this.server = new LocalServer((head, body, output) -> {
+            try {
+                Thread.sleep(5_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        this.other = new LocalServer(LocalServer.respond(200, "ok"));
+        final Endpoint endpoint = (new Endpoint.Builder())
+                .addUrl(this.server.url("/api"))
+                .addUrl(this.other.url("/api"))
+                .build();
+
+        final Exception[] error = new Exception[1];
+        final Poster poster = new Poster();
+        poster.post((new Poster.BasicEntryBuilder())
+                .setUrl(endpoint.url("/logs"))
+                .setEndpoint(endpoint)
+                .setReadTimeout(300)
+                .setData("a".getBytes())
+                .setOnError(e -> error[0] = e)
+                .build());
+
+        assertTrue(String.valueOf(error[0]), error[0] instanceof SocketTimeoutException);
+        assertEquals(1, this.server.getRequests());
+        assertEquals(0, this.other.getRequests());
+    }
+
+    @Test
+    public void spreadsByLatency() throws Exception {
+        final URL fast = new URL("http://fast.example.com/");
+        final URL slow = new URL("http://slow.example.com/");
+        final Endpoint endpoint = (new Endpoint.Builder())
+                .addUrl(fast)
+                .addUrl(slow)
+                .build();
+
+        final int[] counts = new int[2];
+        final PostMetrics metrics = new PostMetrics();
+        for (int i = 0; i < 2_000; i++) {
+            endpoint.execute(fast, true, Watchdog.watch(null, 0, 0), metrics, (URL url) -> {
+                final boolean isFast = url.getHost().startsWith("fast");
+                counts[isFast ? 0 : 1]++;
+                // 接続時間として応答時間を報告する
+                metrics.connect = TimeUnit.MILLISECONDS.toNanos(isFast ? 1 : 9);
+                return new Response(200, null);
+            });
+        }
+
+        // 遅い方にも時々送り、速い方に多く送る
+        assertTrue(counts[1] > 50);
+        assertTrue(counts[0] > counts[1] * 4);
+    }
+
+}
@@ -0,0 +1,71 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.NonNull;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 通信状態を試験から切り替える NetworkStateProvider
+ */
+class FakeNetworkStateProvider implements NetworkStateProvider {
+
+    private volatile NetworkState state;
+    private final List<Runnable> listeners;
+
+    FakeNetworkStateProvider(boolean connected) {
+        this.state = new NetworkState(connected, false, true, 0);
+        this.listeners = new CopyOnWriteArrayList<>();
+    }
+
+    /**
+     * 状態を変えて通知する
+     */
+    void setState(@NonNull NetworkState state) {
+        this.state = state;
+        for (final Runnable listener : this.listeners) {
+            listener.run();
+        }
+    }
+
+    void setConnected(boolean connected) {
+        setState(new NetworkState(connected, false, true, 0));
+    }
+
+    @NonNull
+    @Override
+    public NetworkState getState() {
+        return this.state;
+    }
+
+    @Override
+    public void addListener(@NonNull Runnable listener) {
+        this.listeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(@NonNull Runnable listener) {
+        this.listeners.remove(listener);
+    }
+
+    int getListenerCount() {
+        return this.listeners.size();
+    }
+
+}
@@ -0,0 +1,84 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HeaderTemplateTest {
+
+    @Test
+    public void lowercasesNames() {
+        final HeaderTemplate header = (new HeaderTemplate.Builder())
+                .set("Content-Type", "application/json")
+                .set("X-Token", "abc")
+                .set("x-token", "def")
+                .build();
+        assertEquals(2, header.size());
+        assertEquals("application/json", header.get("content-type"));
+        assertEquals("def", header.get("x-token"));
+        // Map としては大文字小文字を区別する
+        assertNull(header.get("Content-Type"));
+    }
+
+    @Test
+    public void keepsMapContractWithHashMap() {
+        final HeaderTemplate header = HeaderTemplate.of(Collections.singletonMap("Content-Type", "a"));
+        final Map<String, String> same = new HashMap<>(Collections.singletonMap("content-type", "a"));
+        assertEquals(same, header);
+        assertEquals(header, same);
+        assertEquals(same.hashCode(), header.hashCode());
+
+        final Map<String, String> other = new HashMap<>(Collections.singletonMap("Content-Type", "a"));
+        assertNotEquals(other, header);
+        assertNotEquals(header, other);
+    }
+
+    @Test
+    public void keepsMapContractWithDelta() {
+        final HeaderTemplate base = (new HeaderTemplate.Builder()).set("X-Token", "abc").build();
+        final HeaderTemplate delta = base.with("Content-Type", "application/json");
+        final Map<String, String> same = new HashMap<>();
+        same.put("x-token", "abc");
+        same.put("content-type", "application/json");
+        assertEquals(same, delta);
+        assertEquals(delta, same);
+        assertEquals(same.hashCode(), delta.hashCode());
+
+        final Set<Map<String, String>> set = new HashSet<>();
+        set.add(same);
+        assertTrue(set.contains(delta));
+    }
+
+    @Test
+    public void distinguishesValues() {
+        final HeaderTemplate a = (new HeaderTemplate.Builder()).set("X-Token", "abc").build();
+        final HeaderTemplate b = (new HeaderTemplate.Builder()).set("x-token", "ABC").build();
+        assertNotEquals(a, b);
+    }
+
+}
@@ -0,0 +1,217 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ConnectException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Poster.BasicEntryBuilder entry(String data) throws IOException {
+        return (new Poster.BasicEntryBuilder())
+                .setUrl(new URL("http://localhost/upload"))
+                .setData(data.getBytes());
+    }
+
+    private static byte[] read(Body body) throws IOException {
+        final ByteArrayOutputStream buff = new ByteArrayOutputStream();
+        body.writeTo(buff);
+        return buff.toByteArray();
+    }
+
+    @Test
+    public void loadsUnacknowledgedRecords() throws Exception {
+        final File directory = this.folder.newFolder();
+        try (final Journal journal = new Journal(directory)) {
+            final long first = journal.append(entry("a").build());
+            journal.append(entry("b").build());
+            journal.ack(first);
+        }
+
+        try (final Journal journal = new Journal(directory)) {
+            final List<Journal.Record> records = journal.claim();
+            assertEquals(1, records.size());
+            assertArrayEquals("b".getBytes(), read(journal.body(records.get(0))));
+            assertTrue(journal.claim().isEmpty());
+        }
+    }
+
+    @Test
+    public void flushesOnAppend() throws Exception {
+        final File directory = this.folder.newFolder();
+        try (final Journal journal = (new Journal(directory)).setSyncPolicy(Integer.MAX_VALUE, 3_600_000)) {
+            journal.append(entry("a").build());
+
+            // 同期していなくても、プロセスが落ちれば読める状態になっている
+            try (final Journal other = new Journal(directory)) {
+                final List<Journal.Record> records = other.claim();
+                assertEquals(1, records.size());
+                assertArrayEquals("a".getBytes(), read(other.body(records.get(0))));
+            }
+        }
+    }
+
+    @Test
+    public void dropsTornTail() throws Exception {
+        final File directory = this.folder.newFolder();
+        try (final Journal journal = new Journal(directory)) {
+            journal.append(entry("a").build());
+            journal.append(entry("b").build());
+        }
+        final File file = new File(directory, "journal");
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+
+        try (final Journal journal = new Journal(directory)) {
+            final List<Journal.Record> records = journal.claim();
+            assertEquals(1, records.size());
+            assertArrayEquals("a".getBytes(), read(journal.body(records.get(0))));
+
+            // 捨てた末尾の後ろにも続けて書ける
+            journal.append(entry("c").build());
+        }
+        try (final Journal journal = new Journal(directory)) {
+            assertEquals(2, journal.size());
+        }
+    }
+
+    @Test
+    public void keepsEntrySettings() throws Exception {
+        final File directory = this.folder.newFolder();
+        try (final Journal journal = new Journal(directory)) {
+            journal.append(entry("a")
+                    .setHeader(Collections.singletonMap("X-Test", "1"))
+                    .setTimeout(1000)
+                    .setReadTimeout(2000)
+                    .setWriteTimeout(3000)
+                    .setDeadline(4000)
+                    .setOrderKey("order")
+                    .setCompression(6, 100)
+                    .setPriority(Poster.PRIORITY_HIGH)
+                    .setTimeToLive(60_000)
+                    .setCoalesceKey("coalesce")
+                    .setResponseLimit(512)
+                    .build());
+        }
+
+        try (final Journal journal = new Journal(directory)) {
+            final Journal.Record record = journal.claim().get(0);
+            final Poster.Entry entry = record.newBuilder().build();
+            assertEquals("1", entry.header.get("x-test"));
+            assertEquals(1000, entry.timeout);
+            assertEquals(2000, entry.readTimeout);
+            assertEquals(3000, entry.writeTimeout);
+            assertEquals(4000, entry.deadline);
+            assertEquals("order", entry.orderKey);
+            assertEquals(6, entry.compressionLevel);
+            assertEquals(100, entry.compressionMinLength);
+            assertEquals(Poster.PRIORITY_HIGH, entry.priority);
+            assertTrue(entry.timeToLive > 0 && entry.timeToLive <= 60_000);
+            assertEquals("coalesce", entry.coalesceKey);
+            assertEquals(512, entry.responseLimit);
+        }
+    }
+
+    @Test
+    public void recordsFileByReference() throws Exception {
+        final File data = this.folder.newFile("data");
+        try (final FileOutputStream output = new FileOutputStream(data)) {
+            output.write("0123456789".getBytes());
+            output.write(new byte[64 * 1024]);
+        }
+        final Body body = Bodies.concat(Arrays.asList(Bodies.of("head:".getBytes()), Bodies.of(data, 2, 5), Bodies.of(":tail".getBytes())));
+
+        final File directory = this.folder.newFolder();
+        try (final Journal journal = new Journal(directory)) {
+            journal.append(entry("").setBody(body).build());
+        }
+        // ファイルの中身は複製しない
+        assertTrue(new File(directory, "journal").length() < data.length());
+
+        try (final Journal journal = new Journal(directory)) {
+            final Journal.Record record = journal.claim().get(0);
+            assertArrayEquals("head:23456:tail".getBytes(), read(journal.body(record)));
+        }
+    }
+
+    @Test
+    public void skipsBodyThatCannotBeJournaled() throws Exception {
+        final File directory = this.folder.newFolder();
+        final RecordingTransport transport = new RecordingTransport();
+        final Poster poster = (new Poster())
+                .setTransport(transport)
+                .setJournal(new Journal(directory));
+
+        final Exception[] error = new Exception[1];
+        poster.post(entry("")
+                .setBody(Bodies.of(new ByteArrayInputStream("stream".getBytes()), -1))
+                .setOnError(e -> error[0] = e)
+                .build());
+
+        assertNull(error[0]);
+        assertEquals("stream", transport.getSent().get(0).text());
+    }
+
+    @Test
+    public void replaysAfterFailure() throws Exception {
+        final File directory = this.folder.newFolder();
+        try (final Journal journal = new Journal(directory)) {
+            final Poster poster = (new Poster())
+                    .setTransport(request -> {
+                        throw new ConnectException("offline");
+                    })
+                    .setJournal(journal);
+            poster.post(entry("a").setOrderKey("order").build());
+            poster.post(entry("b").build());
+        }
+
+        final RecordingTransport transport = new RecordingTransport();
+        try (final Journal journal = new Journal(directory)) {
+            final Poster poster = (new Poster())
+                    .setTransport(transport)
+                    .setJournal(journal);
+            assertEquals(2, poster.replay(null, null));
+            assertEquals(0, journal.size());
+        }
+        assertEquals(2, transport.getSent().size());
+        assertEquals("a", transport.getSent().get(0).text());
+        assertEquals("b", transport.getSent().get(1).text());
+    }
+
+}
@@ -0,0 +1,71 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class JsonEntryBuilderTest {
+
+    @Test
+    public void writesJsonWithContentType() throws Exception {
+        final Poster.Entry entry = (new JsonEntryBuilder())
+                .setUrl(new URL("http://localhost/"))
+                .setData(Collections.singletonMap("a", 1))
+                .build();
+        final ByteArrayOutputStream buff = new ByteArrayOutputStream();
+        entry.body.writeTo(buff);
+        assertEquals("{\"a\":1}", buff.toString("UTF-8"));
+        assertEquals("application/json", entry.header.get("content-type"));
+    }
+
+    @Test
+    public void picksUpChangesToReusedHeaderMap() throws Exception {
+        final JsonEntryBuilder builder = (new JsonEntryBuilder())
+                .setUrl(new URL("http://localhost/"))
+                .setData(Collections.emptyMap());
+        final Map<String, String> header = new HashMap<>();
+        header.put("X-Token", "1");
+        final Poster.Entry first = builder.setHeader(header).build();
+
+        header.put("X-Token", "2");
+        final Poster.Entry second = builder.setHeader(header).build();
+
+        assertEquals("1", first.header.get("x-token"));
+        assertEquals("2", second.header.get("x-token"));
+        assertEquals("application/json", second.header.get("content-type"));
+    }
+
+    @Test
+    public void reusesMergedHeaderForEqualHeader() throws Exception {
+        final JsonEntryBuilder builder = (new JsonEntryBuilder())
+                .setUrl(new URL("http://localhost/"))
+                .setData(Collections.emptyMap());
+        final Poster.Entry first = builder.setHeader(Collections.singletonMap("X-Token", "1")).build();
+        final Poster.Entry second = builder.setHeader(Collections.singletonMap("X-Token", "1")).build();
+        assertSame(first.header, second.header);
+    }
+
+}
@@ -0,0 +1,98 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * 期待値は Android の new JSONObject(map).toString() の出力
+ */
+public class JsonWriterTest {
+
+    private static String write(Object value) throws Exception {
+        final JsonWriter writer = new JsonWriter(16);
+        writer.write(value);
+        return new String(writer.toByteArray(), "UTF-8");
+    }
+
+    private static Map<String, Object> map(Object... pairs) {
+        final Map<String, Object> map = new LinkedHashMap<>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            map.put((String) pairs[i], pairs[i + 1]);
+        }
+        return map;
+    }
+
+    @Test
+    public void writesNumbersLikeJSONObject() throws Exception {
+        assertEquals("{\"a\":-0,\"b\":0,\"c\":2,\"d\":1.5,\"e\":1.1,\"f\":1.0E300,\"g\":-9223372036854775808,\"h\":7}",
+                write(map("a", -0.0, "b", -0.0f, "c", 2.0, "d", 1.5, "e", 1.1f, "f", 1e300, "g", Long.MIN_VALUE, "h", (byte) 7)));
+    }
+
+    @Test
+    public void writesStringsLikeJSONObject() throws Exception {
+        assertEquals("{\"a\":\"a\\/b\\\"c\\\\\",\"b\":\"\\t\\n\\u0001\",\"c\":\"c\",\"d\":\"日本\"}",
+                write(map("a", "a/b\"c\\", "b", "\t\n\u0001", "c", 'c', "d", "日本")));
+    }
+
+    @Test
+    public void wrapsOtherObjectsLikeJSONObject() throws Exception {
+        // java パッケージのものは文字列、それ以外は null になる
+        assertEquals("{\"a\":\"1.50\",\"b\":\"3\",\"c\":\"http:\\/\\/localhost\\/\",\"d\":null,\"e\":null}",
+                write(map("a", new BigDecimal("1.50"), "b", new AtomicLong(3), "c", new URL("http://localhost/"),
+                        "d", new Object() {
+                        }, "e", null)));
+    }
+
+    @Test
+    public void writesContainers() throws Exception {
+        assertEquals("{\"a\":[1,2],\"b\":[true,null],\"c\":{\"d\":[]}}",
+                write(map("a", new int[]{1, 2}, "b", Arrays.asList(true, null), "c", map("d", Collections.emptyList()))));
+    }
+
+    @Test
+    public void rejectsNonStringKeys() throws Exception {
+        try {
+            write(Collections.singletonMap(1, "a"));
+            fail();
+        } catch (ClassCastException e) {
+            // JSONObject(Map) と同じ
+        }
+    }
+
+    @Test
+    public void rejectsNonFiniteNumbers() throws Exception {
+        try {
+            write(map("a", Double.NaN));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // JSONObject なら toString が null を返す
+        }
+    }
+
+}
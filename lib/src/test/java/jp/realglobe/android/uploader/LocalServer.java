@@ -0,0 +1,152 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * テスト用の HTTP サーバ。
+ * 接続ごとにリクエストを 1 つ読んで handler に応答させ、接続を切る
+ */
+class LocalServer implements Closeable {
+
+    /**
+     * リクエストに応答する
+     */
+    interface Handler {
+
+        /**
+         * @param head   リクエスト行とヘッダ
+         * @param body   リクエストの本体
+         * @param output 応答の書き出し先
+         */
+        void handle(@NonNull String head, @NonNull byte[] body, @NonNull OutputStream output) throws IOException;
+
+    }
+
+    private final ServerSocket server;
+    private final Handler handler;
+    private final AtomicInteger requests;
+
+    LocalServer(@NonNull Handler handler) throws IOException {
+        this.server = new ServerSocket(0);
+        this.handler = handler;
+        this.requests = new AtomicInteger();
+
+        final Thread thread = new Thread(this::accept, "LocalServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @param status 返す HTTP ステータス
+     * @param body   返す本体
+     * @return 毎回同じ応答を返す Handler
+     */
+    @NonNull
+    static Handler respond(int status, @NonNull String body) {
+        return (head, requestBody, output) -> {
+            final byte[] data = body.getBytes(StandardCharsets.UTF_8);
+            output.write(("HTTP/1.1 " + status + " X\r\nContent-Length: " + data.length + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            output.write(data);
+        };
+    }
+
+    @NonNull
+    URL url(@NonNull String path) throws IOException {
+        return new URL("http://127.0.0.1:" + this.server.getLocalPort() + path);
+    }
+
+    /**
+     * @return 本体まで読んだリクエストの数
+     */
+    int getRequests() {
+        return this.requests.get();
+    }
+
+    private void accept() {
+        while (!this.server.isClosed()) {
+            final Socket socket;
+            try {
+                socket = this.server.accept();
+            } catch (IOException e) {
+                return;
+            }
+            final Thread thread = new Thread(() -> serve(socket), "LocalServer-connection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void serve(@NonNull Socket socket) {
+        try (final Socket s = socket) {
+            final DataInputStream input = new DataInputStream(s.getInputStream());
+            final String head = readHead(input);
+            final byte[] body = new byte[contentLength(head)];
+            input.readFully(body);
+            this.requests.incrementAndGet();
+            final OutputStream output = s.getOutputStream();
+            this.handler.handle(head, body, output);
+            output.flush();
+        } catch (IOException e) {
+            // 相手が切った
+        }
+    }
+
+    @NonNull
+    private static String readHead(@NonNull InputStream input) throws IOException {
+        final ByteArrayOutputStream buff = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < 4) {
+            final int c = input.read();
+            if (c < 0) {
+                throw new IOException("unexpected end of request");
+            }
+            buff.write(c);
+            matched = (c == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : (c == '\r' ? 1 : 0));
+        }
+        return buff.toString("US-ASCII");
+    }
+
+    private static int contentLength(@NonNull String head) {
+        for (final String line : head.split("\r\n")) {
+            if (line.toLowerCase(Locale.US).startsWith("content-length:")) {
+                return Integer.parseInt(line.substring(line.indexOf(':') + 1).trim());
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.server.close();
+    }
+
+}
@@ -0,0 +1,94 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MultipartEntryBuilderTest {
+
+    @Test
+    public void writesPartsBetweenBoundaries() throws Exception {
+        final Poster.Entry entry = (new MultipartEntryBuilder())
+                .setUrl(new URL("http://localhost/"))
+                .addData("a", "text/plain", "hello".getBytes())
+                .build();
+        final String contentType = entry.header.get("content-type");
+        assertTrue(contentType.startsWith("multipart/form-data; boundary="));
+        final String boundary = contentType.substring(contentType.indexOf('=') + 1);
+
+        final ByteArrayOutputStream buff = new ByteArrayOutputStream();
+        entry.body.writeTo(buff);
+        final String body = buff.toString("UTF-8");
+        assertTrue(body.startsWith("--" + boundary + "\r\n"));
+        assertTrue(body.contains("name=\"a\""));
+        assertTrue(body.contains("\r\n\r\nhello\r\n"));
+        assertTrue(body.endsWith("--" + boundary + "--\r\n"));
+        assertEquals(body.length(), entry.body.getLength());
+    }
+
+    @Test
+    public void copiesHeaderMap() throws Exception {
+        final MultipartEntryBuilder builder = (new MultipartEntryBuilder())
+                .setUrl(new URL("http://localhost/"))
+                .addData("a", null, new byte[0]);
+        final Map<String, String> header = new HashMap<>();
+        header.put("X-Token", "1");
+        builder.setHeader(header);
+        header.put("X-Token", "2");
+        final Poster.Entry first = builder.build();
+
+        builder.setHeader(header);
+        final Poster.Entry second = builder.build();
+
+        assertEquals("1", first.header.get("x-token"));
+        assertEquals("2", second.header.get("x-token"));
+    }
+
+    @Test
+    public void reusesEncodedSegments() throws Exception {
+        final MultipartEntryBuilder builder = (new MultipartEntryBuilder())
+                .setUrl(new URL("http://localhost/"))
+                .setHeader(HeaderTemplate.of(Collections.singletonMap("X-Token", "1")))
+                .addData("a", "text/plain", "hello".getBytes());
+        final Poster.Entry first = builder.build();
+        final Poster.Entry second = builder.build();
+
+        // 区切りもパートのヘッダも、つくり直さずに同じものを並べる
+        final List<Body> firstParts = new ArrayList<>();
+        Bodies.flatten(first.body, firstParts);
+        final List<Body> secondParts = new ArrayList<>();
+        Bodies.flatten(second.body, secondParts);
+        assertEquals(firstParts.size(), secondParts.size());
+        for (int i = 0; i < firstParts.size(); i++) {
+            assertSame(firstParts.get(i), secondParts.get(i));
+        }
+        assertSame(first.header, second.header);
+    }
+
+}
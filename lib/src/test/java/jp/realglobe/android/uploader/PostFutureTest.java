@@ -0,0 +1,120 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PostFutureTest {
+
+    private static Poster.Entry entry(String data) throws IOException {
+        return (new Poster.BasicEntryBuilder())
+                .setUrl(new URL("http://localhost/upload"))
+                .setData(data.getBytes())
+                .build();
+    }
+
+    @Test
+    public void callsListenersOnCompletion() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Poster poster = (new Poster(1, 0))
+                .setTransport(request -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException("interrupted", e);
+                    }
+                    return new Response(200, null);
+                });
+        try {
+            final PostFuture future = poster.submit(entry("a"));
+            final List<String> called = new CopyOnWriteArrayList<>();
+            final CountDownLatch done = new CountDownLatch(1);
+            future.addListener(f -> {
+                called.add("first");
+                throw new IllegalStateException("listener");
+            });
+            future.addListener(f -> {
+                assertSame(future, f);
+                assertTrue(f.isDone());
+                called.add("second");
+                done.countDown();
+            });
+            assertTrue(called.isEmpty());
+
+            release.countDown();
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(2, called.size());
+            assertEquals("first", called.get(0));
+            assertEquals("second", called.get(1));
+
+            // 完了後に登録したらすぐに呼ばれる
+            future.addListener(f -> called.add("late"));
+            assertEquals("late", called.get(2));
+
+            // 失敗した関数があっても送信スレッドは止まらない
+            assertEquals(200, poster.submit(entry("b")).get(5, TimeUnit.SECONDS).getStatus());
+        } finally {
+            poster.shutdown();
+        }
+    }
+
+    @Test
+    public void callsListenersOnCancel() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Poster poster = (new Poster(1, 0))
+                .setTransport(request -> {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException("interrupted", e);
+                    }
+                    return new Response(200, null);
+                });
+        try {
+            poster.submit(entry("a"));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            final PostFuture queued = poster.submit(entry("b"));
+            final CountDownLatch called = new CountDownLatch(1);
+            queued.addListener(f -> {
+                assertTrue(f.isCancelled());
+                called.countDown();
+            });
+
+            assertTrue(queued.cancel(false));
+            assertTrue(called.await(5, TimeUnit.SECONDS));
+            assertFalse(queued.cancel(false));
+        } finally {
+            release.countDown();
+            poster.shutdown();
+        }
+    }
+
+}
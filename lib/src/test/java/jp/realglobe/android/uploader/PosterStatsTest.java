@@ -0,0 +1,128 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PosterStatsTest {
+
+    private static Poster.Entry entry(String data) throws IOException {
+        return (new Poster.BasicEntryBuilder())
+                .setUrl(new URL("http://localhost/upload"))
+                .setData(data.getBytes())
+                .build();
+    }
+
+    @Test
+    public void recordsMetricsOfEachPost() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final Poster poster = (new Poster(1, 0))
+                .setTransport(request -> {
+                    if (calls.getAndIncrement() == 0) {
+                        return new Response(503, null);
+                    }
+                    request.recordConnect(1_000);
+                    request.recordWrite(2_000, 3);
+                    request.recordFirstByte(3_000);
+                    return new Response(200, null);
+                })
+                .setRetryPolicy((new RetryPolicy.Builder())
+                        .setMaxAttempts(2)
+                        .setBackoff(1, 1, 1)
+                        .setJitter(0)
+                        .build());
+        try {
+            final PostFuture future = poster.submit(entry("abc"));
+            assertEquals(200, future.get(5, TimeUnit.SECONDS).getStatus());
+
+            final PostMetrics metrics = future.getMetrics();
+            assertEquals(200, metrics.getStatus());
+            assertNull(metrics.getError());
+            assertEquals(1, metrics.getRetries());
+            assertEquals(1_000, metrics.getConnectNanos());
+            assertEquals(2_000, metrics.getWriteNanos());
+            assertEquals(3, metrics.getBytesSent());
+            assertEquals(3_000, metrics.getFirstByteNanos());
+            assertTrue(metrics.getTotalNanos() > 0);
+
+            final PosterStats stats = poster.getStats();
+            assertEquals(1, stats.getPosted());
+            assertEquals(0, stats.getFailed());
+            assertEquals(1, stats.getRetries());
+            assertEquals(3, stats.getBytesSent());
+            assertEquals(1, stats.getConnect().getCount());
+            assertEquals(1, stats.getTotal().getCount());
+        } finally {
+            poster.shutdown();
+        }
+    }
+
+    @Test
+    public void recordsFailures() throws Exception {
+        final IOException error = new IOException("down");
+        final Poster poster = (new Poster(1, 0))
+                .setTransport(request -> {
+                    throw error;
+                })
+                .setRetryPolicy(null);
+        try {
+            final PostFuture future = poster.submit(entry("abc"));
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertSame(error, e.getCause());
+            }
+            assertSame(error, future.getMetrics().getError());
+
+            final PosterStats stats = poster.getStats();
+            assertEquals(0, stats.getPosted());
+            assertEquals(1, stats.getFailed());
+        } finally {
+            poster.shutdown();
+        }
+    }
+
+    @Test
+    public void estimatesPercentiles() {
+        final Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getPercentile(50));
+        for (int i = 1; i <= 1_000; i++) {
+            histogram.record(i * 1_000L);
+        }
+        assertEquals(1_000, histogram.getCount());
+
+        // 区間の幅は値の 1/4 まで
+        final long median = histogram.getPercentile(50);
+        assertTrue(median >= 500_000 && median <= 625_000);
+        final long max = histogram.getPercentile(100);
+        assertTrue(max >= 1_000_000 && max <= 1_250_000);
+    }
+
+}
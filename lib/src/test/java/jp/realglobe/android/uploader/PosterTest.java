@@ -0,0 +1,253 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PosterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Poster.BasicEntryBuilder entry(String data) throws IOException {
+        return (new Poster.BasicEntryBuilder())
+                .setUrl(new URL("http://localhost/upload"))
+                .setData(data.getBytes());
+    }
+
+    /**
+     * 単語を並べた、ある程度圧縮の効く送信データ
+     */
+    private static String text(int words) {
+        final String[] dictionary = {"alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf", "hotel"};
+        final StringBuilder buff = new StringBuilder();
+        long seed = 1;
+        for (int i = 0; i < words; i++) {
+            seed = seed * 6364136223846793005L + 1442695040888963407L;
+            buff.append(dictionary[(int) (seed >>> 61)]).append(seed >>> 58 & 1).append(' ');
+        }
+        return buff.toString();
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        try (final GZIPInputStream input = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            final byte[] buff = new byte[8192];
+            for (int n; (n = input.read(buff)) >= 0; ) {
+                output.write(buff, 0, n);
+            }
+            return output.toByteArray();
+        }
+    }
+
+    private static RecordingTransport.Sent send(Poster.BasicEntryBuilder entry) throws Exception {
+        final RecordingTransport transport = new RecordingTransport();
+        final Poster poster = (new Poster(1, 0)).setTransport(transport);
+        try {
+            poster.submit(entry.build()).get(5, TimeUnit.SECONDS);
+        } finally {
+            poster.shutdown();
+        }
+        return transport.getSent().get(0);
+    }
+
+    /**
+     * 最初の送信を release まで止める Transport
+     */
+    private static final class BlockingTransport implements Transport {
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public Response send(Request request) throws IOException {
+            this.started.countDown();
+            try {
+                this.release.await();
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted", e);
+            }
+            return new Response(200, null);
+        }
+
+    }
+
+    @Test
+    public void finishesInFlightAndFailsQueuedOnShutdown() throws Exception {
+        final BlockingTransport transport = new BlockingTransport();
+        final Poster poster = (new Poster(1, 0)).setTransport(transport);
+
+        final PostFuture inFlight = poster.submit(entry("a").build());
+        assertTrue(transport.started.await(5, TimeUnit.SECONDS));
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        final PostFuture queued = poster.submit(entry("b").setOnError(error::set).build());
+
+        poster.shutdown();
+        assertTrue(error.get() instanceof RejectedException);
+        try {
+            queued.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedException);
+        }
+
+        // 割り込まれずに送信し終える
+        transport.release.countDown();
+        assertEquals(200, inFlight.get(5, TimeUnit.SECONDS).getStatus());
+    }
+
+    @Test
+    public void failsPendingRetryOnShutdown() throws Exception {
+        final CountDownLatch sent = new CountDownLatch(1);
+        final Poster poster = (new Poster(1, 0))
+                .setTransport(request -> {
+                    sent.countDown();
+                    return new Response(503, null);
+                })
+                .setRetryPolicy((new RetryPolicy.Builder()).setBackoff(60_000, 60_000, 1).build());
+
+        final PostFuture future = poster.submit(entry("a").build());
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+
+        // 再送待ちになる前に止めても、再送待ちになった後に止めても断られる
+        poster.shutdown();
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedException);
+        }
+    }
+
+    @Test
+    public void survivesThrowingCallbacks() throws Exception {
+        final RecordingTransport transport = new RecordingTransport();
+        final Poster poster = (new Poster(1, 0)).setTransport(transport);
+
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        final PostFuture first = poster.submit(entry("a")
+                .setOnFinish(status -> {
+                    throw new IllegalStateException("finish");
+                })
+                .setOnError(e -> {
+                    error.set(e);
+                    throw new IllegalStateException("error");
+                })
+                .build());
+        assertEquals(200, first.get(5, TimeUnit.SECONDS).getStatus());
+        assertEquals("finish", error.get().getMessage());
+
+        // 送信スレッドは止まっていない
+        final PostFuture second = poster.submit(entry("b").build());
+        assertEquals(200, second.get(5, TimeUnit.SECONDS).getStatus());
+        assertEquals(2, transport.getSent().size());
+        poster.shutdown();
+    }
+
+    @Test
+    public void compressesOnlyFromThreshold() throws Exception {
+        final String data = text(1_000);
+
+        final RecordingTransport.Sent small = send(entry(data).setCompression(6, data.length() + 1));
+        assertNull(small.header.get("content-encoding"));
+        assertEquals(data, small.text());
+
+        final RecordingTransport.Sent large = send(entry(data).setCompression(6, data.length()));
+        assertEquals("gzip", large.header.get("content-encoding"));
+        assertTrue(large.body.length < data.length());
+        assertArrayEquals(data.getBytes(), gunzip(large.body));
+    }
+
+    @Test
+    public void compressesWithLevel() throws Exception {
+        final String data = text(20_000);
+
+        final RecordingTransport.Sent none = send(entry(data).setCompression(0, 0));
+        assertNull(none.header.get("content-encoding"));
+
+        final RecordingTransport.Sent fastest = send(entry(data).setCompression(1, 0));
+        final RecordingTransport.Sent best = send(entry(data).setCompression(9, 0));
+        assertArrayEquals(data.getBytes(), gunzip(fastest.body));
+        assertArrayEquals(data.getBytes(), gunzip(best.body));
+        assertTrue(best.body.length < fastest.body.length);
+    }
+
+    @Test
+    public void rejectsInvalidCompressionLevel() throws Exception {
+        entry("a").setCompression(-1, 0);
+        for (final int level : new int[]{-2, 10}) {
+            try {
+                entry("a").setCompression(level, 0);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // 範囲外
+            }
+        }
+    }
+
+    @Test
+    public void rejectsAfterShutdown() throws Exception {
+        final Poster poster = (new Poster(1, 0)).setTransport(new RecordingTransport());
+        poster.shutdown();
+
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        poster.post(entry("a").setOnError(error::set).build());
+        assertTrue(error.get() instanceof RejectedException);
+    }
+
+    @Test
+    public void keepsJournalRecordsOnShutdown() throws Exception {
+        final File directory = this.folder.newFolder();
+        final BlockingTransport transport = new BlockingTransport();
+        try (final Journal journal = new Journal(directory)) {
+            final Poster poster = (new Poster(1, 0))
+                    .setTransport(transport)
+                    .setJournal(journal);
+            final PostFuture inFlight = poster.submit(entry("a").build());
+            assertTrue(transport.started.await(5, TimeUnit.SECONDS));
+            poster.post(entry("b").build());
+
+            poster.shutdown();
+            transport.release.countDown();
+            inFlight.get(5, TimeUnit.SECONDS);
+        }
+
+        try (final Journal journal = new Journal(directory)) {
+            assertEquals(1, journal.claim().size());
+        }
+    }
+
+}
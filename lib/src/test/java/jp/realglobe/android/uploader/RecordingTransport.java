@@ -0,0 +1,128 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 受け取ったリクエストを記録するテスト用の Transport
+ */
+class RecordingTransport implements Transport {
+
+    /**
+     * 受け取ったリクエスト
+     */
+    static final class Sent {
+
+        final URL url;
+        final Map<String, String> header;
+        final byte[] body; // 送信データが無ければ null
+
+        private Sent(@NonNull URL url, @NonNull Map<String, String> header, byte[] body) {
+            this.url = url;
+            this.header = header;
+            this.body = body;
+        }
+
+        @NonNull
+        String text() {
+            return new String(this.body);
+        }
+
+    }
+
+    private final List<Sent> sent;
+    private volatile int status;
+
+    RecordingTransport() {
+        this.sent = Collections.synchronizedList(new ArrayList<>());
+        this.status = 200;
+    }
+
+    /**
+     * @param status 以降に返す HTTP ステータス
+     * @return this
+     */
+    @NonNull
+    RecordingTransport setStatus(int status) {
+        this.status = status;
+        return this;
+    }
+
+    /**
+     * @return 受け取った順のリクエスト
+     */
+    @NonNull
+    List<Sent> getSent() {
+        synchronized (this.sent) {
+            return new ArrayList<>(this.sent);
+        }
+    }
+
+    /**
+     * リクエストが指定数に達するまで待つ
+     *
+     * @param count   待つリクエストの数
+     * @param timeout 待ち時間の上限（ミリ秒）
+     * @return 達したら true
+     * @throws InterruptedException 割り込まれた
+     */
+    boolean awaitSent(int count, long timeout) throws InterruptedException {
+        final long limit = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        synchronized (this.sent) {
+            while (this.sent.size() < count) {
+                final long rest = TimeUnit.NANOSECONDS.toMillis(limit - System.nanoTime());
+                if (rest <= 0) {
+                    return false;
+                }
+                this.sent.wait(rest);
+            }
+            return true;
+        }
+    }
+
+    @NonNull
+    @Override
+    public Response send(@NonNull Request request) throws IOException {
+        if (request.isCancelled()) {
+            throw new InterruptedIOException("cancelled");
+        }
+        byte[] body = null;
+        if (request.getBody() != null) {
+            final ByteArrayOutputStream buff = new ByteArrayOutputStream();
+            request.getBody().writeTo(buff);
+            body = buff.toByteArray();
+        }
+        synchronized (this.sent) {
+            this.sent.add(new Sent(request.getUrl(), new HashMap<>(request.getHeader()), body));
+            this.sent.notifyAll();
+        }
+        return new Response(this.status, null);
+    }
+
+}
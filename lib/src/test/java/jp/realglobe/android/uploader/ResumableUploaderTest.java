@@ -0,0 +1,220 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ResumableUploaderTest {
+
+    private static final byte[] DATA = "0123456789".getBytes(StandardCharsets.US_ASCII);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalServer server;
+
+    @After
+    public void tearDown() throws IOException {
+        if (this.server != null) {
+            this.server.close();
+        }
+    }
+
+    /**
+     * 受け取った断片をつなげ、途中なら 308 を返すサーバ
+     */
+    private static class Receiver implements LocalServer.Handler {
+
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final List<String> ranges = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public synchronized void handle(String head, byte[] body, OutputStream output) throws IOException {
+            final String range = contentRange(head);
+            this.ranges.add(range);
+            if (!range.startsWith("bytes */")) {
+                final long start = Long.parseLong(range.substring("bytes ".length(), range.indexOf('-')));
+                if (start == this.received.size()) {
+                    this.received.write(body);
+                }
+            }
+            reply(output);
+        }
+
+        void reply(OutputStream output) throws IOException {
+            if (this.received.size() >= DATA.length) {
+                output.write("HTTP/1.1 200 OK\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            } else {
+                incomplete(output, this.received.size());
+            }
+        }
+
+    }
+
+    private static String contentRange(String head) {
+        for (final String line : head.split("\r\n")) {
+            if (line.toLowerCase(Locale.US).startsWith("content-range:")) {
+                return line.substring("content-range:".length()).trim();
+            }
+        }
+        throw new IllegalArgumentException("no content-range");
+    }
+
+    private static void incomplete(OutputStream output, long received) throws IOException {
+        final String range = (received > 0 ? "Range: bytes=0-" + (received - 1) + "\r\n" : "");
+        output.write(("HTTP/1.1 308 Resume Incomplete\r\n" + range + "Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private File file() throws IOException {
+        final File file = this.folder.newFile();
+        try (final FileOutputStream output = new FileOutputStream(file)) {
+            output.write(DATA);
+        }
+        return file;
+    }
+
+    private ResumableUploader uploader(int maxAttempts) throws IOException {
+        return (new ResumableUploader(new UrlConnectionTransport(), this.folder.getRoot()))
+                .setChunkSize(4)
+                .setRetryPolicy((new RetryPolicy.Builder()).setMaxAttempts(maxAttempts).setBackoff(0, 0, 1).build());
+    }
+
+    @Test
+    public void uploadsInChunks() throws Exception {
+        final Receiver receiver = new Receiver();
+        this.server = new LocalServer(receiver);
+        final Response response = uploader(1).upload("a", this.server.url("/"), null, file(), 5_000);
+        assertEquals(200, response.getStatus());
+        assertArrayEquals(DATA, receiver.received.toByteArray());
+        assertEquals(3, receiver.ranges.size());
+    }
+
+    @Test
+    public void resumesFromConfirmedOffset() throws Exception {
+        final File file = file();
+        final Receiver receiver = new Receiver() {
+            @Override
+            public synchronized void handle(String head, byte[] body, OutputStream output) throws IOException {
+                if (this.ranges.size() == 1) {
+                    // 2 つ目の断片は受け取らずに切る
+                    this.ranges.add(contentRange(head));
+                    return;
+                }
+                super.handle(head, body, output);
+            }
+        };
+        this.server = new LocalServer(receiver);
+        try {
+            uploader(1).upload("a", this.server.url("/"), null, file, 5_000);
+            fail();
+        } catch (IOException e) {
+            // 途中で切れた
+        }
+
+        final Response response = uploader(1).upload("a", this.server.url("/"), null, file, 5_000);
+        assertEquals(200, response.getStatus());
+        assertArrayEquals(DATA, receiver.received.toByteArray());
+        assertEquals("bytes */10", receiver.ranges.get(2));
+        assertEquals("bytes 4-7/10", receiver.ranges.get(3));
+    }
+
+    @Test
+    public void restartsWhenServerForgotUpload() throws Exception {
+        for (final int status : new int[]{404, 410}) {
+            final File file = file();
+            final Receiver interrupted = new Receiver() {
+                @Override
+                public synchronized void handle(String head, byte[] body, OutputStream output) throws IOException {
+                    if (this.ranges.size() == 1) {
+                        // 2 つ目の断片は受け取らずに切る
+                        this.ranges.add(contentRange(head));
+                        return;
+                    }
+                    super.handle(head, body, output);
+                }
+            };
+            this.server = new LocalServer(interrupted);
+            try {
+                uploader(1).upload("a", this.server.url("/"), null, file, 5_000);
+                fail();
+            } catch (IOException e) {
+                // 途中で切れた
+            }
+            this.server.close();
+
+            // 途中までの分を捨てたサーバ
+            final Receiver receiver = new Receiver() {
+                @Override
+                public synchronized void handle(String head, byte[] body, OutputStream output) throws IOException {
+                    if (this.ranges.isEmpty()) {
+                        this.ranges.add(contentRange(head));
+                        output.write(("HTTP/1.1 " + status + (status == 404 ? " Not Found" : " Gone") + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                        return;
+                    }
+                    super.handle(head, body, output);
+                }
+            };
+            this.server = new LocalServer(receiver);
+            final Response response = uploader(1).upload("a", this.server.url("/"), null, file, 5_000);
+            assertEquals(200, response.getStatus());
+            assertArrayEquals(DATA, receiver.received.toByteArray());
+            assertEquals(Arrays.asList("bytes */10", "bytes 0-3/10", "bytes 4-7/10", "bytes 8-9/10"), receiver.ranges);
+            this.server.close();
+            this.server = null;
+        }
+    }
+
+    @Test
+    public void stopsWhenServerDoesNotAdvance() throws Exception {
+        final Receiver receiver = new Receiver() {
+            @Override
+            void reply(OutputStream output) throws IOException {
+                // 最初の断片しか受け取ったことにしない
+                incomplete(output, Math.min(this.received.size(), 4));
+            }
+        };
+        this.server = new LocalServer(receiver);
+        try {
+            uploader(3).upload("a", this.server.url("/"), null, file(), 5_000);
+            fail();
+        } catch (IOException e) {
+            // 進まないので諦めた
+        }
+        // 最初の断片、次の断片と問い合わせの組を 3 回まで
+        assertEquals(6, receiver.ranges.size());
+    }
+
+}
@@ -0,0 +1,92 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+
+    private static RetryPolicy.Builder builder() {
+        return (new RetryPolicy.Builder())
+                .setBackoff(100, 1_000, 2)
+                .setJitter(0);
+    }
+
+    @Test
+    public void growsDelayUpToMax() {
+        final RetryPolicy policy = builder().build();
+        final Random random = new Random(0);
+        assertEquals(100, policy.getDelay(1, null, random));
+        assertEquals(200, policy.getDelay(2, null, random));
+        assertEquals(400, policy.getDelay(3, null, random));
+        assertEquals(1_000, policy.getDelay(5, null, random));
+        assertEquals(1_000, policy.getDelay(30, null, random));
+    }
+
+    @Test
+    public void jitterOnlyShortensDelay() {
+        final RetryPolicy policy = builder().setJitter(0.5).build();
+        final Random random = new Random(0);
+        for (int i = 0; i < 100; i++) {
+            final long delay = policy.getDelay(2, null, random);
+            assertTrue(delay >= 100 && delay <= 200);
+        }
+    }
+
+    @Test
+    public void waitsForRetryAfterWithinMax() {
+        final RetryPolicy policy = builder().setBackoff(100, 5_000, 2).build();
+        final Random random = new Random(0);
+        assertEquals(2_000, policy.getDelay(1, "2", random));
+        // 上限を超える指定は上限まで縮める
+        assertEquals(5_000, policy.getDelay(1, "3600", random));
+        // 計算した待ち時間より短い指定は無視する
+        assertEquals(400, policy.getDelay(3, "0", random));
+    }
+
+    @Test
+    public void ignoresRetryAfterWhenNotRespected() {
+        final RetryPolicy policy = builder().setRespectRetryAfter(false).build();
+        assertEquals(100, policy.getDelay(1, "3600", new Random(0)));
+    }
+
+    @Test
+    public void parsesRetryAfter() {
+        assertEquals(120_000, RetryPolicy.parseRetryAfter(" 120 "));
+        assertEquals(0, RetryPolicy.parseRetryAfter("-5"));
+        assertEquals(0, RetryPolicy.parseRetryAfter("soon"));
+        assertEquals(0, RetryPolicy.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT"));
+    }
+
+    @Test
+    public void classifiesFailures() {
+        final RetryPolicy policy = builder().build();
+        assertTrue(policy.isRetryable(503));
+        assertFalse(policy.isRetryable(400));
+        assertTrue(policy.isRetryable(new IOException()));
+        assertFalse(policy.isRetryable(new IllegalStateException()));
+        assertEquals(1, RetryPolicy.NONE.getMaxAttempts());
+    }
+
+}
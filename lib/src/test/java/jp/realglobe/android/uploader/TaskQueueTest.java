@@ -0,0 +1,281 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TaskQueueTest {
+
+    private static Poster.BasicEntryBuilder entry(String host) throws Exception {
+        return (new Poster.BasicEntryBuilder())
+                .setUrl(new URL("http://" + host + "/"))
+                .setData(new byte[10]);
+    }
+
+    private static Task task(Poster.BasicEntryBuilder builder) {
+        return new Task(builder.build(), -1);
+    }
+
+    /**
+     * 追加して取り出し、再送待ちにしてから戻す
+     */
+    private static void retry(TaskQueue queue, Task task) throws Exception {
+        queue.add(task);
+        assertSame(task, queue.poll());
+        task.retrying = true;
+        queue.done(task);
+        queue.addRetry(task);
+    }
+
+    @Test
+    public void pollsHigherPriorityFirst() throws Exception {
+        final TaskQueue queue = new TaskQueue(0);
+        final Task low = task(entry("a").setPriority(Poster.PRIORITY_LOW));
+        final Task normal = task(entry("a"));
+        final Task high = task(entry("a").setPriority(Poster.PRIORITY_HIGH));
+        queue.add(low);
+        queue.add(normal);
+        queue.add(high);
+
+        assertSame(high, queue.poll());
+        assertSame(normal, queue.poll());
+        assertSame(low, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void agesWaitingTasks() throws Exception {
+        final TaskQueue queue = new TaskQueue(0);
+        final Task old = task(entry("a").setPriority(Poster.PRIORITY_LOW));
+        // 25 秒待っていれば優先度が 2 上がる
+        old.enqueuedAt -= TimeUnit.SECONDS.toNanos(25);
+        final Task normal = task(entry("a"));
+        queue.add(normal);
+        queue.add(old);
+
+        assertSame(old, queue.poll());
+    }
+
+    @Test
+    public void keepsOrderWithinOrderKey() throws Exception {
+        final TaskQueue queue = new TaskQueue(0);
+        final Task first = task(entry("a").setOrderKey("k"));
+        final Task second = task(entry("a").setOrderKey("k").setPriority(Poster.PRIORITY_HIGH));
+        final Task other = task(entry("a"));
+        queue.add(first);
+        queue.add(second);
+        queue.add(other);
+
+        // 優先度が高くても、同じキーの前の Task を追い越さない
+        assertSame(first, queue.poll());
+        // first の送信中は同じキーの Task を出さない
+        assertSame(other, queue.poll());
+        assertNull(queue.poll());
+
+        queue.done(first);
+        assertSame(second, queue.poll());
+    }
+
+    @Test
+    public void holdsOrderKeyWhileRetrying() throws Exception {
+        final TaskQueue queue = new TaskQueue(0);
+        final Task first = task(entry("a").setOrderKey("k"));
+        final Task second = task(entry("a").setOrderKey("k"));
+        queue.add(first);
+        assertSame(first, queue.poll());
+        first.retrying = true;
+        queue.done(first);
+
+        queue.add(second);
+        assertNull(queue.poll());
+
+        queue.addRetry(first);
+        assertSame(first, queue.poll());
+        first.retrying = false;
+        queue.done(first);
+        assertSame(second, queue.poll());
+    }
+
+    @Test
+    public void limitsPerHost() throws Exception {
+        final TaskQueue queue = new TaskQueue(1);
+        final Task a1 = task(entry("a"));
+        final Task a2 = task(entry("a"));
+        final Task b = task(entry("b"));
+        queue.add(a1);
+        queue.add(a2);
+        queue.add(b);
+
+        assertSame(a1, queue.poll());
+        assertSame(b, queue.poll());
+        assertNull(queue.poll());
+        queue.done(a1);
+        assertSame(a2, queue.poll());
+    }
+
+    @Test
+    public void coalescesInPlaceAndKeepsAge() throws Exception {
+        final TaskQueue queue = new TaskQueue(0);
+        final Task first = task(entry("a").setCoalesceKey("c"));
+        first.enqueuedAt -= TimeUnit.SECONDS.toNanos(25);
+        final Task other = task(entry("a"));
+        final Task replacement = task(entry("a").setCoalesceKey("c").setPriority(Poster.PRIORITY_LOW).setTimeToLive(60_000));
+        queue.add(first);
+        queue.add(other);
+
+        assertSame(first, queue.add(replacement));
+        assertEquals(first.enqueuedAt, replacement.enqueuedAt);
+        // 有効期限は新しい Entry から決まる
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(60_000), replacement.expiresAt - System.nanoTime(), TimeUnit.SECONDS.toNanos(5));
+        // 待ち時間を引き継いでいるので、優先度が低くても先に出る
+        assertSame(replacement, queue.poll());
+        assertSame(other, queue.poll());
+    }
+
+    @Test
+    public void dropsExpiredTasks() throws Exception {
+        final TaskQueue queue = new TaskQueue(0);
+        final Task expired = task(entry("a").setTimeToLive(1));
+        Thread.sleep(5);
+        queue.add(expired);
+
+        assertNull(queue.poll());
+        assertEquals(1, queue.drainExpired().size());
+    }
+
+    @Test
+    public void rejectsWhenFullAndNotWaiting() throws Exception {
+        final TaskQueue queue = new TaskQueue(0);
+        queue.setCapacity(1, 0, Poster.OverflowPolicy.BLOCK);
+        queue.offer(task(entry("a")), false, new ArrayList<>());
+        try {
+            queue.offer(task(entry("a")), false, new ArrayList<>());
+            fail("accepted");
+        } catch (RejectedException e) {
+            // 上限
+        }
+    }
+
+    @Test
+    public void limitsBytes() throws Exception {
+        final TaskQueue queue = new TaskQueue(0);
+        queue.setCapacity(0, 15, Poster.OverflowPolicy.DROP_NEWEST);
+        queue.offer(task(entry("a")), false, new ArrayList<>());
+        assertTrue(queue.isFull(task(entry("a"))));
+        assertFalse(queue.isFull(task(entry("a").setData(new byte[5]))));
+    }
+
+    @Test
+    public void countsOnlyTasksInMemory() throws Exception {
+        final TaskQueue queue = new TaskQueue(0);
+        queue.setCapacity(1, 0, Poster.OverflowPolicy.SPILL);
+        for (int i = 0; i < 3; i++) {
+            final Task spilled = task(entry("a"));
+            spilled.spilled = true;
+            queue.offer(spilled, false, new ArrayList<>());
+        }
+
+        // 逃がした Task は数えないので、まだ 1 つ入る
+        final Task inMemory = task(entry("a"));
+        assertFalse(queue.isFull(inMemory));
+        queue.offer(inMemory, false, new ArrayList<>());
+        assertTrue(queue.isFull(task(entry("a"))));
+    }
+
+    @Test
+    public void countsRetryingTasksAgainstCapacity() throws Exception {
+        final TaskQueue queue = new TaskQueue(0);
+        queue.setCapacity(1, 0, Poster.OverflowPolicy.DROP_NEWEST);
+        final Task task = task(entry("a"));
+        queue.offer(task, false, new ArrayList<>());
+        assertSame(task, queue.poll());
+        // 送信中も数える
+        assertTrue(queue.isFull(task(entry("a"))));
+
+        task.retrying = true;
+        queue.done(task);
+        assertTrue(queue.isFull(task(entry("a"))));
+        queue.addRetry(task);
+        assertTrue(queue.isFull(task(entry("a"))));
+
+        assertSame(task, queue.poll());
+        task.retrying = false;
+        queue.done(task);
+        assertFalse(queue.isFull(task(entry("a"))));
+    }
+
+    @Test
+    public void removesEachTaskOfSameEntry() throws Exception {
+        final TaskQueue queue = new TaskQueue(0);
+        final Poster.Entry entry = entry("a").build();
+        final Task first = new Task(entry, -1);
+        final Task second = new Task(entry, -1);
+        queue.add(first);
+        queue.add(second);
+
+        assertSame(first, queue.remove(entry));
+        assertSame(second, queue.remove(entry));
+        assertNull(queue.remove(entry));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void dropsOldestTaskInMemory() throws Exception {
+        final TaskQueue queue = new TaskQueue(0);
+        queue.setCapacity(2, 0, Poster.OverflowPolicy.DROP_OLDEST);
+        final Task spilled = task(entry("a"));
+        spilled.spilled = true;
+        final Task retrying = task(entry("a"));
+        final Task oldest = task(entry("a"));
+        final Task newest = task(entry("a"));
+        retry(queue, retrying);
+        queue.add(spilled);
+        queue.add(oldest);
+
+        final List<Task> evicted = new ArrayList<>();
+        queue.offer(newest, false, evicted);
+        assertEquals(Collections.singletonList(oldest), evicted);
+    }
+
+    @Test
+    public void rejectsWhenNothingCanBeDropped() throws Exception {
+        final TaskQueue queue = new TaskQueue(0);
+        queue.setCapacity(1, 0, Poster.OverflowPolicy.DROP_OLDEST);
+        retry(queue, task(entry("a")));
+
+        try {
+            queue.offer(task(entry("a")), false, new ArrayList<>());
+            fail("accepted");
+        } catch (RejectedException e) {
+            // 再送待ちは追い出さない
+        }
+    }
+
+}
@@ -0,0 +1,123 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UploadSchedulerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Poster.BasicEntryBuilder entry(String data) throws IOException {
+        return (new Poster.BasicEntryBuilder())
+                .setUrl(new URL("http://localhost/upload"))
+                .setData(data.getBytes())
+                .setConstraints((new Constraints.Builder()).build());
+    }
+
+    @Test
+    public void holdsUntilConstraintsAreMet() throws Exception {
+        final RecordingTransport transport = new RecordingTransport();
+        final Poster poster = (new Poster(1, 0)).setTransport(transport);
+        final FakeNetworkStateProvider provider = new FakeNetworkStateProvider(false);
+        final UploadScheduler scheduler = new UploadScheduler(poster, provider);
+        try {
+            scheduler.post(entry("a").build());
+            assertEquals(1, scheduler.getHeldCount());
+
+            provider.setConnected(true);
+            assertTrue(transport.awaitSent(1, 5_000));
+            assertEquals(1, transport.getSent().size());
+            assertEquals(0, scheduler.getHeldCount());
+        } finally {
+            scheduler.shutdown();
+            poster.shutdown();
+        }
+        assertEquals(0, provider.getListenerCount());
+    }
+
+    @Test
+    public void sharesProviderWithWriteBehindBuffer() throws Exception {
+        final RecordingTransport transport = new RecordingTransport();
+        final Poster poster = (new Poster(1, 0)).setTransport(transport);
+        final FakeNetworkStateProvider provider = new FakeNetworkStateProvider(false);
+        final UploadScheduler scheduler = new UploadScheduler(poster, provider);
+        final WriteBehindBuffer buffer = new WriteBehindBuffer(poster, provider, this.folder.newFolder());
+        try {
+            scheduler.post(entry("a").build());
+            buffer.post(entry("b").setConstraints(null).build());
+
+            provider.setConnected(true);
+            assertTrue(transport.awaitSent(2, 5_000));
+            assertEquals(2, transport.getSent().size());
+        } finally {
+            buffer.close();
+            scheduler.shutdown();
+            poster.shutdown();
+        }
+        assertEquals(0, provider.getListenerCount());
+    }
+
+    @Test
+    public void doesNotBlockNotifyingThread() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Poster poster = (new Poster(1, 0))
+                .setTransport((Request request) -> {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    return new Response(200, null);
+                })
+                // 送信中の a と送信待ちの b で一杯になる
+                .setCapacity(2, 0, Poster.OverflowPolicy.BLOCK);
+        final FakeNetworkStateProvider provider = new FakeNetworkStateProvider(false);
+        final UploadScheduler scheduler = new UploadScheduler(poster, provider);
+        try {
+            poster.post(entry("a").setConstraints(null).build());
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            poster.post(entry("b").setConstraints(null).build());
+            scheduler.post(entry("c").build());
+
+            // 送信待ちが一杯でも、通知したスレッドは待たされない
+            final Thread notifier = new Thread(() -> provider.setConnected(true));
+            notifier.start();
+            notifier.join(2_000);
+            assertFalse(notifier.isAlive());
+        } finally {
+            release.countDown();
+            scheduler.shutdown();
+            poster.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class UrlConnectionTransportTest {
+
+    private LocalServer server;
+
+    @After
+    public void tearDown() throws IOException {
+        if (this.server != null) {
+            this.server.close();
+        }
+    }
+
+    private Request request(int responseLimit) throws IOException {
+        return new Request(this.server.url("/"), Collections.emptyMap(), Bodies.of("data".getBytes()), 5_000, 5_000,
+                responseLimit, null, null, null);
+    }
+
+    @Test
+    public void readsResponseBody() throws Exception {
+        this.server = new LocalServer(LocalServer.respond(201, "created"));
+        final Response response = (new UrlConnectionTransport()).send(request(1024));
+        assertEquals(201, response.getStatus());
+        assertArrayEquals("created".getBytes(), response.getBody());
+    }
+
+    @Test
+    public void keepsStatusWhenBodyIsBroken() throws Exception {
+        this.server = new LocalServer((head, body, output) -> {
+            // 読めない chunk を返す
+            output.write("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n".getBytes(StandardCharsets.US_ASCII));
+        });
+        final UrlConnectionTransport transport = new UrlConnectionTransport();
+        final Response response = transport.send(request(1024));
+        assertEquals(200, response.getStatus());
+        assertNull(response.getBody());
+        assertEquals(1, transport.getDiscardedConnections());
+    }
+
+    @Test
+    public void keepsStatusWhenResponseHandlerFails() throws Exception {
+        this.server = new LocalServer(LocalServer.respond(200, "ok"));
+        final Request request = new Request(this.server.url("/"), Collections.emptyMap(), null, 5_000, 5_000, 0,
+                (response, input) -> {
+                    throw new IOException("broken");
+                }, null, null);
+        assertEquals(200, (new UrlConnectionTransport()).send(request).getStatus());
+    }
+
+}
@@ -0,0 +1,158 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WatchdogTest {
+
+    private LocalServer server;
+    private Poster poster;
+
+    @After
+    public void tearDown() throws IOException {
+        if (this.poster != null) {
+            this.poster.shutdown();
+        }
+        if (this.server != null) {
+            this.server.close();
+        }
+    }
+
+    /**
+     * 応答を遅らせる
+     */
+    private static LocalServer.Handler slow(long delay) {
+        return (head, body, output) -> {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+            output.write("HTTP/1.1 200 OK\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        };
+    }
+
+    /**
+     * 長さを決めずにいつまでも書き出す
+     */
+    private static final class EndlessBody implements Body {
+
+        @Override
+        public long getLength() {
+            return -1;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        @Override
+        public void writeTo(@NonNull OutputStream output) throws IOException {
+            final byte[] buff = new byte[8192];
+            for (int i = 0; i < 64 * 1024; i++) {
+                output.write(buff);
+            }
+        }
+
+    }
+
+    private Poster.BasicEntryBuilder entry() throws IOException {
+        return (new Poster.BasicEntryBuilder())
+                .setUrl(this.server.url("/"))
+                .setData("data".getBytes());
+    }
+
+    /**
+     * @return 送信の失敗までにかかった時間（ミリ秒）
+     */
+    private long assertTimedOut(Poster.Entry entry, String message) throws Exception {
+        final long start = System.currentTimeMillis();
+        try {
+            this.poster.submit(entry).get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+            if (message != null) {
+                assertEquals(message, e.getCause().getMessage());
+            }
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    @Test
+    public void doesNotWatchWithoutLimits() throws Exception {
+        final AtomicInteger watching = new AtomicInteger(-1);
+        this.server = new LocalServer((head, body, output) -> {
+            watching.set(Watchdog.getWatchCount());
+            output.write("HTTP/1.1 200 OK\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        });
+        this.poster = new Poster(1, 0);
+        assertEquals(200, this.poster.submit(entry().build()).get(10, TimeUnit.SECONDS).getStatus());
+        // 期限も書き込みタイムアウトも指定しなければ見張らない
+        assertEquals(0, watching.get());
+    }
+
+    @Test
+    public void timesOutReading() throws Exception {
+        this.server = new LocalServer(slow(5_000));
+        this.poster = new Poster(1, 0);
+        final long elapsed = assertTimedOut(entry().setReadTimeout(200).build(), null);
+        assertTrue(elapsed < 3_000);
+    }
+
+    @Test
+    public void timesOutWritingWithoutReadTimeout() throws Exception {
+        // 本体を読まないので、送信側のバッファが埋まると書き出しが止まる
+        this.server = new LocalServer(slow(20_000));
+        this.poster = new Poster(1, 0);
+        final long elapsed = assertTimedOut(entry()
+                .setBody(new EndlessBody())
+                .setReadTimeout(0)
+                .setWriteTimeout(300)
+                .build(), "write timed out");
+        assertTrue(elapsed < 10_000);
+    }
+
+    @Test
+    public void stopsAtDeadline() throws Exception {
+        this.server = new LocalServer(slow(5_000));
+        this.poster = new Poster(1, 0);
+        final long elapsed = assertTimedOut(entry()
+                .setReadTimeout(0)
+                .setDeadline(300)
+                .build(), "deadline exceeded");
+        assertTrue(elapsed < 3_000);
+    }
+
+}
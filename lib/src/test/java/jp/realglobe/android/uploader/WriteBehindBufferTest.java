@@ -0,0 +1,198 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WriteBehindBufferTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * 記録した回数を数える Journal
+     */
+    private static final class CountingJournal extends Journal {
+
+        final AtomicInteger appended = new AtomicInteger();
+
+        CountingJournal(File directory) throws IOException {
+            super(directory);
+        }
+
+        @Override
+        synchronized long append(Poster.Entry entry) throws IOException {
+            this.appended.incrementAndGet();
+            return super.append(entry);
+        }
+
+    }
+
+    private static Poster.Entry entry(String data) throws IOException {
+        return (new Poster.BasicEntryBuilder())
+                .setUrl(new URL("http://localhost/upload"))
+                .setData(data.getBytes())
+                .build();
+    }
+
+    @Test
+    public void spillsAndReplaysInOrder() throws Exception {
+        final RecordingTransport transport = new RecordingTransport();
+        final Poster poster = (new Poster(1, 0)).setTransport(transport);
+        final FakeNetworkStateProvider provider = new FakeNetworkStateProvider(false);
+        final File directory = this.folder.newFolder();
+        try (final WriteBehindBuffer buffer = new WriteBehindBuffer(poster, provider, directory)) {
+            buffer.setCapacity(2, 1024 * 1024);
+            for (final String data : new String[]{"a", "b", "c", "d", "e"}) {
+                buffer.post(entry(data));
+            }
+            buffer.flush();
+            assertEquals(0, buffer.getBufferedCount());
+            assertTrue(buffer.getSpilledBytes() > 0);
+            assertTrue(transport.getSent().isEmpty());
+
+            provider.setConnected(true);
+            assertTrue(transport.awaitSent(5, 5_000));
+            final List<RecordingTransport.Sent> sent = transport.getSent();
+            assertEquals(5, sent.size());
+            for (int i = 0; i < sent.size(); i++) {
+                assertEquals(String.valueOf((char) ('a' + i)), sent.get(i).text());
+            }
+        } finally {
+            poster.shutdown();
+        }
+    }
+
+    @Test
+    public void replaysSegmentsOfPreviousProcess() throws Exception {
+        final File directory = this.folder.newFolder();
+        final FakeNetworkStateProvider provider = new FakeNetworkStateProvider(false);
+        final Poster offline = (new Poster(1, 0)).setTransport(new RecordingTransport());
+        try (final WriteBehindBuffer buffer = new WriteBehindBuffer(offline, provider, directory)) {
+            buffer.post(entry("a"));
+            buffer.post(entry("b"));
+        } finally {
+            offline.shutdown();
+        }
+
+        final RecordingTransport transport = new RecordingTransport();
+        final Poster poster = (new Poster(1, 0)).setTransport(transport);
+        try (final WriteBehindBuffer buffer = new WriteBehindBuffer(poster, new FakeNetworkStateProvider(true), directory)) {
+            buffer.check();
+            assertTrue(transport.awaitSent(2, 5_000));
+            assertEquals(2, transport.getSent().size());
+            assertEquals("a", transport.getSent().get(0).text());
+            assertEquals("b", transport.getSent().get(1).text());
+        } finally {
+            poster.shutdown();
+        }
+    }
+
+    @Test
+    public void keepsEverySettingAcrossProcesses() throws Exception {
+        final File directory = this.folder.newFolder();
+        final Poster offline = (new Poster(1, 0)).setTransport(new RecordingTransport());
+        try (final WriteBehindBuffer buffer = new WriteBehindBuffer(offline, new FakeNetworkStateProvider(false), directory)) {
+            buffer.post((new Poster.BasicEntryBuilder())
+                    .setUrl(new URL("http://localhost/upload"))
+                    .setData("a".getBytes())
+                    .setHeader((new HeaderTemplate.Builder()).set("X-Test", "1").build())
+                    .setTimeout(1_000)
+                    .setReadTimeout(2_000)
+                    .setWriteTimeout(3_000)
+                    .setDeadline(60_000)
+                    .setOrderKey("order")
+                    .setCompression(6, 512)
+                    .setPriority(5)
+                    .setTimeToLive(600_000)
+                    .setCoalesceKey("coalesce")
+                    .setResponseLimit(4_096)
+                    .build());
+        } finally {
+            offline.shutdown();
+        }
+
+        final CountDownLatch posted = new CountDownLatch(1);
+        final AtomicReference<Poster.Entry> replayed = new AtomicReference<>();
+        final Poster poster = (new Poster(1, 0))
+                .setTransport(new RecordingTransport())
+                .setListener((entry, metrics) -> {
+                    replayed.set(entry);
+                    posted.countDown();
+                });
+        try (final WriteBehindBuffer buffer = new WriteBehindBuffer(poster, new FakeNetworkStateProvider(true), directory)) {
+            buffer.check();
+            assertTrue(posted.await(5, TimeUnit.SECONDS));
+        } finally {
+            poster.shutdown();
+        }
+
+        final Poster.Entry entry = replayed.get();
+        assertEquals("http://localhost/upload", entry.url.toString());
+        assertEquals("1", entry.header.get("x-test"));
+        assertEquals(1_000, entry.timeout);
+        assertEquals(2_000, entry.readTimeout);
+        assertEquals(3_000, entry.writeTimeout);
+        assertEquals(60_000, entry.deadline);
+        assertEquals("order", entry.orderKey);
+        assertEquals(6, entry.compressionLevel);
+        assertEquals(512, entry.compressionMinLength);
+        assertEquals(5, entry.priority);
+        assertTrue(entry.timeToLive > 0 && entry.timeToLive <= 600_000);
+        assertEquals("coalesce", entry.coalesceKey);
+        assertEquals(4_096, entry.responseLimit);
+    }
+
+    @Test
+    public void doesNotJournalReplayedEntries() throws Exception {
+        final RecordingTransport transport = new RecordingTransport();
+        try (final CountingJournal journal = new CountingJournal(this.folder.newFolder())) {
+            final Poster poster = (new Poster(1, 0))
+                    .setTransport(transport)
+                    .setJournal(journal);
+            final FakeNetworkStateProvider provider = new FakeNetworkStateProvider(false);
+            try (final WriteBehindBuffer buffer = new WriteBehindBuffer(poster, provider, this.folder.newFolder())) {
+                buffer.setCapacity(1, 1024 * 1024);
+                buffer.post(entry("a"));
+                buffer.post(entry("b"));
+                buffer.flush();
+
+                provider.setConnected(true);
+                assertTrue(transport.awaitSent(2, 5_000));
+                assertEquals(2, transport.getSent().size());
+                assertEquals(0, journal.appended.get());
+            } finally {
+                poster.shutdown();
+            }
+        }
+    }
+
+}